@@ -1,21 +1,122 @@
 package robowiki.runner;
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
 import robocode.control.RobotResults;
 import robocode.control.events.BattleAdaptor;
 import robocode.control.events.BattleCompletedEvent;
 import robocode.control.events.BattleErrorEvent;
+import robocode.control.events.BattleFinishedEvent;
+import robocode.control.events.RoundEndedEvent;
+import robocode.control.events.TurnEndedEvent;
+import robocode.control.snapshot.IScoreSnapshot;
+import robocode.control.snapshot.ITurnSnapshot;
+import robowiki.runner.BattleProtocol.BattleResult;
+import robowiki.runner.BattleProtocol.RobotResult;
+import robowiki.runner.BattleProtocol.RoundListener;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 
+/**
+ * Collects the results of a battle, and passes each robot's total scores to
+ * a {@link RoundListener} after each round but the last. Robocode only adds
+ * a round to the totals once it has ended, so the totals are taken from the
+ * first turn of the next round. If the battle is aborted, those totals are
+ * all the results there are, unless it's aborted after a round has ended but
+ * before the next turn, in which case that round's totals are made from the
+ * scores at its last turn.
+ */
 public class BattleListener extends BattleAdaptor {
   private Multimap<String, RobotResults> _botResults;
+  private RoundListener _roundListener;
+  private int _roundsEnded;
+  private boolean _roundEnded;
+  private BattleResult _lastRoundResult;
+  private ITurnSnapshot _lastTurnSnapshot;
+  private boolean _aborted;
 
   public BattleListener() {
     _botResults = ArrayListMultimap.create();
   }
 
+  /**
+   * @param roundListener receives the scores after each round of the next
+   *     battle, or null for none
+   */
+  public void setRoundListener(RoundListener roundListener) {
+    _roundListener = roundListener;
+  }
+
+  public void onRoundEnded(RoundEndedEvent roundEndedEvent) {
+    _roundsEnded = roundEndedEvent.getRound() + 1;
+    _roundEnded = true;
+  }
+
+  public void onTurnEnded(TurnEndedEvent turnEndedEvent) {
+    if (_roundEnded) {
+      _roundEnded = false;
+      _lastRoundResult = new BattleResult(_roundsEnded, getRobotResults(
+          turnEndedEvent.getTurnSnapshot().getSortedTeamScores()));
+      if (_roundListener != null) {
+        _roundListener.roundEnded(
+            _roundsEnded, _lastRoundResult.robotResults);
+      }
+    }
+    _lastTurnSnapshot = turnEndedEvent.getTurnSnapshot();
+  }
+
+  private static List<RobotResult> getRobotResults(
+      IScoreSnapshot[] scoreSnapshots) {
+    List<RobotResult> robotResults = Lists.newArrayList();
+    for (int x = 0; x < scoreSnapshots.length; x++) {
+      IScoreSnapshot scoreSnapshot = scoreSnapshots[x];
+      robotResults.add(new RobotResult(scoreSnapshot.getName(), x + 1,
+          (int) Math.round(scoreSnapshot.getTotalScore()),
+          scoreSnapshot.getTotalFirsts(),
+          (int) Math.round(scoreSnapshot.getTotalSurvivalScore()),
+          scoreSnapshot.getTotalBulletDamageScore()));
+    }
+    return robotResults;
+  }
+
+  /**
+   * Adds the scores of the round in progress to the totals, for a round
+   * that has ended but hasn't been added to them yet. The round's winner is
+   * the robot that got a last survivor bonus.
+   */
+  private static List<RobotResult> getEndOfRoundResults(
+      IScoreSnapshot[] scoreSnapshots) {
+    IScoreSnapshot[] sortedSnapshots =
+        Arrays.copyOf(scoreSnapshots, scoreSnapshots.length);
+    Arrays.sort(sortedSnapshots, new Comparator<IScoreSnapshot>() {
+      @Override
+      public int compare(IScoreSnapshot snapshot1, IScoreSnapshot snapshot2) {
+        return Double.compare(
+            snapshot2.getTotalScore() + snapshot2.getCurrentScore(),
+            snapshot1.getTotalScore() + snapshot1.getCurrentScore());
+      }
+    });
+    List<RobotResult> robotResults = Lists.newArrayList();
+    for (int x = 0; x < sortedSnapshots.length; x++) {
+      IScoreSnapshot scoreSnapshot = sortedSnapshots[x];
+      robotResults.add(new RobotResult(scoreSnapshot.getName(), x + 1,
+          (int) Math.round(scoreSnapshot.getTotalScore()
+              + scoreSnapshot.getCurrentScore()),
+          scoreSnapshot.getTotalFirsts()
+              + (scoreSnapshot.getCurrentSurvivalBonus() > 0 ? 1 : 0),
+          (int) Math.round(scoreSnapshot.getTotalSurvivalScore()
+              + scoreSnapshot.getCurrentSurvivalScore()),
+          scoreSnapshot.getTotalBulletDamageScore()
+              + scoreSnapshot.getCurrentBulletDamageScore()));
+    }
+    return robotResults;
+  }
+
   public void onBattleCompleted(BattleCompletedEvent completedEvent) {
     RobotResults[] robotResultsArray =
         RobotResults.convertResults(completedEvent.getIndexedResults());
@@ -24,6 +125,14 @@ public class BattleListener extends BattleAdaptor {
     }
   }
 
+  public void onBattleFinished(BattleFinishedEvent finishedEvent) {
+    _aborted = finishedEvent.isAborted();
+    if (_aborted && _roundEnded && _lastTurnSnapshot != null) {
+      _lastRoundResult = new BattleResult(_roundsEnded,
+          getEndOfRoundResults(_lastTurnSnapshot.getSortedTeamScores()));
+    }
+  }
+
   public void onBattleError(BattleErrorEvent battleErrorEvent) {
     System.out.println("Robocode error: " + battleErrorEvent.getError());
   }
@@ -32,7 +141,28 @@ public class BattleListener extends BattleAdaptor {
     return ImmutableMultimap.copyOf(_botResults);
   }
 
+  /**
+   * @return true if the last battle was aborted, in which case Robocode
+   *     doesn't report its results
+   */
+  public boolean isAborted() {
+    return _aborted;
+  }
+
+  /**
+   * @return each robot's total scores after the latest round to end, other
+   *     than the last round of a battle that wasn't aborted, or null if
+   *     none has
+   */
+  public BattleResult getLastRoundResult() {
+    return _lastRoundResult;
+  }
+
   public void clear() {
     _botResults.clear();
+    _roundEnded = false;
+    _lastRoundResult = null;
+    _lastTurnSnapshot = null;
+    _aborted = false;
   }
 }
@@ -3,35 +3,36 @@ package robowiki.runner;
 import static robowiki.runner.RunnerUtil.getCombinedArgs;
 import static robowiki.runner.RunnerUtil.parseStringArgument;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 
 import robocode.control.BattleSpecification;
 import robocode.control.BattlefieldSpecification;
 import robocode.control.RobocodeEngine;
 import robocode.control.RobotResults;
+import robowiki.runner.BattleProtocol.BattleResult;
+import robowiki.runner.BattleProtocol.RobotResult;
+import robowiki.runner.BattleProtocol.RoundListener;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Queues;
 
 public class BattleProcess {
-  public static final String READY_SIGNAL = "BattleProcess ready";
-  public static final String RESULT_SIGNAL = "BATTLE RESULT: ";
-  public static final String BOT_DELIMITER = ":::";
-  public static final String SCORE_DELIMITER = "::";
-
   private static final Joiner COMMA_JOINER = Joiner.on(",");
-  private static final Joiner COLON_JOINER = Joiner.on(BOT_DELIMITER);
 
   private BattlefieldSpecification _battlefield;
   private int _numRounds;
   private RobocodeEngine _engine;
   private BattleListener _listener;
+  private int _runningBattleId;
 
   public static void main(String[] args) {
     args = getCombinedArgs(args);
@@ -44,30 +45,119 @@ public class BattleProcess {
     int height = Integer.parseInt(parseStringArgument("height", args,
         "Pass battlefield height with -height"));
 
-    BattleProcess process =
+    // Keep stdout for the battle protocol, and send everything else that's
+    // printed, by Robocode or the bots, to stderr.
+    PrintStream protocolOut = System.out;
+    System.setOut(System.err);
+    final BattleProtocol.Writer writer =
+        new BattleProtocol.Writer(protocolOut);
+    final BattleProtocol.Reader reader =
+        new BattleProtocol.Reader(System.in);
+    final BlockingQueue<QueuedBattle> battleQueue =
+        Queues.newLinkedBlockingQueue();
+
+    final BattleProcess process =
         new BattleProcess(robocodePath, numRounds, width, height);
-    System.out.println(READY_SIGNAL);
-    BufferedReader stdin =
-        new BufferedReader(new java.io.InputStreamReader(System.in));
-    while (true) {
-      try {
-        String line = stdin.readLine();
-        System.out.println("Processing " + line);
-        String result = process.runBattle(getBotList(line));
-        System.out.println(RESULT_SIGNAL + result);
-      } catch (IOException e) {
-        e.printStackTrace();
+    try {
+      writer.writeReady();
+      writer.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+    Thread requestReader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readRequests(reader, writer, battleQueue, process);
+      }
+    }, "BattleRequests");
+    requestReader.setDaemon(true);
+    requestReader.start();
+
+    try {
+      while (true) {
+        final QueuedBattle battle = battleQueue.take();
+        if (battle.botNames == null) {
+          break;
+        }
+        System.out.println("Processing " + battle.botNames);
+        try {
+          BattleResult battleResult = process.runBattle(battle.battleId,
+              new BotList(battle.botNames), new RoundListener() {
+                @Override
+                public void roundEnded(
+                    int round, List<RobotResult> robotResults) {
+                  try {
+                    synchronized (writer) {
+                      writer.writeRoundResult(
+                          battle.battleId, round, robotResults);
+                      writer.flush();
+                    }
+                  } catch (IOException e) {
+                    e.printStackTrace();
+                  }
+                }
+              });
+          synchronized (writer) {
+            writer.writeBattleResult(battle.battleId, battleResult);
+            writer.flush();
+          }
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+          synchronized (writer) {
+            writer.writeBattleError(battle.battleId, e.toString());
+            writer.flush();
+          }
+        }
       }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
     }
+    System.exit(0);
   }
 
-  private static BotList getBotList(String line) {
-    return new BotList(Lists.newArrayList(line.split(",")));
+  /**
+   * Queues battle requests from the runner, takes cancelled battles off the
+   * queue and stops the running battle when asked, until the runner closes
+   * stdin.
+   */
+  private static void readRequests(BattleProtocol.Reader reader,
+      BattleProtocol.Writer writer, BlockingQueue<QueuedBattle> battleQueue,
+      BattleProcess process) {
+    try {
+      byte messageType;
+      while ((messageType = reader.readMessage())
+          != BattleProtocol.END_OF_STREAM) {
+        if (messageType == BattleProtocol.BATTLE_REQUEST) {
+          battleQueue.add(
+              new QueuedBattle(reader.getBattleId(), reader.getBotNames()));
+        } else if (messageType == BattleProtocol.CANCEL_BATTLE) {
+          int battleId = reader.getBattleId();
+          for (QueuedBattle battle : battleQueue) {
+            if (battle.battleId == battleId && battleQueue.remove(battle)) {
+              synchronized (writer) {
+                writer.writeBattleCancelled(battleId);
+                writer.flush();
+              }
+              break;
+            }
+          }
+        } else if (messageType == BattleProtocol.STOP_BATTLE) {
+          process.stopBattle(reader.getBattleId());
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    battleQueue.add(new QueuedBattle(-1, null));
   }
 
   public BattleProcess(String robocodePath, int numRounds,
       int battleFieldWidth, int battleFieldHeight) {
     _numRounds = numRounds;
+    _runningBattleId = -1;
     _battlefield =
         new BattlefieldSpecification(battleFieldWidth, battleFieldHeight);
     _engine = new RobocodeEngine(new File(robocodePath));
@@ -76,26 +166,80 @@ public class BattleProcess {
     _engine.setVisible(false);
   }
 
-  public String runBattle(BotList botList) {
+  /**
+   * @param battleId id of the battle, for {@link #stopBattle(int)}
+   * @param botList the bots in the battle
+   * @param roundListener receives the scores after each round but the
+   *     last, or null for none
+   * @return the number of rounds run and the result of each robot in the
+   *     battle, in order of rank
+   */
+  public BattleResult runBattle(
+      int battleId, BotList botList, RoundListener roundListener) {
+    _listener.setRoundListener(roundListener);
     BattleSpecification battleSpec = new BattleSpecification(
         _numRounds, _battlefield, 
     _engine.getLocalRepository(COMMA_JOINER.join(botList.getBotNames())));
+    synchronized (this) {
+      _runningBattleId = battleId;
+    }
     _engine.runBattle(battleSpec, true);
-    Multimap<String, RobotResults> resultsMap = _listener.getRobotResultsMap();
+    synchronized (this) {
+      _runningBattleId = -1;
+    }
+    BattleResult battleResult;
+    if (_listener.isAborted()) {
+      battleResult = _listener.getLastRoundResult();
+      if (battleResult == null) {
+        _listener.clear();
+        throw new IllegalStateException(
+            "Battle was stopped before any rounds ended");
+      }
+    } else {
+      battleResult = new BattleResult(
+          _numRounds, getRobotResults(_listener.getRobotResultsMap()));
+    }
     _listener.clear();
-    return battleResultString(resultsMap);
+    return battleResult;
   }
 
-  private String battleResultString(Multimap<String, RobotResults> resultsMap) {
-    Set<String> resultStrings = Sets.newHashSet();
+  /**
+   * Stops a battle early if it's running. Its results are the total scores
+   * of the rounds that have ended.
+   *
+   * @param battleId id of the battle
+   */
+  public synchronized void stopBattle(int battleId) {
+    if (battleId == _runningBattleId) {
+      _engine.abortCurrentBattle();
+    }
+  }
+
+  private List<RobotResult> getRobotResults(
+      Multimap<String, RobotResults> resultsMap) {
+    List<RobotResult> robotResults = Lists.newArrayList();
     for (Map.Entry<String, RobotResults> resultsEntry : resultsMap.entries()) {
       RobotResults results = resultsEntry.getValue();
-      resultStrings.add(resultsEntry.getKey() + SCORE_DELIMITER
-          + results.getScore() + SCORE_DELIMITER
-          + results.getFirsts() + SCORE_DELIMITER
-          + results.getSurvival() + SCORE_DELIMITER
-          + results.getBulletDamage());
+      robotResults.add(new RobotResult(resultsEntry.getKey(),
+          results.getRank(), results.getScore(), results.getFirsts(),
+          results.getSurvival(), results.getBulletDamage()));
+    }
+    Collections.sort(robotResults, new Comparator<RobotResult>() {
+      @Override
+      public int compare(RobotResult result1, RobotResult result2) {
+        return result1.rank - result2.rank;
+      }
+    });
+    return robotResults;
+  }
+
+  private static class QueuedBattle {
+    public final int battleId;
+    public final List<String> botNames;
+
+    public QueuedBattle(int battleId, List<String> botNames) {
+      this.battleId = battleId;
+      this.botNames = botNames;
     }
-    return COLON_JOINER.join(resultStrings);
   }
 }
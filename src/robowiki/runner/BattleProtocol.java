@@ -0,0 +1,516 @@
+package robowiki.runner;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Messages between {@code BattleRunner} and a {@code BattleProcess} on the
+ * engine's stdin and stdout, or on a TCP connection to a
+ * {@code BattleWorker} for a remote engine. The engine's stderr, which also
+ * gets anything the engine or the bots print, is kept apart from the
+ * protocol.
+ *
+ * <p>Each message is a frame:
+ * <pre>
+ *   int length     length of the rest of the frame
+ *   byte type      message type
+ *   payload        length - 1 bytes
+ * </pre>
+ * Ints are big-endian and strings are modified UTF-8, as written by
+ * {@code DataOutput}. Messages of unknown types are skipped.
+ *
+ * <p>Payloads by message type:
+ * <pre>
+ *   READY             int MAGIC, byte VERSION
+ *   BATTLE_REQUEST    int battleId, int numBots, numBots * UTF botName
+ *   BATTLE_RESULT     int battleId, int numRounds, int numRobots,
+ *                         numRobots * robot result
+ *   BATTLE_ERROR      int battleId, UTF message
+ *   CANCEL_BATTLE     int battleId
+ *   BATTLE_CANCELLED  int battleId
+ *   ROUND_RESULT      int battleId, int round, int numRobots,
+ *                         numRobots * robot result
+ *   STOP_BATTLE       int battleId
+ *   LIST_ENGINES      (none)
+ *   ENGINES           int numEngines, numEngines * UTF enginePath
+ *   START_ENGINE      UTF enginePath, int numRounds, int battleFieldWidth,
+ *                         int battleFieldHeight
+ *
+ *   robot result:
+ *     UTF botName, int rank, int score, int firsts, int survivalScore,
+ *     double bulletDamage
+ * </pre>
+ * The engine sends READY once when it's started. It queues battle requests
+ * and runs them in order, sending a BATTLE_RESULT or BATTLE_ERROR for each.
+ * A CANCEL_BATTLE takes a battle off the queue if it hasn't started, which
+ * the engine confirms with a BATTLE_CANCELLED; a battle that has already
+ * started finishes as usual. While a battle runs, the engine sends a
+ * ROUND_RESULT with each robot's total scores after each round but the
+ * last. A STOP_BATTLE ends a running battle early, and its BATTLE_RESULT
+ * then has the scores and number of the rounds that had ended; it's ignored
+ * if the battle isn't running. A battle or round result has an entry for
+ * each robot in the battle, including any duplicates of the same bot, in
+ * order of rank.
+ *
+ * <p>A connection to a worker starts with a LIST_ENGINES, which the worker
+ * answers with the ENGINES it can run before closing the connection, or a
+ * START_ENGINE, after which the connection carries that engine's messages
+ * as above, starting with its READY. The worker closes the connection if it
+ * can't start the engine.
+ */
+public class BattleProtocol {
+  public static final int MAGIC = 0x52524250; // "RRBP"
+  public static final byte VERSION = 5;
+
+  public static final byte READY = 1;
+  public static final byte BATTLE_REQUEST = 2;
+  public static final byte BATTLE_RESULT = 3;
+  public static final byte BATTLE_ERROR = 4;
+  public static final byte CANCEL_BATTLE = 5;
+  public static final byte BATTLE_CANCELLED = 6;
+  public static final byte ROUND_RESULT = 7;
+  public static final byte STOP_BATTLE = 8;
+  public static final byte LIST_ENGINES = 9;
+  public static final byte ENGINES = 10;
+  public static final byte START_ENGINE = 11;
+  public static final byte END_OF_STREAM = -1;
+
+  private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+  private BattleProtocol() {
+  }
+
+  /**
+   * One robot's result in a battle.
+   */
+  public static class RobotResult {
+    public final String botName;
+    public final int rank;
+    public final int score;
+    public final int firsts;
+    public final int survivalScore;
+    public final double bulletDamage;
+
+    public RobotResult(String botName, int rank, int score, int firsts,
+        int survivalScore, double bulletDamage) {
+      this.botName = botName;
+      this.rank = rank;
+      this.score = score;
+      this.firsts = firsts;
+      this.survivalScore = survivalScore;
+      this.bulletDamage = bulletDamage;
+    }
+
+    public RobotScore toRobotScore() {
+      return new RobotScore(
+          botName, score, firsts, survivalScore, bulletDamage);
+    }
+  }
+
+  /**
+   * The result of a battle, which may have been stopped early.
+   */
+  public static class BattleResult {
+    public final int numRounds;
+    public final List<RobotResult> robotResults;
+
+    /**
+     * @param numRounds number of rounds that were run
+     * @param robotResults result of each robot in the battle, in order of
+     *     rank
+     */
+    public BattleResult(int numRounds, List<RobotResult> robotResults) {
+      this.numRounds = numRounds;
+      this.robotResults = robotResults;
+    }
+  }
+
+  /**
+   * Receives the scores of a battle that's still running.
+   */
+  public interface RoundListener {
+    /**
+     * @param round number of rounds finished
+     * @param robotResults total scores of each robot in the rounds so far,
+     *     in order of rank
+     */
+    void roundEnded(int round, List<RobotResult> robotResults);
+  }
+
+  /**
+   * Writes messages to a stream. Each message is built in a buffer that's
+   * reused for every message, then written as one frame. Messages are
+   * buffered until {@link #flush()}, so several can be sent at once.
+   */
+  public static class Writer {
+    private final DataOutputStream _out;
+    private final ByteArrayOutputStream _frameBytes;
+    private final DataOutputStream _frame;
+
+    public Writer(OutputStream out) {
+      _out = new DataOutputStream(new BufferedOutputStream(out));
+      _frameBytes = new ByteArrayOutputStream();
+      _frame = new DataOutputStream(_frameBytes);
+    }
+
+    public void writeReady() throws IOException {
+      startFrame(READY);
+      _frame.writeInt(MAGIC);
+      _frame.writeByte(VERSION);
+      endFrame();
+    }
+
+    public void writeBattleRequest(int battleId, List<String> botNames)
+        throws IOException {
+      startFrame(BATTLE_REQUEST);
+      _frame.writeInt(battleId);
+      _frame.writeInt(botNames.size());
+      for (String botName : botNames) {
+        _frame.writeUTF(botName);
+      }
+      endFrame();
+    }
+
+    public void writeBattleResult(int battleId, BattleResult battleResult)
+        throws IOException {
+      startFrame(BATTLE_RESULT);
+      _frame.writeInt(battleId);
+      _frame.writeInt(battleResult.numRounds);
+      writeRobotResults(battleResult.robotResults);
+      endFrame();
+    }
+
+    /**
+     * @param battleId the battle
+     * @param round number of rounds finished
+     * @param robotResults total scores of each robot in the rounds so far,
+     *     in order of rank
+     */
+    public void writeRoundResult(int battleId, int round,
+        List<RobotResult> robotResults) throws IOException {
+      startFrame(ROUND_RESULT);
+      _frame.writeInt(battleId);
+      _frame.writeInt(round);
+      writeRobotResults(robotResults);
+      endFrame();
+    }
+
+    private void writeRobotResults(List<RobotResult> robotResults)
+        throws IOException {
+      _frame.writeInt(robotResults.size());
+      for (RobotResult robotResult : robotResults) {
+        _frame.writeUTF(robotResult.botName);
+        _frame.writeInt(robotResult.rank);
+        _frame.writeInt(robotResult.score);
+        _frame.writeInt(robotResult.firsts);
+        _frame.writeInt(robotResult.survivalScore);
+        _frame.writeDouble(robotResult.bulletDamage);
+      }
+    }
+
+    public void writeBattleError(int battleId, String message)
+        throws IOException {
+      startFrame(BATTLE_ERROR);
+      _frame.writeInt(battleId);
+      _frame.writeUTF(String.valueOf(message));
+      endFrame();
+    }
+
+    public void writeCancelBattle(int battleId) throws IOException {
+      startFrame(CANCEL_BATTLE);
+      _frame.writeInt(battleId);
+      endFrame();
+    }
+
+    public void writeBattleCancelled(int battleId) throws IOException {
+      startFrame(BATTLE_CANCELLED);
+      _frame.writeInt(battleId);
+      endFrame();
+    }
+
+    public void writeStopBattle(int battleId) throws IOException {
+      startFrame(STOP_BATTLE);
+      _frame.writeInt(battleId);
+      endFrame();
+    }
+
+    public void writeListEngines() throws IOException {
+      startFrame(LIST_ENGINES);
+      endFrame();
+    }
+
+    public void writeEngines(List<String> enginePaths) throws IOException {
+      startFrame(ENGINES);
+      _frame.writeInt(enginePaths.size());
+      for (String enginePath : enginePaths) {
+        _frame.writeUTF(enginePath);
+      }
+      endFrame();
+    }
+
+    public void writeStartEngine(String enginePath, int numRounds,
+        int battleFieldWidth, int battleFieldHeight) throws IOException {
+      startFrame(START_ENGINE);
+      _frame.writeUTF(enginePath);
+      _frame.writeInt(numRounds);
+      _frame.writeInt(battleFieldWidth);
+      _frame.writeInt(battleFieldHeight);
+      endFrame();
+    }
+
+    public void flush() throws IOException {
+      _out.flush();
+    }
+
+    private void startFrame(byte type) throws IOException {
+      _frameBytes.reset();
+      _frame.writeByte(type);
+    }
+
+    private void endFrame() throws IOException {
+      _out.writeInt(_frameBytes.size());
+      _frameBytes.writeTo(_out);
+    }
+  }
+
+  /**
+   * Reads messages from a stream, one at a time. Payloads are read straight
+   * from the stream into the fields of the current message, without
+   * buffering whole frames. Nothing is read past the end of a message, so a
+   * reader can be made for each message on a stream that's already
+   * buffered, like a process's stdout.
+   */
+  public static class Reader {
+    private final DataInputStream _in;
+    private int _battleId;
+    private int _round;
+    private List<String> _botNames;
+    private List<RobotResult> _robotResults;
+    private String _errorMessage;
+    private List<String> _enginePaths;
+    private String _enginePath;
+    private int _numRounds;
+    private int _battleFieldWidth;
+    private int _battleFieldHeight;
+
+    public Reader(InputStream in) {
+      _in = new DataInputStream(in);
+    }
+
+    /**
+     * Reads the READY message an engine sends when it's started.
+     *
+     * @throws IOException if the stream ends first, or the engine speaks a
+     *     different protocol or version
+     */
+    public void readReady() throws IOException {
+      int length = readFrame();
+      if (length < 0) {
+        throw new EOFException("Engine exited before it was ready");
+      } else if (_in.readByte() != READY) {
+        throw new IOException("Engine didn't start with READY");
+      }
+      int magic = _in.readInt();
+      byte version = _in.readByte();
+      if (magic != MAGIC || version != VERSION) {
+        throw new IOException("Unsupported battle protocol: "
+            + Integer.toHexString(magic) + " version " + version);
+      }
+      skipFully(length - 6);
+    }
+
+    /**
+     * Reads the next message, skipping messages of unknown types. Its
+     * fields are available from the getters until the next message is read.
+     *
+     * @return type of the message, or {@link #END_OF_STREAM} if the stream
+     *     ended cleanly
+     */
+    public byte readMessage() throws IOException {
+      while (true) {
+        int length = readFrame();
+        if (length < 0) {
+          return END_OF_STREAM;
+        }
+        byte type = _in.readByte();
+        switch (type) {
+          case BATTLE_REQUEST:
+            _battleId = _in.readInt();
+            _botNames = readStrings();
+            return type;
+          case BATTLE_RESULT:
+          case ROUND_RESULT:
+            _battleId = _in.readInt();
+            _round = _in.readInt();
+            _robotResults = readRobotResults();
+            return type;
+          case BATTLE_ERROR:
+            _battleId = _in.readInt();
+            _errorMessage = _in.readUTF();
+            return type;
+          case CANCEL_BATTLE:
+          case BATTLE_CANCELLED:
+          case STOP_BATTLE:
+            _battleId = _in.readInt();
+            return type;
+          case LIST_ENGINES:
+            return type;
+          case ENGINES:
+            _enginePaths = readStrings();
+            return type;
+          case START_ENGINE:
+            _enginePath = _in.readUTF();
+            _numRounds = _in.readInt();
+            _battleFieldWidth = _in.readInt();
+            _battleFieldHeight = _in.readInt();
+            return type;
+          default:
+            skipFully(length - 1);
+        }
+      }
+    }
+
+    /**
+     * @return the battle the current message is about
+     */
+    public int getBattleId() {
+      return _battleId;
+    }
+
+    /**
+     * @return number of rounds finished in the current BATTLE_RESULT or
+     *     ROUND_RESULT
+     */
+    public int getRound() {
+      return _round;
+    }
+
+    /**
+     * @return names of the bots in the current BATTLE_REQUEST
+     */
+    public List<String> getBotNames() {
+      return _botNames;
+    }
+
+    /**
+     * @return result of each robot in the current BATTLE_RESULT or
+     *     ROUND_RESULT, in order of rank
+     */
+    public List<RobotResult> getRobotResults() {
+      return _robotResults;
+    }
+
+    /**
+     * @return the current BATTLE_RESULT
+     */
+    public BattleResult getBattleResult() {
+      return new BattleResult(_round, _robotResults);
+    }
+
+    /**
+     * @return message of the current BATTLE_ERROR
+     */
+    public String getErrorMessage() {
+      return _errorMessage;
+    }
+
+    /**
+     * @return engines in the current ENGINES
+     */
+    public List<String> getEnginePaths() {
+      return _enginePaths;
+    }
+
+    /**
+     * @return engine to start in the current START_ENGINE
+     */
+    public String getEnginePath() {
+      return _enginePath;
+    }
+
+    /**
+     * @return number of rounds per battle in the current START_ENGINE
+     */
+    public int getNumRounds() {
+      return _numRounds;
+    }
+
+    /**
+     * @return battlefield width in the current START_ENGINE
+     */
+    public int getBattleFieldWidth() {
+      return _battleFieldWidth;
+    }
+
+    /**
+     * @return battlefield height in the current START_ENGINE
+     */
+    public int getBattleFieldHeight() {
+      return _battleFieldHeight;
+    }
+
+    /**
+     * @return length of the next frame, or -1 if the stream ended cleanly
+     */
+    private int readFrame() throws IOException {
+      int length;
+      try {
+        length = _in.readInt();
+      } catch (EOFException e) {
+        return -1;
+      }
+      if (length < 1 || length > MAX_FRAME_LENGTH) {
+        throw new IOException("Bad battle protocol frame length: " + length);
+      }
+      return length;
+    }
+
+    private List<RobotResult> readRobotResults() throws IOException {
+      int numRobots = readCount();
+      List<RobotResult> robotResults =
+          Lists.newArrayListWithCapacity(numRobots);
+      for (int x = 0; x < numRobots; x++) {
+        robotResults.add(new RobotResult(_in.readUTF(), _in.readInt(),
+            _in.readInt(), _in.readInt(), _in.readInt(), _in.readDouble()));
+      }
+      return robotResults;
+    }
+
+    private List<String> readStrings() throws IOException {
+      int numStrings = readCount();
+      List<String> strings = Lists.newArrayListWithCapacity(numStrings);
+      for (int x = 0; x < numStrings; x++) {
+        strings.add(_in.readUTF());
+      }
+      return strings;
+    }
+
+    private int readCount() throws IOException {
+      int count = _in.readInt();
+      if (count < 0 || count > MAX_FRAME_LENGTH) {
+        throw new IOException("Bad battle protocol count: " + count);
+      }
+      return count;
+    }
+
+    private void skipFully(int length) throws IOException {
+      while (length > 0) {
+        int skipped = _in.skipBytes(length);
+        if (skipped <= 0) {
+          _in.readByte();
+          skipped = 1;
+        }
+        length -= skipped;
+      }
+    }
+  }
+}
@@ -1,141 +1,285 @@
 package robowiki.runner;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import robowiki.runner.BattleProtocol.BattleResult;
+import robowiki.runner.BattleProtocol.RobotResult;
+import robowiki.runner.BattleProtocol.RoundListener;
+import robowiki.runner.EngineHandle.BattleErrorException;
 
-import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
+/**
+ * Runs battles on a pool of Robocode engines. A battle that doesn't finish
+ * within {@link #TIMEOUT_FACTOR} times the longest battle so far, or the
+ * expected battle time before any have finished, is taken to have hung its
+ * engine. The engine is killed and replaced, and the battle is tried again
+ * on another engine, up to {@link #MAX_ATTEMPTS} times in all.
+ *
+ * <p>Each engine can be sent several battles ahead, up to the pipeline
+ * depth, so it starts the next battle as soon as the last one finishes
+ * instead of waiting while the results are processed and the next battle
+ * is selected.
+ */
 public class BattleRunner {
-  private static final Joiner COMMA_JOINER = Joiner.on(",");
+  private static final int MAX_ATTEMPTS = 3;
+  private static final long TIMEOUT_FACTOR = 5;
+  private static final long MIN_BATTLE_TIMEOUT_NANOS = 60000000000L;
+  private static final long DEFAULT_BATTLE_TIME_NANOS = 120000000000L;
+  private static final long KILL_WAIT_NANOS = 5000000000L;
 
-  private Queue<Process> _processQueue;
+  private EnginePool _enginePool;
   private ExecutorService _threadPool;
   private ExecutorService _callbackPool;
-  private int _numRounds;
-  private int _battleFieldWidth;
-  private int _battleFieldHeight;
+  private volatile boolean _stopped;
+  private volatile int _pipelineDepth;
+  private final AtomicInteger _battlesLeft;
+  private final AtomicInteger _nextBattleId;
+  private final AtomicLong _expectedBattleTime;
+  private final AtomicLong _longestBattleTime;
+  private final AtomicInteger _timeouts;
+  private final AtomicInteger _retries;
+  private final AtomicInteger _failedBattles;
 
   public BattleRunner(Set<String> robocodeEnginePaths, String jvmArgs,
       int numRounds, int battleFieldWidth, int battleFieldHeight) {
-    _numRounds = numRounds;
-    _battleFieldWidth = battleFieldWidth;
-    _battleFieldHeight = battleFieldHeight;
+    this(robocodeEnginePaths, jvmArgs, numRounds, battleFieldWidth,
+        battleFieldHeight, robocodeEnginePaths.size());
+  }
+
+  /**
+   * @param robocodeEnginePaths paths of the Robocode installs to run engines
+   *     in, which is the most engines that will run
+   * @param jvmArgs arguments to the JVM of each engine
+   * @param numRounds number of rounds in each battle
+   * @param battleFieldWidth battlefield width
+   * @param battleFieldHeight battlefield height
+   * @param minEngines fewest engines to run. If less than the number of
+   *     engine paths, engines are started and retired between battles to
+   *     fit the load on the machine.
+   */
+  public BattleRunner(Set<String> robocodeEnginePaths, String jvmArgs,
+      int numRounds, int battleFieldWidth, int battleFieldHeight,
+      int minEngines) {
+    this(robocodeEnginePaths, ImmutableSet.<String>of(), jvmArgs, numRounds,
+        battleFieldWidth, battleFieldHeight, minEngines);
+  }
 
-    _threadPool = Executors.newFixedThreadPool(robocodeEnginePaths.size());
+  /**
+   * @param robocodeEnginePaths paths of the Robocode installs to run engines
+   *     in
+   * @param remoteEnginePaths paths of engines on {@code BattleWorker}s, from
+   *     {@link EngineHandle#listRemoteEngines}. Battles are queued on them
+   *     the same as on local engines.
+   * @param jvmArgs arguments to the JVM of each local engine
+   * @param numRounds number of rounds in each battle
+   * @param battleFieldWidth battlefield width
+   * @param battleFieldHeight battlefield height
+   * @param minEngines fewest engines to run. If less than the number of
+   *     engine paths and there are no remote engines, local engines are
+   *     started and retired between battles to fit the load on the machine.
+   */
+  public BattleRunner(Set<String> robocodeEnginePaths,
+      Set<String> remoteEnginePaths, String jvmArgs, int numRounds,
+      int battleFieldWidth, int battleFieldHeight, int minEngines) {
+    _enginePool = new EnginePool(robocodeEnginePaths, remoteEnginePaths,
+        jvmArgs, numRounds, battleFieldWidth, battleFieldHeight, minEngines);
+    _threadPool = Executors.newFixedThreadPool(_enginePool.getMaxEngines());
     _callbackPool = Executors.newFixedThreadPool(1);
-    _processQueue = Queues.newConcurrentLinkedQueue();
-    for (String enginePath : robocodeEnginePaths) {
-      initEngine(enginePath, jvmArgs);
-    }
-  }
-
-  private void initEngine(String enginePath, String jvmArgs) {
-    try {
-      List<String> command = Lists.newArrayList();
-      command.add("java");
-      command.addAll(Lists.newArrayList(jvmArgs.trim().split(" +")));
-      command.addAll(Lists.newArrayList("-cp",
-          System.getProperty("java.class.path"),
-          "robowiki.runner.BattleProcess", "-rounds", "" + _numRounds,
-          "-width", "" + _battleFieldWidth, "-height", "" + _battleFieldHeight,
-          "-path", enginePath));
-
-      System.out.print("Initializing engine: " + enginePath + "... ");
-      ProcessBuilder builder = new ProcessBuilder(command);
-      builder.redirectErrorStream(true);
-      Process battleProcess = builder.start();
-      BufferedReader reader = new BufferedReader(
-          new InputStreamReader(battleProcess.getInputStream()));
-      String processOutput;
-      do {
-        processOutput = reader.readLine();
-      } while (!processOutput.equals(BattleProcess.READY_SIGNAL));
-      System.out.println("done!");
-      _processQueue.add(battleProcess);
-    } catch (IOException e) {
-      e.printStackTrace();
+    _pipelineDepth = 1;
+    _battlesLeft = new AtomicInteger(0);
+    _nextBattleId = new AtomicInteger(0);
+    _expectedBattleTime = new AtomicLong(DEFAULT_BATTLE_TIME_NANOS);
+    _longestBattleTime = new AtomicLong(0);
+    _timeouts = new AtomicInteger(0);
+    _retries = new AtomicInteger(0);
+    _failedBattles = new AtomicInteger(0);
+  }
+
+  /**
+   * Sets how long battles are expected to take, eg from the battles in the
+   * score log, which sets the battle timeout until a battle has finished.
+   *
+   * @param battleTime the longest expected battle time, in nanoseconds
+   */
+  public void setExpectedBattleTime(long battleTime) {
+    _expectedBattleTime.set(battleTime);
+  }
+
+  /**
+   * Sets how many battles each engine is sent ahead. With more than 1, an
+   * engine doesn't wait for the runner between battles, but a battle may be
+   * selected before the results of the battles ahead of it are in.
+   *
+   * @param pipelineDepth most battles queued or running on each engine
+   */
+  public void setPipelineDepth(int pipelineDepth) {
+    _pipelineDepth = Math.max(1, pipelineDepth);
+  }
+
+  private long getBattleTimeout() {
+    long battleTime = _longestBattleTime.get();
+    if (battleTime == 0) {
+      battleTime = _expectedBattleTime.get();
     }
+    return Math.max(MIN_BATTLE_TIMEOUT_NANOS, TIMEOUT_FACTOR * battleTime);
+  }
+
+  /**
+   * @return number of engines that have died, hung or failed a battle
+   */
+  public int getEngineFailures() {
+    return _enginePool.getEngineFailures();
+  }
+
+  /**
+   * @return number of battles that hung their engine
+   */
+  public int getTimeouts() {
+    return _timeouts.get();
+  }
+
+  /**
+   * @return number of times a battle was tried again after its engine failed
+   */
+  public int getRetries() {
+    return _retries.get();
+  }
+
+  /**
+   * @return number of battles given up on after failing every attempt
+   */
+  public int getFailedBattles() {
+    return _failedBattles.get();
   }
 
   public void runBattles(List<BotList> botLists, BattleResultHandler handler) {
-    List<Future<String>> futures = Lists.newArrayList();
-    for (final BotList botList : botLists) {
-      futures.add(_threadPool.submit(newBattleCallable(botList, handler)));
-    }
-    getAllFutures(futures);
+    final Iterator<BotList> botListIterator = botLists.iterator();
+    runBattles(new BattleSelector() {
+      @Override
+      public BotList nextBotList() {
+        return botListIterator.next();
+      }
+
+      @Override
+      public boolean shouldRevise(BotList botList) {
+        return false;
+      }
+
+      @Override
+      public void battleFailed(BotList botList) {
+        // the battle is skipped
+      }
+    }, handler, botLists.size());
   }
 
+  /**
+   * Runs battles against the bot lists chosen by a selector. Battles are
+   * only sent to engines as they have room in their pipelines, so after
+   * {@link #stopBattles()} is called, or the selector returns null, no more
+   * battles are started. Battles queued on an engine are cancelled, and the
+   * battles that are already running are finished and their results are
+   * processed as usual. An elastic engine pool is resized as engines finish
+   * their battles.
+   *
+   * @param selector chooses the bot list for each battle
+   * @param handler processes the results of each battle
+   * @param numBattles maximum number of battles to run
+   */
   public void runBattles(
       BattleSelector selector, BattleResultHandler handler, int numBattles) {
-    List<Future<String>> futures = Lists.newArrayList();
-    for (int x = 0; x < numBattles; x++) {
-      futures.add(_threadPool.submit(newBattleCallable(selector, handler)));
-    }
-    getAllFutures(futures);
-  }
-
-  private void getAllFutures(List<Future<String>> futures) {
-    for (Future<String> future : futures) {
-      try {
-        future.get();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      } catch (ExecutionException e) {
-        e.printStackTrace();
+    _stopped = false;
+    _battlesLeft.set(numBattles);
+    CompletionService<Void> completionService =
+        new ExecutorCompletionService<Void>(_threadPool);
+    int runningSessions = 0;
+    while (runningSessions > 0 || hasBattlesLeft()) {
+      if (hasBattlesLeft()) {
+        _enginePool.resize(_battlesLeft.get(), runningSessions);
+      }
+      if (hasBattlesLeft()
+          && runningSessions < _enginePool.getNumEngines()) {
+        completionService.submit(new EngineSession(selector, handler));
+        runningSessions++;
+      } else if (runningSessions == 0) {
+        System.out.println("ERROR: No engines left to run battles.");
+        return;
+      } else {
+        try {
+          completionService.take().get();
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+          Thread.currentThread().interrupt();
+          return;
+        } catch (ExecutionException e) {
+          e.printStackTrace();
+        }
+        runningSessions--;
       }
     }
   }
 
-  private Callable<String> newBattleCallable(
-      BotList botList, BattleResultHandler handler) {
-    return new BattleCallable(botList, handler);
+  private boolean hasBattlesLeft() {
+    return !_stopped && _battlesLeft.get() > 0;
   }
 
-  private Callable<String> newBattleCallable(
-      BattleSelector selector, BattleResultHandler handler) {
-    return new BattleCallable(selector, handler);
+  /**
+   * Takes one of the battles left to start.
+   *
+   * @return true if there was a battle left
+   */
+  private boolean claimBattle() {
+    while (!_stopped) {
+      int battlesLeft = _battlesLeft.get();
+      if (battlesLeft <= 0) {
+        return false;
+      } else if (_battlesLeft.compareAndSet(battlesLeft, battlesLeft - 1)) {
+        return true;
+      }
+    }
+    return false;
   }
 
-  private List<RobotScore> getRobotScoreList(String battleResults) {
-    List<RobotScore> robotScores = Lists.newArrayList();
-    String[] botScores =
-        battleResults.replaceFirst(BattleProcess.RESULT_SIGNAL, "")
-            .replaceAll("\n", "").split(BattleProcess.BOT_DELIMITER);
-    for (String scoreString : botScores) {
-      String[] scoreFields = scoreString.split(BattleProcess.SCORE_DELIMITER);
-      String botName = scoreFields[0];
-      int score = Integer.parseInt(scoreFields[1]);
-      int firsts = Integer.parseInt(scoreFields[2]);
-      int survivalScore = Integer.parseInt(scoreFields[3]);
-      double bulletDamage = Double.parseDouble(scoreFields[4]);
-      RobotScore robotScore =
-          new RobotScore(botName, score, firsts, survivalScore, bulletDamage);
-      robotScores.add(robotScore);
-    }
-    return ImmutableList.copyOf(robotScores);
+  /**
+   * Stops starting new battles in the current call to {@code runBattles}.
+   * Safe to call from a {@code BattleResultHandler}.
+   */
+  public void stopBattles() {
+    _stopped = true;
   }
 
-  private boolean isBattleResult(String line) {
-    return line != null && line.startsWith(BattleProcess.RESULT_SIGNAL);
+  private List<RobotScore> getRobotScoreList(List<RobotResult> robotResults) {
+    ImmutableList.Builder<RobotScore> robotScores = ImmutableList.builder();
+    for (RobotResult robotResult : robotResults) {
+      robotScores.add(robotResult.toRobotScore());
+    }
+    return robotScores.build();
   }
 
   public void shutdown() {
     _threadPool.shutdown();
     _callbackPool.shutdown();
+    _enginePool.shutdown();
   }
 
   public interface BattleResultHandler {
@@ -143,67 +287,405 @@ public class BattleRunner {
      * Processes the scores from a battle.
      *
      * @param robotScores scores for each robot in the battle
+     * @param numRounds number of rounds in the battle, fewer than configured
+     *     if it was stopped early
      * @param elapsedTime elapsed time of the battle, in nanoseconds
      */
-    void processResults(List<RobotScore> robotScores, long elapsedTime);
+    void processResults(
+        List<RobotScore> robotScores, int numRounds, long elapsedTime);
+
+    /**
+     * Processes the scores so far from a battle that's still running, after
+     * each round but the last. Called in order with the final
+     * {@link #processResults(List, int, long)} for the same battle.
+     *
+     * @param robotScores total scores for each robot in the rounds so far
+     * @param round number of rounds finished
+     * @param elapsedTime elapsed time of the battle so far, in nanoseconds
+     * @return true to stop the battle early, with the rounds that have
+     *     ended by the time the engine gets the request
+     */
+    boolean processRoundResults(
+        List<RobotScore> robotScores, int round, long elapsedTime);
   }
 
   public interface BattleSelector {
+    /**
+     * @return the bot list for the next battle, or null to stop starting
+     *     battles
+     */
     BotList nextBotList();
+
+    /**
+     * Called for battles from {@link #nextBotList()} that are queued on an
+     * engine but haven't started, after the results of another battle have
+     * been processed.
+     *
+     * @param botList the queued battle's bot list
+     * @return true to cancel the battle and select another one instead
+     */
+    boolean shouldRevise(BotList botList);
+
+    /**
+     * Called when a battle from {@link #nextBotList()} won't be run, because
+     * it has failed on every attempt or was cancelled.
+     *
+     * @param botList the battle's bot list
+     */
+    void battleFailed(BotList botList);
   }
 
-  private class BattleCallable implements Callable<String> {
-    private BotList _botList;
-    private BattleSelector _selector;
-    private BattleResultHandler _listener;
+  private static class QueuedBattle {
+    public final BotList botList;
+    public int battleId;
+    public ListenableFuture<BattleResult> result;
+    public int failedAttempts;
+    public boolean cancelling;
 
-    public BattleCallable(BotList botList, BattleResultHandler listener) {
-      _botList = botList;
-      _listener = listener;
+    public QueuedBattle(BotList botList) {
+      this.botList = botList;
     }
+  }
+
+  /**
+   * Runs battles back to back on one engine, keeping up to the pipeline
+   * depth of them queued on it. Results are handed to the callback thread
+   * without waiting for them to be processed. After each result, the
+   * selector may revise the battles queued behind the running one, which
+   * are cancelled and selected again. The session ends once there are no
+   * battles left to start, or the engine pool wants the engine back, and
+   * the engine's queue has drained. If the engine fails, its battles are
+   * sent to another engine.
+   */
+  private class EngineSession implements Callable<Void> {
+    private final BattleSelector _selector;
+    private final BattleResultHandler _listener;
+    private final LinkedList<QueuedBattle> _queue;
+    private final BlockingQueue<QueuedBattle> _finishedBattles;
+    private EngineHandle _engine;
+    private boolean _claimedBattle;
+    private boolean _timedOut;
+    private volatile long _headStartTime;
+    private Future<?> _lastCallback;
 
-    public BattleCallable(
+    public EngineSession(
         BattleSelector selector, BattleResultHandler listener) {
       _selector = selector;
       _listener = listener;
+      _queue = Lists.newLinkedList();
+      _finishedBattles = Queues.newLinkedBlockingQueue();
     }
 
     @Override
-    public String call() throws Exception {
-      final long startTime = System.nanoTime();
-      Process battleProcess = _processQueue.poll();
-      BufferedWriter writer = new BufferedWriter(
-          new OutputStreamWriter(battleProcess.getOutputStream()));
-      BufferedReader reader = new BufferedReader(
-          new InputStreamReader(battleProcess.getInputStream()));
-      BotList botList;
-      if (_selector == null) {
-        botList = _botList;
-      } else {
-        botList = _callbackPool.submit(new Callable<BotList>() {
+    public Void call() throws Exception {
+      _claimedBattle = claimBattle();
+      if (!_claimedBattle) {
+        return null;
+      }
+      try {
+        _engine = _enginePool.takeEngine();
+        if (_engine != null) {
+          while (true) {
+            fillQueue();
+            if (_queue.isEmpty() || !awaitBattle()) {
+              break;
+            }
+          }
+        }
+      } finally {
+        if (_engine == null) {
+          // no engine to return
+        } else if (_queue.isEmpty()) {
+          _enginePool.returnEngine(_engine);
+        } else {
+          _enginePool.engineFailed(_engine);
+        }
+        if (_claimedBattle) {
+          _battlesLeft.incrementAndGet();
+        }
+      }
+      if (_lastCallback != null) {
+        _lastCallback.get();
+      }
+      return null;
+    }
+
+    /**
+     * Selects and sends battles until the engine's pipeline is full.
+     */
+    private void fillQueue() throws Exception {
+      boolean sent = false;
+      while (_queue.size() < _pipelineDepth
+          && !_enginePool.hasExtraEngines()
+          && (_claimedBattle || claimBattle())) {
+        _claimedBattle = true;
+        BotList botList = _callbackPool.submit(new Callable<BotList>() {
           @Override
           public BotList call() throws Exception {
-            return _selector.nextBotList();
+            return _stopped ? null : _selector.nextBotList();
           }
         }).get();
+        if (botList == null) {
+          _stopped = true;
+          break;
+        }
+        _claimedBattle = false;
+        QueuedBattle battle = new QueuedBattle(botList);
+        _queue.add(battle);
+        sendBattle(battle);
+        sent = true;
       }
-      writer.append(COMMA_JOINER.join(botList.getBotNames()) + "\n");
-      writer.flush();
-      String input;
+      if (sent) {
+        _engine.flush();
+      }
+    }
+
+    private void sendBattle(final QueuedBattle battle) {
+      battle.battleId = _nextBattleId.incrementAndGet();
+      if (_queue.getFirst() == battle) {
+        _headStartTime = System.nanoTime();
+      }
+      final EngineHandle engine = _engine;
+      battle.result = _engine.sendBattle(battle.battleId,
+          battle.botList.getBotNames(), new RoundListener() {
+            @Override
+            public void roundEnded(
+                int round, List<RobotResult> robotResults) {
+              processRoundResults(engine, battle.battleId,
+                  getRobotScoreList(robotResults), round,
+                  System.nanoTime() - _headStartTime);
+            }
+          });
+      battle.result.addListener(new Runnable() {
+        @Override
+        public void run() {
+          _finishedBattles.add(battle);
+        }
+      }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Waits for the next battle on the engine to finish, fail or be
+     * cancelled, killing the engine if the running battle takes too long.
+     *
+     * @return false if there are no engines left, and the battles were
+     *     given up on
+     */
+    private boolean awaitBattle() throws Exception {
+      long timeout = _timedOut ? KILL_WAIT_NANOS
+          : getBattleTimeout() - (System.nanoTime() - _headStartTime);
+      QueuedBattle battle =
+          _finishedBattles.poll(timeout, TimeUnit.NANOSECONDS);
+      if (battle == null) {
+        if (_timedOut) {
+          return engineFailed();
+        }
+        _timedOut = true;
+        _engine.destroy();
+        return true;
+      } else if (!_queue.contains(battle) || !battle.result.isDone()) {
+        // an old result of a battle that has been sent again
+        return true;
+      }
+
+      BattleResult battleResult;
+      try {
+        battleResult = battle.result.get();
+      } catch (CancellationException e) {
+        removeBattle(battle);
+        _battlesLeft.incrementAndGet();
+        battleFailed(battle.botList);
+        return true;
+      } catch (ExecutionException e) {
+        if (!(e.getCause() instanceof BattleErrorException)) {
+          return engineFailed();
+        }
+        removeBattle(battle);
+        System.out.println("WARNING: Battle failed: "
+            + battle.botList.getBotNames() + ": " + e.getCause().getMessage());
+        if (++battle.failedAttempts < MAX_ATTEMPTS) {
+          _queue.add(battle);
+          retryBattle(battle);
+          _engine.flush();
+        } else {
+          giveUp(battle);
+        }
+        return true;
+      }
+
+      long elapsedTime = removeBattle(battle);
+      long longestTime;
       do {
-        // TODO: How to handle other output, errors etc?
-        input = reader.readLine();
-      } while (!isBattleResult(input));
-      final String result = input;
-      _processQueue.add(battleProcess);
+        longestTime = _longestBattleTime.get();
+      } while (elapsedTime > longestTime
+          && !_longestBattleTime.compareAndSet(longestTime, elapsedTime));
+      processResults(getRobotScoreList(battleResult.robotResults),
+          battleResult.numRounds, elapsedTime);
+      reviseQueue();
+      return true;
+    }
+
+    /**
+     * @return how long the battle ran, if it was running
+     */
+    private long removeBattle(QueuedBattle battle) {
+      long now = System.nanoTime();
+      long elapsedTime = now - _headStartTime;
+      if (_queue.getFirst() == battle) {
+        _headStartTime = now;
+      }
+      _queue.remove(battle);
+      return elapsedTime;
+    }
+
+    /**
+     * Cancels the battles queued behind the running one that the selector
+     * wants to revise, or all of them if battles have been stopped.
+     */
+    private void reviseQueue() throws Exception {
+      if (_queue.size() < 2) {
+        return;
+      }
+      final List<QueuedBattle> queuedBattles = Lists.newArrayList();
+      for (QueuedBattle battle : _queue.subList(1, _queue.size())) {
+        if (!battle.cancelling) {
+          queuedBattles.add(battle);
+        }
+      }
+      if (queuedBattles.isEmpty()) {
+        return;
+      }
+      List<QueuedBattle> revisedBattles =
+          _callbackPool.submit(new Callable<List<QueuedBattle>>() {
+            @Override
+            public List<QueuedBattle> call() throws Exception {
+              List<QueuedBattle> revisedBattles = Lists.newArrayList();
+              for (QueuedBattle battle : queuedBattles) {
+                if (_stopped || _selector.shouldRevise(battle.botList)) {
+                  revisedBattles.add(battle);
+                }
+              }
+              return revisedBattles;
+            }
+          }).get();
+      for (QueuedBattle battle : revisedBattles) {
+        battle.cancelling = true;
+        _engine.cancelBattle(battle.battleId);
+      }
+      if (!revisedBattles.isEmpty()) {
+        _engine.flush();
+      }
+    }
+
+    /**
+     * Replaces a failed engine and sends its battles to the new one. The
+     * running battle counts as a failed attempt, and battles being
+     * cancelled are dropped.
+     *
+     * @return false if there are no engines left, and the battles were
+     *     given up on
+     */
+    private boolean engineFailed() throws Exception {
+      List<String> botNames = _queue.getFirst().botList.getBotNames();
+      if (_timedOut) {
+        _timeouts.incrementAndGet();
+        System.out.println("WARNING: Battle timed out: " + botNames);
+      } else {
+        System.out.println("WARNING: Engine died during battle: " + botNames);
+      }
+      _enginePool.engineFailed(_engine);
+      _engine = null;
+      _timedOut = false;
+      List<QueuedBattle> battles = Lists.newArrayList(_queue);
+      _queue.clear();
+      _finishedBattles.clear();
+      for (QueuedBattle battle : battles) {
+        if (battle.cancelling) {
+          _battlesLeft.incrementAndGet();
+          battleFailed(battle.botList);
+        } else if (battle == battles.get(0)
+            && ++battle.failedAttempts >= MAX_ATTEMPTS) {
+          giveUp(battle);
+        } else {
+          _queue.add(battle);
+        }
+      }
+      _engine = _enginePool.takeEngine();
+      if (_engine == null) {
+        for (QueuedBattle battle : _queue) {
+          giveUp(battle);
+        }
+        _queue.clear();
+        return false;
+      }
+      for (QueuedBattle battle : _queue) {
+        if (battle.failedAttempts > 0) {
+          retryBattle(battle);
+        } else {
+          sendBattle(battle);
+        }
+      }
+      _engine.flush();
+      return true;
+    }
+
+    private void retryBattle(QueuedBattle battle) {
+      _retries.incrementAndGet();
+      System.out.println("Retrying battle: " + battle.botList.getBotNames());
+      sendBattle(battle);
+    }
+
+    private void giveUp(QueuedBattle battle) {
+      _failedBattles.incrementAndGet();
+      System.out.println(
+          "ERROR: Giving up on battle: " + battle.botList.getBotNames());
+      battleFailed(battle.botList);
+    }
+
+    private void battleFailed(final BotList botList) {
+      _lastCallback = _callbackPool.submit(new Runnable() {
+        @Override
+        public void run() {
+          _selector.battleFailed(botList);
+        }
+      });
+    }
+
+    /**
+     * Called on the engine's reader thread, while the battle is the head of
+     * the queue.
+     */
+    private void processRoundResults(final EngineHandle engine,
+        final int battleId, final List<RobotScore> robotScores,
+        final int round, final long elapsedTime) {
       _callbackPool.submit(new Runnable() {
         @Override
         public void run() {
-          _listener.processResults(
-              getRobotScoreList(result), System.nanoTime() - startTime);
+          try {
+            if (_listener.processRoundResults(
+                robotScores, round, elapsedTime)) {
+              engine.stopBattle(battleId);
+              engine.flush();
+            }
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+
+    private void processResults(final List<RobotScore> robotScores,
+        final int numRounds, final long elapsedTime) {
+      _lastCallback = _callbackPool.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            _listener.processResults(robotScores, numRounds, elapsedTime);
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
         }
-      }).get();
-      return result;
+      });
     }
   }
 }
@@ -0,0 +1,207 @@
+package robowiki.runner;
+
+import static robowiki.runner.RunnerUtil.getCombinedArgs;
+import static robowiki.runner.RunnerUtil.parseStringArgument;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Runs engines for a {@code RoboRunner} on another machine. The worker
+ * listens on a TCP port, tells the runner which Robocode installs it has,
+ * and starts a {@code BattleProcess} in an install for each connection that
+ * asks for one, passing the battle protocol between the connection and the
+ * engine until either side closes. If the runner connects again for an
+ * install that's already running an engine, eg after losing its
+ * connection, the old engine is killed.
+ *
+ * <p>The installs and the engines' JVM arguments are read from
+ * roborunner.properties, as for {@code RoboRunner}. The installs need the
+ * bot JARs, which the runner doesn't copy to workers. Anything the engines
+ * print goes to the worker's stderr. The worker runs whatever battles it's
+ * sent, so only run it on a trusted network.
+ */
+public class BattleWorker {
+  private static final int BUFFER_SIZE = 8192;
+
+  private final int _port;
+  private final List<String> _robocodePaths;
+  private final String _jvmArgs;
+  private final Map<String, Process> _engines;
+
+  public static void main(String[] args) {
+    args = getCombinedArgs(args);
+    int port = Integer.parseInt(parseStringArgument("port", args,
+        "Pass a port to listen on with -port"));
+    Properties runnerProperties = new Properties();
+    try {
+      runnerProperties.load(
+          new FileInputStream(RoboRunner.PROPERTIES_FILENAME));
+    } catch (FileNotFoundException e) {
+      // semi-expected, installs can be passed with -paths
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    String paths = parseStringArgument("paths", args);
+    if (paths == null) {
+      paths = runnerProperties.getProperty(RoboRunner.ROBOCODE_PATHS_PROPERTY);
+    }
+    if (paths == null) {
+      System.out.println("Pass Robocode installs with -paths, or set "
+          + RoboRunner.ROBOCODE_PATHS_PROPERTY + " in "
+          + RoboRunner.PROPERTIES_FILENAME + ".");
+      return;
+    }
+    List<String> robocodePaths = Lists.newArrayList();
+    for (String path : paths.trim().split(" *, *")) {
+      robocodePaths.add(path.replaceAll("/+$", ""));
+    }
+    String jvmArgs = runnerProperties.getProperty(
+        RoboRunner.JVM_ARGS_PROPERTY, RoboRunner.DEFAULT_JVM_ARGS);
+
+    BattleWorker worker = new BattleWorker(port, robocodePaths, jvmArgs);
+    try {
+      worker.run();
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(1);
+    }
+  }
+
+  public BattleWorker(int port, List<String> robocodePaths, String jvmArgs) {
+    _port = port;
+    _robocodePaths = Lists.newArrayList(robocodePaths);
+    _jvmArgs = jvmArgs;
+    _engines = Maps.newHashMap();
+  }
+
+  /**
+   * Accepts connections from runners until the worker is killed.
+   *
+   * @throws IOException if the port couldn't be opened
+   */
+  public void run() throws IOException {
+    ServerSocket serverSocket = new ServerSocket(_port);
+    System.out.println("Listening on port " + _port + " with Robocode "
+        + "installs: " + _robocodePaths);
+    while (true) {
+      final Socket socket = serverSocket.accept();
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          handleConnection(socket);
+        }
+      }, "BattleWorker " + socket.getRemoteSocketAddress());
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void handleConnection(Socket socket) {
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setKeepAlive(true);
+      // Not buffered, so the engine gets everything after START_ENGINE.
+      InputStream in = socket.getInputStream();
+      BattleProtocol.Reader reader = new BattleProtocol.Reader(in);
+      byte messageType = reader.readMessage();
+      if (messageType == BattleProtocol.LIST_ENGINES) {
+        BattleProtocol.Writer writer =
+            new BattleProtocol.Writer(socket.getOutputStream());
+        writer.writeEngines(_robocodePaths);
+        writer.flush();
+      } else if (messageType == BattleProtocol.START_ENGINE) {
+        runEngine(socket, in, reader.getEnginePath(), reader.getNumRounds(),
+            reader.getBattleFieldWidth(), reader.getBattleFieldHeight());
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Starts an engine and passes messages between it and the runner until
+   * the engine exits or the runner closes the connection.
+   */
+  private void runEngine(final Socket socket, final InputStream in,
+      String robocodePath, int numRounds, int battleFieldWidth,
+      int battleFieldHeight) throws IOException {
+    if (!_robocodePaths.contains(robocodePath)) {
+      System.out.println("WARNING: Not a Robocode install on this worker: "
+          + robocodePath);
+      return;
+    }
+    final Process process = new ProcessBuilder(EnginePool.buildCommand(
+        _jvmArgs, numRounds, battleFieldWidth, battleFieldHeight,
+        robocodePath)).redirectError(Redirect.INHERIT).start();
+    Process oldProcess;
+    synchronized (_engines) {
+      oldProcess = _engines.put(robocodePath, process);
+    }
+    if (oldProcess != null) {
+      System.out.println("WARNING: Replacing engine: " + robocodePath);
+      oldProcess.destroy();
+    }
+    System.out.println("Started engine: " + robocodePath + " for "
+        + socket.getRemoteSocketAddress());
+
+    Thread requestCopier = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          copy(in, process.getOutputStream());
+        } catch (IOException e) {
+          // runner or engine went away
+        }
+        process.destroy();
+      }
+    }, "BattleWorker requests " + robocodePath);
+    requestCopier.setDaemon(true);
+    requestCopier.start();
+    try {
+      copy(process.getInputStream(), socket.getOutputStream());
+    } catch (IOException e) {
+      // runner or engine went away
+    } finally {
+      process.destroy();
+      synchronized (_engines) {
+        if (_engines.get(robocodePath) == process) {
+          _engines.remove(robocodePath);
+        }
+      }
+      System.out.println("Engine finished: " + robocodePath);
+    }
+  }
+
+  /**
+   * Copies a stream, flushing after each read so messages aren't held up.
+   */
+  private static void copy(InputStream in, OutputStream out)
+      throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int bytesRead;
+    while ((bytesRead = in.read(buffer)) != -1) {
+      out.write(buffer, 0, bytesRead);
+      out.flush();
+    }
+    out.close();
+  }
+}
@@ -0,0 +1,379 @@
+package robowiki.runner;
+
+import static robowiki.runner.RunnerUtil.getCombinedArgs;
+import static robowiki.runner.RunnerUtil.parseStringArgument;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import robowiki.runner.RobotScore.ScoringStyle;
+import robowiki.runner.ScoreLog.BattleScore;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Compact binary format for a {@code ScoreLog}. Bot names are stored once in
+ * a dictionary, and the battles for each bot list are stored column by
+ * column, with every integer delta and varint encoded. Since the XML format
+ * rounds all scores to integers, converting between the two is lossless.
+ *
+ * <p>Layout, after the magic number and version byte: challenger name,
+ * sequence, bot name dictionary, then one length-prefixed block per bot list
+ * with columns for rounds, time and robots per battle, followed by columns
+ * for name, score, survival rounds, survival score and damage per robot.
+ * Since version 2, each block starts with the bot list's summary of older
+ * battles, if it has one, with its totals stored as exact doubles.
+ */
+public class BinaryScoreLog {
+  public static final String FILE_EXTENSION = ".rrlog";
+  public static final int MAGIC = 0x52524C47; // "RRLG"
+  public static final byte VERSION = 2;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  public static void main(String[] args) {
+    args = getCombinedArgs(args);
+    String inputFilePath = parseStringArgument("in", args,
+        "Pass a score log to convert with -in, eg: -in data"
+            + System.getProperty("file.separator") + "bot.xml.gz");
+    String outputFilePath = parseStringArgument("out", args,
+        "Pass an output file with -out, eg: -out bot" + FILE_EXTENSION);
+    if (inputFilePath == null || outputFilePath == null) {
+      return;
+    }
+
+    try {
+      ScoreLog scoreLog = isBinaryPath(inputFilePath)
+          ? load(inputFilePath) : ScoreLog.loadScoreLog(inputFilePath);
+      if (isBinaryPath(outputFilePath)) {
+        save(scoreLog, outputFilePath);
+      } else if (!scoreLog.saveScoreLog(outputFilePath)) {
+        System.out.println("ERROR: Failed to write " + outputFilePath);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (XMLStreamException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public static boolean isBinaryPath(String filePath) {
+    return filePath.endsWith(FILE_EXTENSION);
+  }
+
+  /**
+   * Saves a score log in binary format.
+   *
+   * @param scoreLog the score log to save
+   * @param outputFilePath path of the output file
+   * @throws IOException if the file can't be written
+   */
+  public static void save(ScoreLog scoreLog, String outputFilePath)
+      throws IOException {
+    List<BotListId> botLists = Lists.newArrayList(scoreLog.getBotLists());
+    Collections.sort(botLists);
+
+    List<String> botNames = Lists.newArrayList();
+    Map<String, Integer> botIds = Maps.newHashMap();
+    for (BotListId botList : botLists) {
+      List<BattleScore> battleScores =
+          Lists.newArrayList(scoreLog.getBattleScores(botList));
+      BotListTotals summary = scoreLog.getSummary(botList);
+      if (summary != null) {
+        battleScores.add(summary.getAverageBattleScore());
+      }
+      for (BattleScore battleScore : battleScores) {
+        for (RobotScore robotScore : battleScore.getRobotScores()) {
+          if (!botIds.containsKey(robotScore.botName)) {
+            botIds.put(robotScore.botName, botNames.size());
+            botNames.add(robotScore.botName);
+          }
+        }
+      }
+    }
+
+    VarintOutput output = new VarintOutput();
+    output.writeString(scoreLog.challenger);
+    output.writeVarLong(scoreLog.getSequence());
+    output.writeVarLong(botNames.size());
+    for (String botName : botNames) {
+      output.writeString(botName);
+    }
+    output.writeVarLong(botLists.size());
+    for (BotListId botList : botLists) {
+      VarintOutput block = new VarintOutput();
+      writeSummary(block, scoreLog.getSummary(botList), botIds);
+      writeBattles(block, scoreLog.getBattleScores(botList), botIds);
+      output.writeVarLong(block.size());
+      block.writeTo(output);
+    }
+
+    FileOutputStream fileOutputStream = new FileOutputStream(outputFilePath);
+    try {
+      ByteBuffer header = ByteBuffer.allocate(5);
+      header.putInt(MAGIC);
+      header.put(VERSION);
+      fileOutputStream.write(header.array());
+      output.writeTo(fileOutputStream);
+    } finally {
+      fileOutputStream.close();
+    }
+  }
+
+  private static void writeSummary(VarintOutput output,
+      BotListTotals summary, Map<String, Integer> botIds) {
+    if (summary == null) {
+      output.writeVarLong(0);
+      return;
+    }
+    output.writeVarLong(1);
+    output.writeVarLong(summary.getNumBattles());
+    output.writeVarLong(summary.getTotalRounds());
+    output.writeVarLong(summary.getTotalTime());
+    output.writeVarLong(summary.getScoredBattles());
+    List<RobotScore> robotTotals =
+        summary.getAverageBattleScore().getRobotScores();
+    output.writeVarLong(robotTotals.size());
+    for (RobotScore robotTotal : robotTotals) {
+      output.writeVarLong(botIds.get(robotTotal.botName));
+      output.writeDouble(robotTotal.score);
+      output.writeDouble(robotTotal.survivalRounds);
+      output.writeDouble(robotTotal.survivalScore);
+      output.writeDouble(robotTotal.bulletDamage);
+      output.writeDouble(robotTotal.energyConserved);
+      output.writeVarLong(robotTotal.numBattles);
+    }
+    for (ScoringStyle style : ScoringStyle.values()) {
+      output.writeDouble(summary.getScoreSum(style));
+      output.writeDouble(summary.getScoreSquareSum(style));
+    }
+  }
+
+  private static void writeBattles(VarintOutput output,
+      List<BattleScore> battleScores, Map<String, Integer> botIds) {
+    output.writeVarLong(battleScores.size());
+    long last = 0;
+    for (BattleScore battleScore : battleScores) {
+      last = output.writeDelta(battleScore.getNumRounds(), last);
+    }
+    last = 0;
+    for (BattleScore battleScore : battleScores) {
+      last = output.writeDelta(battleScore.getElapsedTime(), last);
+    }
+    for (BattleScore battleScore : battleScores) {
+      output.writeVarLong(battleScore.getRobotScores().size());
+    }
+
+    List<RobotScore> robotScores = Lists.newArrayList();
+    for (BattleScore battleScore : battleScores) {
+      robotScores.addAll(battleScore.getRobotScores());
+    }
+    for (RobotScore robotScore : robotScores) {
+      output.writeVarLong(botIds.get(robotScore.botName));
+    }
+    last = 0;
+    for (RobotScore robotScore : robotScores) {
+      last = output.writeDelta(Math.round(robotScore.score), last);
+    }
+    last = 0;
+    for (RobotScore robotScore : robotScores) {
+      last = output.writeDelta(Math.round(robotScore.survivalRounds), last);
+    }
+    last = 0;
+    for (RobotScore robotScore : robotScores) {
+      last = output.writeDelta(Math.round(robotScore.survivalScore), last);
+    }
+    last = 0;
+    for (RobotScore robotScore : robotScores) {
+      last = output.writeDelta(Math.round(robotScore.bulletDamage), last);
+    }
+  }
+
+  /**
+   * Reads a binary score log through a memory-mapped file.
+   *
+   * @param inputFilePath path of the binary score log
+   * @return a new {@code ScoreLog} with the scores from the input file
+   * @throws IOException if the file can't be read or isn't a score log in a
+   *     supported version of the binary format
+   */
+  public static ScoreLog load(String inputFilePath) throws IOException {
+    FileInputStream fileInputStream = new FileInputStream(inputFilePath);
+    try {
+      FileChannel channel = fileInputStream.getChannel();
+      MappedByteBuffer buffer =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 5 || buffer.getInt() != MAGIC) {
+        throw new IOException(inputFilePath + " isn't a binary score log.");
+      }
+      byte version = buffer.get();
+      if (version < 1 || version > VERSION) {
+        throw new IOException("Unsupported binary score log version "
+            + version + " in " + inputFilePath);
+      }
+      return readScoreLog(buffer, version);
+    } finally {
+      fileInputStream.close();
+    }
+  }
+
+  private static ScoreLog readScoreLog(ByteBuffer buffer, byte version) {
+    ScoreLog scoreLog = new ScoreLog(readString(buffer));
+    long sequence = readVarLong(buffer);
+    String[] botNames = new String[(int) readVarLong(buffer)];
+    for (int x = 0; x < botNames.length; x++) {
+      botNames[x] = readString(buffer);
+    }
+    long numBotLists = readVarLong(buffer);
+    for (long x = 0; x < numBotLists; x++) {
+      long blockLength = readVarLong(buffer);
+      int blockEnd = buffer.position() + (int) blockLength;
+      if (version >= 2 && readVarLong(buffer) != 0) {
+        scoreLog.addSummary(readSummary(buffer, botNames));
+      }
+      readBattles(buffer, scoreLog, botNames);
+      buffer.position(blockEnd);
+    }
+    scoreLog.setSequence(sequence);
+    return scoreLog;
+  }
+
+  private static BotListTotals readSummary(
+      ByteBuffer buffer, String[] botNames) {
+    int numBattles = (int) readVarLong(buffer);
+    int totalRounds = (int) readVarLong(buffer);
+    long totalTime = readVarLong(buffer);
+    int scoredBattles = (int) readVarLong(buffer);
+    List<RobotScore> robotTotals = Lists.newArrayList();
+    long numRobotTotals = readVarLong(buffer);
+    for (long x = 0; x < numRobotTotals; x++) {
+      robotTotals.add(new RobotScore(botNames[(int) readVarLong(buffer)],
+          buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+          buffer.getDouble(), buffer.getDouble(), (int) readVarLong(buffer)));
+    }
+    double[] scoreSums = new double[ScoringStyle.values().length];
+    double[] scoreSquareSums = new double[ScoringStyle.values().length];
+    for (ScoringStyle style : ScoringStyle.values()) {
+      scoreSums[style.ordinal()] = buffer.getDouble();
+      scoreSquareSums[style.ordinal()] = buffer.getDouble();
+    }
+    return new BotListTotals(robotTotals, numBattles, totalRounds,
+        totalTime, scoredBattles, scoreSums, scoreSquareSums);
+  }
+
+  private static void readBattles(
+      ByteBuffer buffer, ScoreLog scoreLog, String[] botNames) {
+    int numBattles = (int) readVarLong(buffer);
+    long[] numRounds = readDeltaColumn(buffer, numBattles);
+    long[] times = readDeltaColumn(buffer, numBattles);
+    int[] robotCounts = new int[numBattles];
+    int numRobotScores = 0;
+    for (int x = 0; x < numBattles; x++) {
+      robotCounts[x] = (int) readVarLong(buffer);
+      numRobotScores += robotCounts[x];
+    }
+    int[] nameIds = new int[numRobotScores];
+    for (int x = 0; x < numRobotScores; x++) {
+      nameIds[x] = (int) readVarLong(buffer);
+    }
+    long[] scores = readDeltaColumn(buffer, numRobotScores);
+    long[] survivalRounds = readDeltaColumn(buffer, numRobotScores);
+    long[] survivalScores = readDeltaColumn(buffer, numRobotScores);
+    long[] damages = readDeltaColumn(buffer, numRobotScores);
+
+    int robotIndex = 0;
+    for (int x = 0; x < numBattles; x++) {
+      List<RobotScore> robotScores = Lists.newArrayList();
+      for (int y = 0; y < robotCounts[x]; y++) {
+        robotScores.add(new RobotScore(botNames[nameIds[robotIndex]],
+            scores[robotIndex], survivalRounds[robotIndex],
+            survivalScores[robotIndex], damages[robotIndex]));
+        robotIndex++;
+      }
+      scoreLog.addBattle(robotScores, (int) numRounds[x], times[x]);
+    }
+  }
+
+  private static long[] readDeltaColumn(ByteBuffer buffer, int length) {
+    long[] values = new long[length];
+    long last = 0;
+    for (int x = 0; x < length; x++) {
+      last += decodeZigZag(readVarLong(buffer));
+      values[x] = last;
+    }
+    return values;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[(int) readVarLong(buffer)];
+    buffer.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private static long readVarLong(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= ((long) (b & 0x7F)) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static long encodeZigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long decodeZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static class VarintOutput extends ByteArrayOutputStream {
+    public void writeVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    /**
+     * Writes the zig-zag encoded difference from the previous value in a
+     * column.
+     *
+     * @return the value written, to be passed as {@code last} for the next
+     *     value in the column
+     */
+    public long writeDelta(long value, long last) {
+      writeVarLong(encodeZigZag(value - last));
+      return value;
+    }
+
+    public void writeDouble(double value) {
+      long bits = Double.doubleToLongBits(value);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        write((int) (bits >>> shift));
+      }
+    }
+
+    public void writeString(String s) {
+      byte[] bytes = s.getBytes(UTF8);
+      writeVarLong(bytes.length);
+      write(bytes, 0, bytes.length);
+    }
+  }
+}
@@ -0,0 +1,344 @@
+package robowiki.runner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import robowiki.runner.ChallengeConfig.BotListGroup;
+import robowiki.runner.RobotScore.ScoringStyle;
+import robowiki.runner.ScoreLog.BattleScore;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Percentile confidence intervals of a challenger's scores in a challenge,
+ * from bootstrap resampling of the battle scores recorded against each bot
+ * list. Unlike {@link ScoreError#generateRandomAverageScore()}, this doesn't
+ * assume the scores against a bot list are normally distributed, which they
+ * often aren't, eg against rammers.
+ *
+ * <p>Resamples are generated on a fork/join pool. The iterations are split
+ * into a fixed tree of tasks, and each task gets its own
+ * {@code SplittableRandom}, split from its parent's, so the intervals depend
+ * only on the seed and not on the number of threads.
+ *
+ * <p>Each resample is an average of (score, rounds) pairs weighted by their
+ * rounds, like {@link ScoreError}, so battles that were stopped early count
+ * for the rounds they ran and the intervals describe the same average as
+ * the scores they're printed with.
+ *
+ * <p>Battles that are only kept as a summary can't be resampled. For bot
+ * lists with a summary, the battle history is resampled and the resampled
+ * averages are moved and scaled to match the average and the number of all
+ * the battles.
+ */
+public class BootstrapScore {
+  private static final int TASK_ITERATIONS = 64;
+
+  public final double confidenceLevel;
+  public final int iterations;
+  private final Interval _overallInterval;
+  private final Map<String, Interval> _groupIntervals;
+  private final Map<BotListId, Interval> _botListIntervals;
+
+  private BootstrapScore(double confidenceLevel, int iterations,
+      Interval overallInterval, Map<String, Interval> groupIntervals,
+      Map<BotListId, Interval> botListIntervals) {
+    this.confidenceLevel = confidenceLevel;
+    this.iterations = iterations;
+    _overallInterval = overallInterval;
+    _groupIntervals = ImmutableMap.copyOf(groupIntervals);
+    _botListIntervals = ImmutableMap.copyOf(botListIntervals);
+  }
+
+  /**
+   * Resamples a challenger's battle scores in a challenge.
+   *
+   * @param scoreLog the challenger's score log
+   * @param challenge the challenge
+   * @param confidenceLevel confidence level of the intervals, eg 0.95
+   * @param iterations number of resamples
+   * @param seed seed of the random resamples
+   * @param pool the fork/join pool to resample on
+   * @return the confidence intervals, or null if there are no battles
+   *     against any of the challenge's bot lists
+   */
+  public static BootstrapScore resample(ScoreLog scoreLog,
+      ChallengeConfig challenge, double confidenceLevel, int iterations,
+      long seed, ForkJoinPool pool) {
+    ScoringStyle scoringStyle = challenge.scoringStyle;
+    List<BotListId> botLists = Lists.newArrayList();
+    List<double[]> battleScores = Lists.newArrayList();
+    List<int[]> battleRounds = Lists.newArrayList();
+    List<ScoreError> scoreErrors = Lists.newArrayList();
+    for (BotList botList : challenge.allReferenceBots) {
+      BotListId botListId = botList.getBotListId();
+      if (!botLists.contains(botListId) && scoreLog.hasBotList(botListId)) {
+        double[] scores =
+            getBattleScores(scoreLog, botListId, scoringStyle);
+        if (scores.length > 0) {
+          botLists.add(botListId);
+          battleScores.add(scores);
+          battleRounds.add(getBattleRounds(scoreLog, botListId));
+          scoreErrors.add(scoreLog.getScoreError(botListId, scoringStyle));
+        }
+      }
+    }
+    if (botLists.isEmpty()) {
+      return null;
+    }
+
+    List<String> groupNames = Lists.newArrayList();
+    List<int[]> groupBotLists = Lists.newArrayList();
+    if (challenge.hasGroups()) {
+      for (BotListGroup group : challenge.referenceBotGroups) {
+        int[] indexes = getIndexes(botLists, group.referenceBots);
+        if (indexes.length > 0) {
+          groupNames.add(group.name);
+          groupBotLists.add(indexes);
+        }
+      }
+    }
+
+    Resamples resamples = new Resamples(
+        battleScores.toArray(new double[0][]),
+        battleRounds.toArray(new int[0][]),
+        groupBotLists.toArray(new int[0][]), iterations);
+    for (int x = 0; x < botLists.size(); x++) {
+      double[] scores = resamples.battleScores[x];
+      int[] rounds = resamples.battleRounds[x];
+      ScoreError scoreError = scoreErrors.get(x);
+      if (scoreError.getNumBattles() > scores.length) {
+        double scoreTotal = 0;
+        long roundsTotal = 0;
+        for (int y = 0; y < scores.length; y++) {
+          scoreTotal += scores[y] * rounds[y];
+          roundsTotal += rounds[y];
+        }
+        resamples.historyAverages[x] = scoreTotal / roundsTotal;
+        resamples.averages[x] = scoreError.getAverage();
+        resamples.scales[x] =
+            Math.sqrt(((double) scores.length) / scoreError.getNumBattles());
+      }
+    }
+    pool.invoke(new ResampleTask(
+        resamples, 0, iterations, new SplittableRandom(seed)));
+
+    Map<BotListId, Interval> botListIntervals = Maps.newHashMap();
+    for (int x = 0; x < botLists.size(); x++) {
+      botListIntervals.put(botLists.get(x),
+          Interval.fromResamples(resamples.botListScores[x], confidenceLevel));
+    }
+    Map<String, Interval> groupIntervals = Maps.newLinkedHashMap();
+    for (int x = 0; x < groupNames.size(); x++) {
+      groupIntervals.put(groupNames.get(x),
+          Interval.fromResamples(resamples.groupScores[x], confidenceLevel));
+    }
+    return new BootstrapScore(confidenceLevel, iterations,
+        Interval.fromResamples(resamples.overallScores, confidenceLevel),
+        groupIntervals, botListIntervals);
+  }
+
+  private static double[] getBattleScores(
+      ScoreLog scoreLog, BotListId botList, ScoringStyle scoringStyle) {
+    List<BattleScore> battleScores = scoreLog.getBattleScores(botList);
+    double[] scores = new double[battleScores.size()];
+    int numScores = 0;
+    for (BattleScore battleScore : battleScores) {
+      if (battleScore.getRobotScore(scoreLog.challenger) != null) {
+        scores[numScores++] = scoringStyle.getScore(
+            battleScore.getRelativeTotalScore(scoreLog.challenger));
+      }
+    }
+    return Arrays.copyOf(scores, numScores);
+  }
+
+  /**
+   * @return the rounds of each battle from
+   *     {@link #getBattleScores(ScoreLog, BotListId, ScoringStyle)}, at
+   *     least 1, as {@link BotListTotals} weights them
+   */
+  private static int[] getBattleRounds(ScoreLog scoreLog, BotListId botList) {
+    List<BattleScore> battleScores = scoreLog.getBattleScores(botList);
+    int[] rounds = new int[battleScores.size()];
+    int numRounds = 0;
+    for (BattleScore battleScore : battleScores) {
+      if (battleScore.getRobotScore(scoreLog.challenger) != null) {
+        rounds[numRounds++] = Math.max(1, battleScore.getNumRounds());
+      }
+    }
+    return Arrays.copyOf(rounds, numRounds);
+  }
+
+  private static int[] getIndexes(
+      List<BotListId> botLists, List<BotList> groupBotLists) {
+    int[] indexes = new int[groupBotLists.size()];
+    int numIndexes = 0;
+    for (BotList botList : groupBotLists) {
+      int index = botLists.indexOf(botList.getBotListId());
+      if (index >= 0) {
+        indexes[numIndexes++] = index;
+      }
+    }
+    return Arrays.copyOf(indexes, numIndexes);
+  }
+
+  /**
+   * @return confidence interval of the overall score
+   */
+  public Interval getOverallInterval() {
+    return _overallInterval;
+  }
+
+  /**
+   * @return confidence interval of the score against each group of
+   *     reference bots that has any battles, in the order they appear in the
+   *     challenge, or an empty map if the challenge doesn't have groups
+   */
+  public Map<String, Interval> getGroupIntervals() {
+    return _groupIntervals;
+  }
+
+  /**
+   * @param botList the bot list
+   * @return confidence interval of the average score against the bot list,
+   *     or null if there are no battles against it
+   */
+  public Interval getBotListInterval(BotListId botList) {
+    return _botListIntervals.get(botList);
+  }
+
+  public static class Interval {
+    public final double lower;
+    public final double upper;
+
+    public Interval(double lower, double upper) {
+      this.lower = lower;
+      this.upper = upper;
+    }
+
+    static Interval fromResamples(double[] scores, double confidenceLevel) {
+      double[] sortedScores = scores.clone();
+      Arrays.sort(sortedScores);
+      double tail = (1 - confidenceLevel) / 2;
+      int last = sortedScores.length - 1;
+      return new Interval(sortedScores[(int) Math.round(tail * last)],
+          sortedScores[(int) Math.round((1 - tail) * last)]);
+    }
+
+    @Override
+    public String toString() {
+      return "[" + RunnerUtil.round(lower, 2) + ", "
+          + RunnerUtil.round(upper, 2) + "]";
+    }
+  }
+
+  /**
+   * The battle scores and rounds being resampled and the resampled averages,
+   * indexed by bot list or group and then by iteration. Each task writes a
+   * separate range of iterations. A bot list's resampled averages are moved
+   * from its history average to its overall average and scaled, which leaves
+   * them unchanged unless the bot list has a summary.
+   */
+  private static class Resamples {
+    public final double[][] battleScores;
+    public final int[][] battleRounds;
+    public final int[][] groupBotLists;
+    public final double[] historyAverages;
+    public final double[] averages;
+    public final double[] scales;
+    public final double[][] botListScores;
+    public final double[][] groupScores;
+    public final double[] overallScores;
+
+    public Resamples(double[][] battleScores, int[][] battleRounds,
+        int[][] groupBotLists, int iterations) {
+      this.battleScores = battleScores;
+      this.battleRounds = battleRounds;
+      this.groupBotLists = groupBotLists;
+      historyAverages = new double[battleScores.length];
+      averages = new double[battleScores.length];
+      scales = new double[battleScores.length];
+      Arrays.fill(scales, 1);
+      botListScores = new double[battleScores.length][iterations];
+      groupScores = new double[groupBotLists.length][iterations];
+      overallScores = new double[iterations];
+    }
+  }
+
+  private static class ResampleTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Resamples _resamples;
+    private final int _start;
+    private final int _end;
+    private final SplittableRandom _random;
+
+    public ResampleTask(
+        Resamples resamples, int start, int end, SplittableRandom random) {
+      _resamples = resamples;
+      _start = start;
+      _end = end;
+      _random = random;
+    }
+
+    @Override
+    protected void compute() {
+      if (_end - _start <= TASK_ITERATIONS) {
+        for (int x = _start; x < _end; x++) {
+          resample(x);
+        }
+      } else {
+        int middle = (_start + _end) >>> 1;
+        invokeAll(
+            new ResampleTask(_resamples, _start, middle, _random.split()),
+            new ResampleTask(_resamples, middle, _end, _random));
+      }
+    }
+
+    private void resample(int iteration) {
+      double[][] battleScores = _resamples.battleScores;
+      double overallTotal = 0;
+      for (int x = 0; x < battleScores.length; x++) {
+        double[] scores = battleScores[x];
+        int[] rounds = _resamples.battleRounds[x];
+        double scoreTotal = 0;
+        long roundsTotal = 0;
+        for (int y = 0; y < scores.length; y++) {
+          int battle = _random.nextInt(scores.length);
+          scoreTotal += scores[battle] * rounds[battle];
+          roundsTotal += rounds[battle];
+        }
+        double averageScore = _resamples.averages[x]
+            + ((scoreTotal / roundsTotal) - _resamples.historyAverages[x])
+                * _resamples.scales[x];
+        _resamples.botListScores[x][iteration] = averageScore;
+        overallTotal += averageScore;
+      }
+
+      int[][] groupBotLists = _resamples.groupBotLists;
+      if (groupBotLists.length > 0) {
+        overallTotal = 0;
+        for (int x = 0; x < groupBotLists.length; x++) {
+          double groupTotal = 0;
+          for (int botList : groupBotLists[x]) {
+            groupTotal += _resamples.botListScores[botList][iteration];
+          }
+          double groupScore = groupTotal / groupBotLists[x].length;
+          _resamples.groupScores[x][iteration] = groupScore;
+          overallTotal += groupScore;
+        }
+        _resamples.overallScores[iteration] =
+            overallTotal / groupBotLists.length;
+      } else {
+        _resamples.overallScores[iteration] =
+            overallTotal / battleScores.length;
+      }
+    }
+  }
+}
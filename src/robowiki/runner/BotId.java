@@ -0,0 +1,55 @@
+package robowiki.runner;
+
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * Interned identifier for a bot name. There's only ever one {@code BotId}
+ * for each name, so they can be compared with {@code ==} and hash by their
+ * int ID.
+ */
+public final class BotId {
+  private static final ConcurrentMap<String, BotId> BOT_IDS =
+      Maps.newConcurrentMap();
+
+  public final int id;
+  public final String name;
+
+  private BotId(int id, String name) {
+    this.id = id;
+    this.name = name;
+  }
+
+  /**
+   * @param name the bot name
+   * @return the {@code BotId} for the bot name
+   */
+  public static BotId of(String name) {
+    BotId botId = BOT_IDS.get(name);
+    if (botId == null) {
+      botId = register(Preconditions.checkNotNull(name));
+    }
+    return botId;
+  }
+
+  private static synchronized BotId register(String name) {
+    BotId botId = BOT_IDS.get(name);
+    if (botId == null) {
+      botId = new BotId(BOT_IDS.size(), name);
+      BOT_IDS.put(name, botId);
+    }
+    return botId;
+  }
+
+  @Override
+  public int hashCode() {
+    return id;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -7,6 +7,7 @@ import com.google.common.collect.Lists;
 
 public class BotList {
   private List<String> _botNames;
+  private BotListId _botListId;
 
   public BotList(String botName) {
     _botNames = Lists.newArrayList(botName);
@@ -19,4 +20,11 @@ public class BotList {
   public List<String> getBotNames() {
     return ImmutableList.copyOf(_botNames);
   }
+
+  public BotListId getBotListId() {
+    if (_botListId == null) {
+      _botListId = BotListId.of(_botNames);
+    }
+    return _botListId;
+  }
 }
@@ -0,0 +1,143 @@
+package robowiki.runner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Interned identifier for a bot list, which is a list of bot names in no
+ * particular order. There's only ever one {@code BotListId} for each bot
+ * list, so they can be compared with {@code ==} and hash by their int ID.
+ * Looking one up only sorts the bots' int IDs; the sorted, comma-joined
+ * form used in score files is built once, when the bot list is first seen.
+ */
+public final class BotListId implements Comparable<BotListId> {
+  private static final Joiner COMMA_JOINER = Joiner.on(",");
+  private static final Splitter COMMA_SPLITTER = Splitter.on(",");
+  private static final ConcurrentMap<BotIdsKey, BotListId> BOT_LIST_IDS =
+      Maps.newConcurrentMap();
+
+  public final int id;
+  private final List<String> _botNames;
+  private final String _botListString;
+
+  private BotListId(int id, List<String> botNames) {
+    this.id = id;
+    List<String> sortedBotNames = Lists.newArrayList(botNames);
+    Collections.sort(sortedBotNames);
+    _botNames = ImmutableList.copyOf(sortedBotNames);
+    _botListString = COMMA_JOINER.join(_botNames);
+  }
+
+  /**
+   * @param botNames names of the bots in the bot list, in any order
+   * @return the {@code BotListId} for the bot list
+   */
+  public static BotListId of(List<String> botNames) {
+    int[] botIds = new int[botNames.size()];
+    for (int x = 0; x < botIds.length; x++) {
+      botIds[x] = BotId.of(botNames.get(x)).id;
+    }
+    return of(botIds, botNames);
+  }
+
+  /**
+   * @param robotScores scores for each robot in a battle
+   * @param challenger name of the challenger, which is left out of the bot
+   *     list
+   * @return the {@code BotListId} for the bots the challenger faced
+   */
+  public static BotListId of(List<RobotScore> robotScores, String challenger) {
+    List<String> botNames = Lists.newArrayListWithCapacity(robotScores.size());
+    for (RobotScore robotScore : robotScores) {
+      botNames.add(robotScore.botName);
+    }
+    botNames.remove(challenger);
+    return of(botNames);
+  }
+
+  /**
+   * @param botListString a sorted, comma-joined bot list, as returned by
+   *     {@link #toString}
+   * @return the {@code BotListId} for the bot list
+   */
+  public static BotListId parse(String botListString) {
+    if (botListString.isEmpty()) {
+      return of(ImmutableList.<String>of());
+    }
+    return of(Lists.newArrayList(COMMA_SPLITTER.split(botListString)));
+  }
+
+  private static BotListId of(int[] botIds, List<String> botNames) {
+    Arrays.sort(botIds);
+    BotIdsKey key = new BotIdsKey(botIds);
+    BotListId botListId = BOT_LIST_IDS.get(key);
+    if (botListId == null) {
+      botListId = register(key, botNames);
+    }
+    return botListId;
+  }
+
+  private static synchronized BotListId register(
+      BotIdsKey key, List<String> botNames) {
+    BotListId botListId = BOT_LIST_IDS.get(key);
+    if (botListId == null) {
+      botListId = new BotListId(BOT_LIST_IDS.size(), botNames);
+      BOT_LIST_IDS.put(key, botListId);
+    }
+    return botListId;
+  }
+
+  /**
+   * @return names of the bots in the bot list, sorted
+   */
+  public List<String> getBotNames() {
+    return _botNames;
+  }
+
+  @Override
+  public int hashCode() {
+    return id;
+  }
+
+  @Override
+  public int compareTo(BotListId that) {
+    return _botListString.compareTo(that._botListString);
+  }
+
+  /**
+   * @return the sorted, comma-joined bot names
+   */
+  @Override
+  public String toString() {
+    return _botListString;
+  }
+
+  private static class BotIdsKey {
+    private final int[] _botIds;
+    private final int _hashCode;
+
+    public BotIdsKey(int[] botIds) {
+      _botIds = botIds;
+      _hashCode = Arrays.hashCode(botIds);
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof BotIdsKey
+          && Arrays.equals(_botIds, ((BotIdsKey) o)._botIds);
+    }
+  }
+}
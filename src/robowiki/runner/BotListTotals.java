@@ -0,0 +1,261 @@
+package robowiki.runner;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import robowiki.runner.RobotScore.ScoringStyle;
+import robowiki.runner.ScoreLog.BattleScore;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Running totals of the battles against a bot list. Each robot's score is
+ * combined into its total with {@link RobotScore#addScores}, in the same
+ * order the battles were added. A robot that appears more than once in a
+ * battle has one total per appearance, and its scores rotate through those
+ * totals.
+ *
+ * <p>For each {@code ScoringStyle}, a {@code ScoreError} of the
+ * challenger's score in each battle is kept too, with each battle weighted
+ * by its number of rounds, so battles that were stopped early count for
+ * only the rounds they ran.
+ */
+public class BotListTotals {
+  private static final int NUM_STYLES = ScoringStyle.values().length;
+
+  private final List<String> _botNames;
+  private final Map<String, LinkedList<RobotScore>> _robotTotals;
+  private int _numBattles;
+  private int _totalRounds;
+  private long _totalTime;
+  private int _scoredBattles;
+  private final ScoreError[] _scoreErrors;
+
+  public BotListTotals() {
+    _botNames = Lists.newArrayList();
+    _robotTotals = Maps.newHashMap();
+    _numBattles = 0;
+    _totalRounds = 0;
+    _totalTime = 0;
+    _scoredBattles = 0;
+    _scoreErrors = new ScoreError[NUM_STYLES];
+    for (int x = 0; x < NUM_STYLES; x++) {
+      _scoreErrors[x] = new ScoreError();
+    }
+  }
+
+  public BotListTotals(BotListTotals totals) {
+    _botNames = Lists.newArrayList(totals._botNames);
+    _robotTotals = copyRobotTotals(totals._robotTotals);
+    _numBattles = totals._numBattles;
+    _totalRounds = totals._totalRounds;
+    _totalTime = totals._totalTime;
+    _scoredBattles = totals._scoredBattles;
+    _scoreErrors = new ScoreError[NUM_STYLES];
+    for (int x = 0; x < NUM_STYLES; x++) {
+      _scoreErrors[x] = new ScoreError(totals._scoreErrors[x]);
+    }
+  }
+
+  BotListTotals(List<String> botNames,
+      Map<String, ? extends List<RobotScore>> robotTotals, int numBattles,
+      int totalRounds, long totalTime, int scoredBattles, double[] scoreSums,
+      double[] scoreSquareSums) {
+    _botNames = Lists.newArrayList(botNames);
+    _robotTotals = copyRobotTotals(robotTotals);
+    _numBattles = numBattles;
+    _totalRounds = totalRounds;
+    _totalTime = totalTime;
+    _scoredBattles = scoredBattles;
+    _scoreErrors = restoreScoreErrors(scoredBattles, scoreSums,
+        scoreSquareSums, totalTime, totalRounds, numBattles);
+  }
+
+  /**
+   * Restores totals from the robot totals listed in the same order as
+   * {@link #getAverageBattleScore}, and the rest of the totals' state.
+   */
+  BotListTotals(List<RobotScore> robotTotals, int numBattles,
+      int totalRounds, long totalTime, int scoredBattles, double[] scoreSums,
+      double[] scoreSquareSums) {
+    _botNames = Lists.newArrayList();
+    _robotTotals = Maps.newHashMap();
+    for (RobotScore robotScore : robotTotals) {
+      if (!_robotTotals.containsKey(robotScore.botName)) {
+        _robotTotals.put(
+            robotScore.botName, Lists.<RobotScore>newLinkedList());
+      }
+      _botNames.add(robotScore.botName);
+      _robotTotals.get(robotScore.botName).add(robotScore);
+    }
+    _numBattles = numBattles;
+    _totalRounds = totalRounds;
+    _totalTime = totalTime;
+    _scoredBattles = scoredBattles;
+    _scoreErrors = restoreScoreErrors(scoredBattles, scoreSums,
+        scoreSquareSums, totalTime, totalRounds, numBattles);
+  }
+
+  private static Map<String, LinkedList<RobotScore>> copyRobotTotals(
+      Map<String, ? extends List<RobotScore>> robotTotals) {
+    Map<String, LinkedList<RobotScore>> robotTotalsCopy = Maps.newHashMap();
+    for (Map.Entry<String, ? extends List<RobotScore>> entry
+        : robotTotals.entrySet()) {
+      robotTotalsCopy.put(
+          entry.getKey(), Lists.newLinkedList(entry.getValue()));
+    }
+    return robotTotalsCopy;
+  }
+
+  /**
+   * Score errors are saved as sums and sums of squares of the scores. The
+   * time and rounds of the scored battles aren't saved, so they're assumed
+   * to be the same as the average battle.
+   */
+  private static ScoreError[] restoreScoreErrors(int scoredBattles,
+      double[] scoreSums, double[] scoreSquareSums, long totalTime,
+      int totalRounds, int numBattles) {
+    double scoredTime = (numBattles == 0)
+        ? 0 : ((double) totalTime) * scoredBattles / numBattles;
+    double scoredRounds = (numBattles == 0)
+        ? 0 : ((double) totalRounds) * scoredBattles / numBattles;
+    ScoreError[] scoreErrors = new ScoreError[NUM_STYLES];
+    for (int x = 0; x < NUM_STYLES; x++) {
+      scoreErrors[x] = new ScoreError(scoredBattles, scoredRounds,
+          scoreSums[x], scoreSquareSums[x], scoredTime);
+    }
+    return scoreErrors;
+  }
+
+  /**
+   * Adds a battle to the totals.
+   *
+   * @param battleScore the scores from the battle
+   * @param challenger name of the challenger, whose relative score is added
+   *     to the score sums
+   */
+  public void addBattle(BattleScore battleScore, String challenger) {
+    for (RobotScore robotScore : battleScore.getRobotScores()) {
+      LinkedList<RobotScore> totals = _robotTotals.get(robotScore.botName);
+      if (totals == null) {
+        totals = Lists.newLinkedList();
+        _robotTotals.put(robotScore.botName, totals);
+      }
+      if (_numBattles == 0 || totals.isEmpty()) {
+        _botNames.add(robotScore.botName);
+        totals.add(robotScore);
+      } else {
+        totals.add(RobotScore.addScores(totals.removeFirst(), robotScore));
+      }
+    }
+    _numBattles++;
+    _totalRounds += battleScore.getNumRounds();
+    _totalTime += battleScore.getElapsedTime();
+
+    if (battleScore.getRobotScore(challenger) != null) {
+      RobotScore relativeScore = battleScore.getRelativeTotalScore(challenger);
+      // a battle without rounds would have no weight, which older score
+      // logs could have from a missing round count
+      int weight = Math.max(1, battleScore.getNumRounds());
+      for (ScoringStyle style : ScoringStyle.values()) {
+        _scoreErrors[style.ordinal()].addScore(style.getScore(relativeScore),
+            weight, battleScore.getElapsedTime());
+      }
+      _scoredBattles++;
+    }
+  }
+
+  /**
+   * Averages each robot's score over the battles. Scores in each battle are
+   * totals over its rounds, so a battle counts in proportion to its rounds.
+   * The average battle's number of rounds is rounded down if battles were
+   * stopped early, so use {@link #getWholeRoundsAverageBattleScore()} for
+   * per-round scores.
+   */
+  public BattleScore getAverageBattleScore() {
+    List<RobotScore> averageScores = Lists.newArrayList();
+    Map<String, Integer> botIndexes = Maps.newHashMap();
+    for (String botName : _botNames) {
+      int botIndex =
+          botIndexes.containsKey(botName) ? botIndexes.get(botName) : 0;
+      averageScores.add(_robotTotals.get(botName).get(botIndex));
+      botIndexes.put(botName, botIndex + 1);
+    }
+    return new BattleScore(averageScores,
+        _totalRounds / _numBattles, _totalTime / _numBattles);
+  }
+
+  /**
+   * Like {@link #getAverageBattleScore()}, but with each robot's average
+   * scaled to the nearest whole number of rounds, so per-round scores like
+   * bullet damage per round are right when battles had different numbers of
+   * rounds.
+   */
+  public BattleScore getWholeRoundsAverageBattleScore() {
+    BattleScore averageScore = getAverageBattleScore();
+    if (_totalRounds % _numBattles == 0) {
+      return averageScore;
+    }
+    double averageRounds = ((double) _totalRounds) / _numBattles;
+    int numRounds = (int) Math.max(1, Math.round(averageRounds));
+    double scale = numRounds / averageRounds;
+    List<RobotScore> scaledScores = Lists.newArrayList();
+    for (RobotScore robotScore : averageScore.getRobotScores()) {
+      scaledScores.add(new RobotScore(robotScore.botName,
+          robotScore.score * scale, robotScore.survivalRounds * scale,
+          robotScore.survivalScore * scale, robotScore.bulletDamage * scale,
+          robotScore.energyConserved, robotScore.numBattles));
+    }
+    return new BattleScore(
+        scaledScores, numRounds, averageScore.getElapsedTime());
+  }
+
+  /**
+   * @param scoringStyle the scoring style
+   * @return a copy of the distribution of the challenger's scores against
+   *     this bot list under the given scoring style
+   */
+  public ScoreError getScoreError(ScoringStyle scoringStyle) {
+    return new ScoreError(_scoreErrors[scoringStyle.ordinal()]);
+  }
+
+  public int getNumBattles() {
+    return _numBattles;
+  }
+
+  List<String> getBotNames() {
+    return ImmutableList.copyOf(_botNames);
+  }
+
+  Map<String, List<RobotScore>> getRobotTotals() {
+    Map<String, List<RobotScore>> robotTotals = Maps.newLinkedHashMap();
+    for (String botName : _botNames) {
+      robotTotals.put(botName, ImmutableList.copyOf(_robotTotals.get(botName)));
+    }
+    return ImmutableMap.copyOf(robotTotals);
+  }
+
+  int getTotalRounds() {
+    return _totalRounds;
+  }
+
+  long getTotalTime() {
+    return _totalTime;
+  }
+
+  int getScoredBattles() {
+    return _scoredBattles;
+  }
+
+  double getScoreSum(ScoringStyle scoringStyle) {
+    return _scoreErrors[scoringStyle.ordinal()].getSum();
+  }
+
+  double getScoreSquareSum(ScoringStyle scoringStyle) {
+    return _scoreErrors[scoringStyle.ordinal()].getSquareSum();
+  }
+}
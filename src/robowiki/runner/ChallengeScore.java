@@ -0,0 +1,357 @@
+package robowiki.runner;
+
+import static robowiki.runner.RunnerUtil.round;
+
+import java.util.List;
+import java.util.Map;
+
+import robowiki.runner.ChallengeConfig.BotListGroup;
+import robowiki.runner.RobotScore.ScoringStyle;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A challenger's scores in a challenge: the overall score and its confidence
+ * interval, the score against each group of reference bots, and the row for
+ * the challenge's results table on the RoboWiki.
+ */
+public class ChallengeScore {
+  public final String challenger;
+  public final double overallScore;
+  public final double confidence;
+  public final boolean hasConfidence;
+  public final double simulatedConfidence;
+  public final boolean hasSimulatedConfidence;
+  public final double numSeasons;
+  public final int scoredBotLists;
+  public final int numBotLists;
+  private final Map<String, Double> _groupScores;
+  private final String _wikiScores;
+
+  ChallengeScore(String challenger, double overallScore,
+      double confidence, boolean hasConfidence, double simulatedConfidence,
+      boolean hasSimulatedConfidence, double numSeasons, int scoredBotLists,
+      int numBotLists, Map<String, Double> groupScores, String wikiScores) {
+    this.challenger = challenger;
+    this.overallScore = overallScore;
+    this.confidence = confidence;
+    this.hasConfidence = hasConfidence;
+    this.simulatedConfidence = simulatedConfidence;
+    this.hasSimulatedConfidence = hasSimulatedConfidence;
+    this.numSeasons = numSeasons;
+    this.scoredBotLists = scoredBotLists;
+    this.numBotLists = numBotLists;
+    _groupScores = ImmutableMap.copyOf(groupScores);
+    _wikiScores = wikiScores;
+  }
+
+  /**
+   * Scores a challenger in a challenge. The confidence interval is
+   * calculated from the standard error against each bot list. It can also be
+   * simulated by generating random scores against each bot list, which is
+   * much slower but useful to check the calculation.
+   *
+   * @param scoreLog the challenger's score log
+   * @param challenge the challenge
+   * @param errorMap score distribution against each bot list
+   * @param simulateConfidence true to also simulate the confidence interval
+   * @param finalScore true to spend more time on a precise simulated
+   *     confidence interval
+   * @return the challenger's scores
+   */
+  public static ChallengeScore score(ScoreLog scoreLog,
+      ChallengeConfig challenge, Map<BotListId, ScoreError> errorMap,
+      boolean simulateConfidence, boolean finalScore) {
+    ScoringStyle scoringStyle = challenge.scoringStyle;
+    ScoreSummary scoreSummary = getScoreSummary(
+        scoreLog, challenge.allReferenceBots, scoringStyle);
+    int challengeBotLists = challenge.allReferenceBots.size();
+    double numSeasons =
+        round(((double) scoreSummary.numBattles) / challengeBotLists, 2);
+    double overallScore;
+    Map<String, Double> groupScores = Maps.newLinkedHashMap();
+    StringBuilder wikiScores = new StringBuilder();
+    wikiScores.append("| [[").append(
+            scoreLog.challenger.replaceAll("^[^ ]*\\.", "").replace(" ", "]] "))
+        .append(" || [[User:Author|Author]] || Type || ");
+
+    boolean showConfidence = hasConfidence(scoreSummary.numBattles,
+        getMinBattles(challenge.allReferenceBots, errorMap));
+    boolean showSimulatedConfidence = showConfidence && simulateConfidence;
+    int simulatedIterations = !showSimulatedConfidence ? 0
+        : (finalScore ? Math.min(20000, 10000000 / scoreSummary.numBattles)
+                      : Math.min(1000, 100000 / scoreSummary.numBattles));
+    double confidence = 0;
+    double simulatedConfidence = 0;
+    if (challenge.hasGroups()) {
+      double sumGroups = 0;
+      int scoredGroups = 0;
+      for (BotListGroup group : challenge.referenceBotGroups) {
+        if (group.referenceBots.size() > 1) {
+          for (BotList botList : group.referenceBots) {
+            double wikiScore = getWikiScore(scoreLog, botList, scoringStyle);
+            wikiScores.append(wikiScore).append(" || ");
+          }
+        }
+        ScoreSummary summary = getScoreSummary(
+            scoreLog, group.referenceBots, scoringStyle);
+        double groupScore = summary.getTotalScore();
+        groupScores.put(group.name, groupScore);
+        wikiScores.append("'''").append(groupScore).append("''' || ");
+        if (summary.scoredBotLists > 0) {
+          sumGroups += groupScore;
+          scoredGroups++;
+        }
+      }
+      ScoreSummary overallSummary =
+          new ScoreSummary(sumGroups, scoredGroups, scoredGroups);
+      overallScore = overallSummary.getTotalScore();
+      if (showConfidence) {
+        confidence =
+            getGroupsConfidence(challenge.referenceBotGroups, errorMap);
+      }
+      if (showSimulatedConfidence) {
+        simulatedConfidence = getSimulatedGroupsConfidence(
+            challenge.referenceBotGroups, errorMap, simulatedIterations);
+      }
+    } else {
+      for (BotList botList : challenge.allReferenceBots) {
+        double wikiScore = getWikiScore(scoreLog, botList, scoringStyle);
+        wikiScores.append(wikiScore).append(" || ");
+      }
+      overallScore = scoreSummary.getTotalScore();
+      if (showConfidence) {
+        confidence =
+            getOverallConfidence(challenge.allReferenceBots, errorMap);
+      }
+      if (showSimulatedConfidence) {
+        simulatedConfidence = getSimulatedOverallConfidence(
+            challenge.allReferenceBots, errorMap, simulatedIterations);
+      }
+    }
+    wikiScores.append("'''").append(overallScore).append("''' || ");
+    wikiScores.append(numSeasons).append(" seasons");
+
+    return new ChallengeScore(scoreLog.challenger, overallScore, confidence,
+        showConfidence, simulatedConfidence, showSimulatedConfidence,
+        numSeasons, scoreSummary.scoredBotLists,
+        challengeBotLists, groupScores, wikiScores.toString());
+  }
+
+  /**
+   * @return score against each group of reference bots, in the order they
+   *     appear in the challenge, or an empty map if the challenge doesn't
+   *     have groups
+   */
+  public Map<String, Double> getGroupScores() {
+    return _groupScores;
+  }
+
+  /**
+   * @return the challenger's row for the challenge's results table on the
+   *     RoboWiki
+   */
+  public String getWikiScores() {
+    return _wikiScores;
+  }
+
+  /**
+   * @param scoreLog a challenger's score log
+   * @param scoringStyle the scoring style
+   * @return score distribution against each bot list in the score log
+   */
+  public static Map<BotListId, ScoreError> getScoreErrorMap(
+      ScoreLog scoreLog, ScoringStyle scoringStyle) {
+    Map<BotListId, ScoreError> errorMap = Maps.newHashMap();
+    for (BotListId botList : scoreLog.getBotLists()) {
+      errorMap.put(botList, scoreLog.getScoreError(botList, scoringStyle));
+    }
+    return errorMap;
+  }
+
+  /**
+   * @param botLists the bot lists
+   * @param errorMap score distribution against each bot list faced
+   * @return fewest scored battles against any of the bot lists that have
+   *     been faced, or {@code Integer.MAX_VALUE} if none have
+   */
+  public static int getMinBattles(
+      List<BotList> botLists, Map<BotListId, ScoreError> errorMap) {
+    int minBattles = Integer.MAX_VALUE;
+    for (BotList botList : botLists) {
+      ScoreError scoreError = errorMap.get(botList.getBotListId());
+      if (scoreError != null) {
+        minBattles = Math.min(minBattles, scoreError.getNumBattles());
+      }
+    }
+    return minBattles;
+  }
+
+  /**
+   * Decides whether a score gets a confidence interval, for both the live
+   * and the final scores.
+   *
+   * @param numBattles battles against the challenge's bot lists
+   * @param minBattles fewest scored battles against any of the challenge's
+   *     bot lists that have been faced
+   * @return true if there are enough battles for a confidence interval
+   */
+  public static boolean hasConfidence(int numBattles, int minBattles) {
+    return numBattles > 0 && minBattles >= 2;
+  }
+
+  /**
+   * @param scoreLog a challenger's score log
+   * @param botList the bot list
+   * @param scoringStyle the scoring style
+   * @return the challenger's average score against the bot list, rounded
+   *     to two decimal places, or -1 if there are no battles against it
+   */
+  public static double getWikiScore(
+      ScoreLog scoreLog, BotList botList, ScoringStyle scoringStyle) {
+    BotListId botListId = botList.getBotListId();
+    double score = -1;
+    if (scoreLog.hasBotList(botListId)) {
+      RobotScore totalRobotScore = scoreLog
+          .getAverageBattleScore(botListId)
+          .getRelativeTotalScore(scoreLog.challenger);
+      score = round(scoringStyle.getScore(totalRobotScore), 2);
+    }
+    return score;
+  }
+
+  /**
+   * The overall score is an average of independent bot list averages, so its
+   * variance is the sum of their variances over the number of bot lists
+   * squared.
+   */
+  private static double getOverallConfidence(List<BotList> botLists,
+      Map<BotListId, ScoreError> errorMap) {
+    double sumVariances = 0;
+    int numScores = 0;
+    for (BotList botList : botLists) {
+      ScoreError botError = errorMap.get(botList.getBotListId());
+      if (botError != null) {
+        sumVariances += RunnerUtil.square(botError.getClampedStandardError());
+        numScores++;
+      }
+    }
+    return 1.96 * Math.sqrt(sumVariances) / numScores;
+  }
+
+  private static double getGroupsConfidence(List<BotListGroup> botListGroups,
+      Map<BotListId, ScoreError> errorMap) {
+    double sumVariances = 0;
+    int numGroupScores = 0;
+    for (BotListGroup group : botListGroups) {
+      double groupVariances = 0;
+      int numBotScores = 0;
+      for (BotList botList : group.referenceBots) {
+        ScoreError botError = errorMap.get(botList.getBotListId());
+        if (botError != null) {
+          groupVariances +=
+              RunnerUtil.square(botError.getClampedStandardError());
+          numBotScores++;
+        }
+      }
+      if (numBotScores > 0) {
+        sumVariances += groupVariances / RunnerUtil.square(numBotScores);
+        numGroupScores++;
+      }
+    }
+    return 1.96 * Math.sqrt(sumVariances) / numGroupScores;
+  }
+
+  private static double getSimulatedOverallConfidence(List<BotList> botLists,
+      Map<BotListId, ScoreError> errorMap, int iterations) {
+    List<Double> overallScores = Lists.newArrayList();
+    for (int x = 0; x < iterations; x++) {
+      overallScores.add(generateOverallScore(botLists, errorMap));
+    }
+    return 1.96 * RunnerUtil.standardDeviation(overallScores);
+  }
+
+  private static double generateOverallScore(List<BotList> botLists,
+      Map<BotListId, ScoreError> errorMap) {
+    double overallTotal = 0;
+    int numScores = 0;
+    for (BotList botList : botLists) {
+      ScoreError botError = errorMap.get(botList.getBotListId());
+      if (botError != null) {
+        overallTotal += botError.generateRandomAverageScore();
+        numScores++;
+      }
+    }
+    return overallTotal / numScores;
+  }
+
+  private static double getSimulatedGroupsConfidence(
+      List<BotListGroup> botListGroups, Map<BotListId, ScoreError> errorMap,
+      int iterations) {
+    List<Double> overallScores = Lists.newArrayList();
+    for (int x = 0; x < iterations; x++) {
+      overallScores.add(generateGroupsScore(botListGroups, errorMap));
+    }
+    return 1.96 * RunnerUtil.standardDeviation(overallScores);
+  }
+
+  private static double generateGroupsScore(List<BotListGroup> botListGroups,
+      Map<BotListId, ScoreError> errorMap) {
+    double overallTotal = 0;
+    int numGroupScores = 0;
+    for (BotListGroup group : botListGroups) {
+      double groupTotal = 0;
+      int numBotScores = 0;
+      for (BotList botList : group.referenceBots) {
+        ScoreError botError = errorMap.get(botList.getBotListId());
+        if (botError != null) {
+          groupTotal += botError.generateRandomAverageScore();
+          numBotScores++;
+        }
+      }
+      if (numBotScores > 0) {
+        overallTotal += groupTotal / numBotScores;
+        numGroupScores++;
+      }
+    }
+    return overallTotal / numGroupScores;
+  }
+
+  private static ScoreSummary getScoreSummary(ScoreLog scoreLog,
+      List<BotList> referenceBots, ScoringStyle scoringStyle) {
+    double sumScores = 0;
+    int numBattles = 0;
+    int scoredBotLists = 0;
+    for (BotList botList : referenceBots) {
+      BotListId botListId = botList.getBotListId();
+      if (scoreLog.hasBotList(botListId)) {
+        RobotScore totalRobotScore = scoreLog
+            .getAverageBattleScore(botListId)
+            .getRelativeTotalScore(scoreLog.challenger);
+        sumScores += scoringStyle.getScore(totalRobotScore);
+        scoredBotLists++;
+        numBattles += totalRobotScore.numBattles;
+      }
+    }
+    return new ScoreSummary(sumScores, numBattles, scoredBotLists);
+  }
+
+  private static class ScoreSummary {
+    public final double sumScores;
+    public final int numBattles;
+    public final int scoredBotLists;
+
+    public ScoreSummary(
+        double sumScores, int numBattles, int scoredBotLists) {
+      this.sumScores = sumScores;
+      this.numBattles = numBattles;
+      this.scoredBotLists = scoredBotLists;
+    }
+
+    public double getTotalScore() {
+      return round(sumScores / scoredBotLists, 2);
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package robowiki.runner;
+
+import static robowiki.runner.RunnerUtil.getCombinedArgs;
+import static robowiki.runner.RunnerUtil.parseStringArgument;
+import static robowiki.runner.RunnerUtil.round;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import robowiki.runner.RobotScore.ScoringStyle;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Compares many challengers in a challenge, eg different versions of a bot.
+ * Their score logs are loaded from the score store set in
+ * roborunner.properties and scored in parallel on a fork/join pool, and
+ * printed as one table, with the score against each bot list and each
+ * challenger's row for the RoboWiki.
+ */
+public class CompareReport {
+  private static final String SLASH = System.getProperty("file.separator");
+
+  private final ChallengeConfig _challenge;
+  private final ScoreStore _scoreStore;
+  private final ForkJoinPool _pool;
+
+  public static void main(String[] args) {
+    args = getCombinedArgs(args);
+    String challengeFile = parseStringArgument("c", args,
+        "ERROR: Pass a challenge file with -c, eg: -c challenges" + SLASH
+        + "testbed.rrc");
+    String challengers = parseStringArgument("compare", args,
+        "ERROR: Pass challengers to compare with -compare, eg: "
+        + "-compare voidious.Dookious*, jk.mega.DrussGT 2.8.1");
+    if (challengeFile == null || challengers == null) {
+      return;
+    }
+    int threads = Runtime.getRuntime().availableProcessors();
+    String threadsArg = parseStringArgument("t", args);
+    if (threadsArg != null) {
+      try {
+        threads = Integer.parseInt(threadsArg);
+      } catch (NumberFormatException nfe) {
+        // semi-expected
+      }
+    }
+
+    Properties runnerProperties = new Properties();
+    try {
+      runnerProperties.load(
+          new FileInputStream(RoboRunner.PROPERTIES_FILENAME));
+    } catch (FileNotFoundException e) {
+      // semi-expected, use the default score store
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    ChallengeConfig challenge = ChallengeConfig.load(challengeFile);
+    ScoreStore scoreStore = RoboRunner.newScoreStore(
+        runnerProperties.getProperty(RoboRunner.SCORE_STORE_PROPERTY,
+            RoboRunner.XML_SCORE_STORE).trim(), challenge, 0, 0, true);
+    CompareReport report = new CompareReport(challenge, scoreStore, threads);
+    try {
+      report.printReport(Lists.newArrayList(challengers.split(" *, *")));
+    } finally {
+      report.shutdown();
+      scoreStore.close();
+    }
+  }
+
+  /**
+   * @param challenge the challenge to score the challengers in
+   * @param scoreStore store holding the challengers' score logs
+   * @param threads number of score logs to load and score at once
+   */
+  public CompareReport(
+      ChallengeConfig challenge, ScoreStore scoreStore, int threads) {
+    _challenge = challenge;
+    _scoreStore = scoreStore;
+    _pool = new ForkJoinPool(Math.max(1, threads));
+  }
+
+  /**
+   * Finds the challengers with scores in the score store that match any of
+   * the given names. A name may use {@code *} and {@code ?} as wildcards.
+   *
+   * @param patterns challenger names or wildcard patterns
+   * @return matching challenger names, sorted
+   * @throws IOException if the score store can't be read
+   */
+  public List<String> findChallengers(List<String> patterns)
+      throws IOException {
+    List<Pattern> regexes = Lists.newArrayList();
+    for (String pattern : patterns) {
+      regexes.add(Pattern.compile(Pattern.quote(pattern)
+          .replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q")));
+    }
+    List<String> challengers = Lists.newArrayList();
+    for (String challenger : _scoreStore.getChallengers()) {
+      for (Pattern regex : regexes) {
+        if (regex.matcher(challenger).matches()) {
+          challengers.add(challenger);
+          break;
+        }
+      }
+    }
+    Collections.sort(challengers);
+    return challengers;
+  }
+
+  /**
+   * Scores every challenger matching the given names and prints the
+   * comparison, best overall score first.
+   *
+   * @param patterns challenger names or wildcard patterns
+   */
+  public void printReport(List<String> patterns) {
+    List<String> challengers;
+    try {
+      challengers = findChallengers(patterns);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+    if (challengers.isEmpty()) {
+      System.out.println("No challengers in the score store match "
+          + patterns + ".");
+      return;
+    }
+
+    long startTime = System.nanoTime();
+    List<Future<ChallengerResults>> futures = Lists.newArrayList();
+    for (String challenger : challengers) {
+      futures.add(_pool.submit(newScoreCallable(challenger)));
+    }
+    List<ChallengerResults> results = Lists.newArrayList();
+    for (int x = 0; x < futures.size(); x++) {
+      try {
+        results.add(futures.get(x).get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        System.out.println("WARNING: Failed to score " + challengers.get(x));
+        e.getCause().printStackTrace();
+      }
+    }
+    Collections.sort(results, new Comparator<ChallengerResults>() {
+      @Override
+      public int compare(ChallengerResults results1,
+          ChallengerResults results2) {
+        return Double.compare(results2.challengeScore.overallScore,
+            results1.challengeScore.overallScore);
+      }
+    });
+
+    System.out.println();
+    System.out.println("Challenge:      " + _challenge.name);
+    System.out.println("Scoring:        "
+        + _challenge.scoringStyle.getDescription());
+    System.out.println("Challengers:    " + results.size() + " (scored in "
+        + round((System.nanoTime() - startTime) / 1000000000.0, 1) + "s)");
+    System.out.println();
+    printOverallTable(results);
+    System.out.println();
+    printBotListTable(results);
+    System.out.println();
+    System.out.println("Wiki format:");
+    for (ChallengerResults challengerResults : results) {
+      System.out.println(challengerResults.challengeScore.getWikiScores());
+    }
+    System.out.println();
+  }
+
+  private Callable<ChallengerResults> newScoreCallable(
+      final String challenger) {
+    return new Callable<ChallengerResults>() {
+      @Override
+      public ChallengerResults call() throws IOException {
+        ScoreLog scoreLog = _scoreStore.load(challenger);
+        ScoringStyle scoringStyle = _challenge.scoringStyle;
+        Map<BotListId, ScoreError> errorMap =
+            ChallengeScore.getScoreErrorMap(scoreLog, scoringStyle);
+        Map<BotListId, Double> botListScores = Maps.newHashMap();
+        for (BotList botList : _challenge.allReferenceBots) {
+          botListScores.put(botList.getBotListId(),
+              ChallengeScore.getWikiScore(scoreLog, botList, scoringStyle));
+        }
+        return new ChallengerResults(ChallengeScore.score(
+            scoreLog, _challenge, errorMap, false, true), botListScores,
+            errorMap);
+      }
+    };
+  }
+
+  private void printOverallTable(List<ChallengerResults> results) {
+    List<String> header = Lists.newArrayList("#", "Challenger", "Overall",
+        "Seasons");
+    if (!results.isEmpty()) {
+      header.addAll(results.get(0).challengeScore.getGroupScores().keySet());
+    }
+    List<List<String>> table = Lists.newArrayList();
+    table.add(header);
+    for (int x = 0; x < results.size(); x++) {
+      ChallengeScore score = results.get(x).challengeScore;
+      List<String> row = Lists.newArrayList(Integer.toString(x + 1),
+          score.challenger, score.overallScore + (score.hasConfidence
+              ? " +- " + round(score.confidence, 2) : ""),
+          Double.toString(score.numSeasons));
+      for (double groupScore : score.getGroupScores().values()) {
+        row.add(Double.toString(groupScore));
+      }
+      table.add(row);
+    }
+    printTable(table);
+  }
+
+  private void printBotListTable(List<ChallengerResults> results) {
+    List<String> header = Lists.newArrayList("Bot list");
+    for (int x = 0; x < results.size(); x++) {
+      header.add("#" + (x + 1));
+    }
+    List<List<String>> table = Lists.newArrayList();
+    table.add(header);
+    for (BotList botList : _challenge.allReferenceBots) {
+      BotListId botListId = botList.getBotListId();
+      List<String> row = Lists.newArrayList(botListId.toString());
+      for (ChallengerResults challengerResults : results) {
+        double score = challengerResults.botListScores.get(botListId);
+        ScoreError scoreError = challengerResults.errorMap.get(botListId);
+        if (score < 0 || scoreError == null) {
+          row.add("-");
+        } else {
+          row.add(score + (scoreError.getNumBattles() > 1 ? " +- "
+              + round(1.96 * scoreError.getStandardError(), 2) : ""));
+        }
+      }
+      table.add(row);
+    }
+    printTable(table);
+  }
+
+  private void printTable(List<List<String>> table) {
+    List<Integer> widths = Lists.newArrayList();
+    for (List<String> row : table) {
+      for (int x = 0; x < row.size(); x++) {
+        if (widths.size() <= x) {
+          widths.add(0);
+        }
+        widths.set(x, Math.max(widths.get(x), row.get(x).length()));
+      }
+    }
+    for (List<String> row : table) {
+      StringBuilder line = new StringBuilder(" ");
+      for (int x = 0; x < row.size(); x++) {
+        line.append(" ").append(Strings.padEnd(row.get(x), widths.get(x), ' '))
+            .append(" ");
+      }
+      System.out.println(line.toString().replaceAll(" +$", ""));
+    }
+  }
+
+  public void shutdown() {
+    _pool.shutdown();
+  }
+
+  private static class ChallengerResults {
+    public final ChallengeScore challengeScore;
+    public final Map<BotListId, Double> botListScores;
+    public final Map<BotListId, ScoreError> errorMap;
+
+    public ChallengerResults(ChallengeScore challengeScore,
+        Map<BotListId, Double> botListScores,
+        Map<BotListId, ScoreError> errorMap) {
+      this.challengeScore = challengeScore;
+      this.botListScores = botListScores;
+      this.errorMap = errorMap;
+    }
+  }
+}
@@ -0,0 +1,403 @@
+package robowiki.runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+
+import robowiki.runner.BattleProtocol.BattleResult;
+import robowiki.runner.BattleProtocol.RoundListener;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A running {@code BattleProcess} and its streams. Each engine has a reader
+ * thread for the battle protocol on its stdout, which completes the future
+ * of each battle sent to the engine and passes on its round results, and a
+ * thread that keeps the last
+ * {@link #LOG_LINES} lines of its stderr, where the engine and the bots
+ * print everything else, for when the engine fails.
+ *
+ * <p>A remote engine is a {@code BattleProcess} started by a
+ * {@code BattleWorker}, which passes the battle protocol through a TCP
+ * connection. Its path is the path of the Robocode install on the worker,
+ * followed by {@code @host:port} of the worker. The engine's stderr stays on
+ * the worker, so a remote engine has no recent output.
+ */
+class EngineHandle {
+  private static final int LOG_LINES = 200;
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+  private final Process _process;
+  private final Socket _socket;
+  private final String _enginePath;
+  private final BattleProtocol.Writer _writer;
+  private final Map<Integer, SettableFuture<BattleResult>> _battles;
+  private final Map<Integer, RoundListener> _roundListeners;
+  private final ArrayDeque<String> _log;
+  private IOException _failure;
+
+  private EngineHandle(Process process, Socket socket, OutputStream out,
+      String enginePath) {
+    _process = process;
+    _socket = socket;
+    _enginePath = enginePath;
+    _writer = new BattleProtocol.Writer(out);
+    _battles = Maps.newHashMap();
+    _roundListeners = Maps.newHashMap();
+    _log = new ArrayDeque<String>(LOG_LINES);
+  }
+
+  /**
+   * Starts a {@code BattleProcess} and waits for it to be ready.
+   *
+   * @param command command line of the engine
+   * @param enginePath path of the Robocode install
+   * @return the engine
+   * @throws IOException if the engine failed to start
+   */
+  public static EngineHandle launch(List<String> command, String enginePath)
+      throws IOException {
+    Process process = new ProcessBuilder(command).start();
+    final EngineHandle engine = new EngineHandle(
+        process, null, process.getOutputStream(), enginePath);
+    startThread("EngineLog " + enginePath, new Runnable() {
+      @Override
+      public void run() {
+        engine.readLog();
+      }
+    });
+    final BattleProtocol.Reader reader =
+        new BattleProtocol.Reader(process.getInputStream());
+    try {
+      reader.readReady();
+    } catch (IOException e) {
+      process.destroy();
+      throw e;
+    }
+    engine.startReader(reader);
+    return engine;
+  }
+
+  /**
+   * Asks a {@code BattleWorker} to start a remote engine and waits for it to
+   * be ready.
+   *
+   * @param enginePath path of the remote engine, from
+   *     {@link #listRemoteEngines}
+   * @param numRounds number of rounds in each battle
+   * @param battleFieldWidth battlefield width
+   * @param battleFieldHeight battlefield height
+   * @return the engine
+   * @throws IOException if the worker couldn't be reached or the engine
+   *     failed to start
+   */
+  public static EngineHandle connect(String enginePath, int numRounds,
+      int battleFieldWidth, int battleFieldHeight) throws IOException {
+    int atIndex = enginePath.lastIndexOf('@');
+    int colonIndex = enginePath.lastIndexOf(':');
+    if (atIndex < 0 || colonIndex < atIndex) {
+      throw new IOException("Not a remote engine: " + enginePath);
+    }
+    String robocodePath = enginePath.substring(0, atIndex);
+    String host = enginePath.substring(atIndex + 1, colonIndex);
+    int port;
+    try {
+      port = Integer.parseInt(enginePath.substring(colonIndex + 1));
+    } catch (NumberFormatException nfe) {
+      throw new IOException("Not a remote engine: " + enginePath);
+    }
+
+    Socket socket = openSocket(host, port);
+    EngineHandle engine = new EngineHandle(
+        null, socket, socket.getOutputStream(), enginePath);
+    BattleProtocol.Reader reader = new BattleProtocol.Reader(
+        new BufferedInputStream(socket.getInputStream()));
+    try {
+      engine._writer.writeStartEngine(
+          robocodePath, numRounds, battleFieldWidth, battleFieldHeight);
+      engine._writer.flush();
+      reader.readReady();
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    engine.startReader(reader);
+    return engine;
+  }
+
+  /**
+   * Asks a {@code BattleWorker} which engines it can run.
+   *
+   * @param host host of the worker
+   * @param port port of the worker
+   * @return paths of the worker's remote engines
+   * @throws IOException if the worker couldn't be reached
+   */
+  public static List<String> listRemoteEngines(String host, int port)
+      throws IOException {
+    Socket socket = openSocket(host, port);
+    try {
+      BattleProtocol.Writer writer =
+          new BattleProtocol.Writer(socket.getOutputStream());
+      writer.writeListEngines();
+      writer.flush();
+      BattleProtocol.Reader reader = new BattleProtocol.Reader(
+          new BufferedInputStream(socket.getInputStream()));
+      if (reader.readMessage() != BattleProtocol.ENGINES) {
+        throw new IOException("Unexpected reply from worker " + host + ":"
+            + port);
+      }
+      List<String> enginePaths = Lists.newArrayList();
+      for (String robocodePath : reader.getEnginePaths()) {
+        enginePaths.add(robocodePath + "@" + host + ":" + port);
+      }
+      return enginePaths;
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static Socket openSocket(String host, int port)
+      throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.setKeepAlive(true);
+      socket.setTcpNoDelay(true);
+      socket.connect(
+          new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+    return socket;
+  }
+
+  private void startReader(final BattleProtocol.Reader reader) {
+    startThread("EngineReader " + _enginePath, new Runnable() {
+      @Override
+      public void run() {
+        readMessages(reader);
+      }
+    });
+  }
+
+  private static void startThread(String name, Runnable runnable) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public String getEnginePath() {
+    return _enginePath;
+  }
+
+  public boolean isAlive() {
+    return (_process == null) ? !_socket.isClosed() : _process.isAlive();
+  }
+
+  /**
+   * Kills the engine, or for a remote engine, closes the connection, which
+   * makes the worker kill it. Battles that haven't finished fail.
+   */
+  public void destroy() {
+    if (_process == null) {
+      try {
+        _socket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    } else {
+      _process.destroy();
+    }
+  }
+
+  /**
+   * Queues a battle on the engine. Call {@link #flush()} to send it.
+   *
+   * @param battleId id of the battle, unique for this engine
+   * @param botNames names of the bots in the battle
+   * @param roundListener receives the scores after each round but the
+   *     last, on the engine's reader thread, or null for none
+   * @return the result of the battle. The future fails with a
+   *     {@link BattleErrorException} if the engine couldn't run the battle,
+   *     or an {@code IOException} if the engine died, and is cancelled if
+   *     the battle was cancelled.
+   */
+  public ListenableFuture<BattleResult> sendBattle(
+      int battleId, List<String> botNames, RoundListener roundListener) {
+    SettableFuture<BattleResult> future = SettableFuture.create();
+    synchronized (this) {
+      if (_failure != null) {
+        future.setException(_failure);
+        return future;
+      }
+      _battles.put(battleId, future);
+      if (roundListener != null) {
+        _roundListeners.put(battleId, roundListener);
+      }
+    }
+    try {
+      synchronized (_writer) {
+        _writer.writeBattleRequest(battleId, botNames);
+      }
+    } catch (IOException e) {
+      failBattles(e);
+    }
+    return future;
+  }
+
+  /**
+   * Asks the engine to cancel a battle that hasn't started. If it has, the
+   * battle finishes as usual. Call {@link #flush()} to send the request.
+   *
+   * @param battleId id of the battle
+   */
+  public void cancelBattle(int battleId) {
+    try {
+      synchronized (_writer) {
+        _writer.writeCancelBattle(battleId);
+      }
+    } catch (IOException e) {
+      failBattles(e);
+    }
+  }
+
+  /**
+   * Asks the engine to stop a battle early if it's running, so its result
+   * has only the rounds that have ended. Call {@link #flush()} to send the
+   * request.
+   *
+   * @param battleId id of the battle
+   */
+  public void stopBattle(int battleId) {
+    try {
+      synchronized (_writer) {
+        _writer.writeStopBattle(battleId);
+      }
+    } catch (IOException e) {
+      failBattles(e);
+    }
+  }
+
+  /**
+   * Sends the battles, cancellations and stops queued since the last flush.
+   */
+  public void flush() {
+    try {
+      synchronized (_writer) {
+        _writer.flush();
+      }
+    } catch (IOException e) {
+      failBattles(e);
+    }
+  }
+
+  /**
+   * @param numLines most lines to return
+   * @return the engine's last lines of output, oldest first
+   */
+  public List<String> getRecentOutput(int numLines) {
+    List<String> lines;
+    synchronized (_log) {
+      lines = ImmutableList.copyOf(_log);
+    }
+    return lines.subList(Math.max(0, lines.size() - numLines), lines.size());
+  }
+
+  private void readMessages(BattleProtocol.Reader reader) {
+    try {
+      byte messageType;
+      while ((messageType = reader.readMessage())
+          != BattleProtocol.END_OF_STREAM) {
+        if (messageType == BattleProtocol.ROUND_RESULT) {
+          RoundListener roundListener;
+          synchronized (this) {
+            roundListener = _roundListeners.get(reader.getBattleId());
+          }
+          if (roundListener != null) {
+            roundListener.roundEnded(
+                reader.getRound(), reader.getRobotResults());
+          }
+          continue;
+        }
+        SettableFuture<BattleResult> future;
+        synchronized (this) {
+          future = _battles.remove(reader.getBattleId());
+          _roundListeners.remove(reader.getBattleId());
+        }
+        if (future == null) {
+          continue;
+        }
+        if (messageType == BattleProtocol.BATTLE_RESULT) {
+          future.set(reader.getBattleResult());
+        } else if (messageType == BattleProtocol.BATTLE_ERROR) {
+          future.setException(
+              new BattleErrorException(reader.getErrorMessage()));
+        } else if (messageType == BattleProtocol.BATTLE_CANCELLED) {
+          future.cancel(false);
+        }
+      }
+      failBattles(new EOFException("Engine exited: " + _enginePath));
+    } catch (IOException e) {
+      failBattles(e);
+    }
+  }
+
+  private void readLog() {
+    try {
+      BufferedReader reader = new BufferedReader(
+          new InputStreamReader(_process.getErrorStream()));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        synchronized (_log) {
+          if (_log.size() == LOG_LINES) {
+            _log.removeFirst();
+          }
+          _log.addLast(line);
+        }
+      }
+    } catch (IOException e) {
+      // engine exited
+    }
+  }
+
+  private void failBattles(IOException failure) {
+    List<SettableFuture<BattleResult>> futures;
+    synchronized (this) {
+      if (_failure == null) {
+        _failure = failure;
+      }
+      futures = Lists.newArrayList(_battles.values());
+      _battles.clear();
+      _roundListeners.clear();
+    }
+    destroy();
+    for (SettableFuture<BattleResult> future : futures) {
+      future.setException(failure);
+    }
+  }
+
+  /**
+   * An engine's report that it couldn't run a battle, eg because a bot
+   * couldn't be loaded.
+   */
+  public static class BattleErrorException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public BattleErrorException(String message) {
+      super(message);
+    }
+  }
+}
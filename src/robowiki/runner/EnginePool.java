@@ -0,0 +1,564 @@
+package robowiki.runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * The Robocode engines that run battles, one {@code BattleProcess} per
+ * Robocode install. An elastic pool starts with its minimum number of
+ * engines and, between battles, starts or retires engines to use the cores
+ * that aren't busy with other work on the machine, never keeping more
+ * engines than there are battles left to run. The load from other work is
+ * the 1 minute load average from /proc/loadavg, less the engines that are
+ * running battles, so the pool only resizes every
+ * {@link #RESIZE_INTERVAL_NANOS} to give the load average time to catch up.
+ * The pool size and how busy the engines were are printed when the pool
+ * resizes and every {@link #REPORT_INTERVAL_NANOS}.
+ *
+ * <p>Idle engines are checked every {@link #HEALTH_CHECK_INTERVAL_MILLIS},
+ * and before each battle. An engine that has died, or that fails during a
+ * battle, is replaced by the warm spare engine if there is one, or else
+ * restarted on the same install. The spare is started in the background on
+ * an install that isn't running an engine, whenever there is one. The last
+ * {@link #FAILURE_OUTPUT_LINES} lines a failed engine printed, eg from the
+ * bots, are shown with the warning.
+ *
+ * <p>Remote engines run on {@code BattleWorker}s and are used just like
+ * local ones. A remote engine whose connection drops fails like an engine
+ * that died, so its battles are requeued, and is reconnected up to
+ * {@link #RECONNECT_ATTEMPTS} times, {@link #RECONNECT_DELAY_MILLIS} apart,
+ * to give a restarted worker time to come back. Remote engines don't count
+ * towards the load of this machine, so an elastic pool only runs local
+ * engines.
+ */
+class EnginePool {
+  private static final int FAILURE_OUTPUT_LINES = 10;
+  private static final String LOAD_AVERAGE_FILE = "/proc/loadavg";
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+  private static final long RESIZE_INTERVAL_NANOS = 30000000000L;
+  private static final long REPORT_INTERVAL_NANOS = 60000000000L;
+  private static final long HEALTH_CHECK_INTERVAL_MILLIS = 5000;
+  private static final int RECONNECT_ATTEMPTS = 12;
+  private static final long RECONNECT_DELAY_MILLIS = 5000;
+
+  private final String _jvmArgs;
+  private final int _numRounds;
+  private final int _battleFieldWidth;
+  private final int _battleFieldHeight;
+  private final int _minEngines;
+  private final int _maxEngines;
+  private final Set<String> _remotePaths;
+  private final Queue<String> _unusedPaths;
+  private final BlockingQueue<EngineHandle> _idleEngines;
+  private final Map<EngineHandle, String> _enginePaths;
+  private final Map<EngineHandle, Long> _busyEngines;
+  private final ScheduledExecutorService _monitor;
+  private final AtomicInteger _engineFailures;
+  private EngineHandle _spareEngine;
+  private boolean _shutdown;
+  private volatile int _numEngines;
+  private volatile int _targetEngines;
+  private long _lastResizeTime;
+
+  private long _reportStartTime;
+  private long _engineTime;
+  private long _busyTime;
+  private long _lastEngineChangeTime;
+
+  /**
+   * @param enginePaths paths of the Robocode installs to run engines in
+   * @param remoteEnginePaths paths of remote engines on workers
+   * @param jvmArgs arguments to the JVM of each engine
+   * @param numRounds number of rounds in each battle
+   * @param battleFieldWidth battlefield width
+   * @param battleFieldHeight battlefield height
+   * @param minEngines minimum number of engines, or the number of local
+   *     and remote engine paths for a pool that doesn't resize
+   */
+  public EnginePool(Set<String> enginePaths, Set<String> remoteEnginePaths,
+      String jvmArgs, int numRounds, int battleFieldWidth,
+      int battleFieldHeight, int minEngines) {
+    _jvmArgs = jvmArgs;
+    _numRounds = numRounds;
+    _battleFieldWidth = battleFieldWidth;
+    _battleFieldHeight = battleFieldHeight;
+    _maxEngines = enginePaths.size() + remoteEnginePaths.size();
+    _minEngines = remoteEnginePaths.isEmpty()
+        ? Math.max(1, Math.min(minEngines, _maxEngines)) : _maxEngines;
+    _remotePaths = Sets.newHashSet(remoteEnginePaths);
+    _unusedPaths = Queues.newArrayDeque(enginePaths);
+    _unusedPaths.addAll(remoteEnginePaths);
+    _idleEngines = Queues.newLinkedBlockingQueue();
+    _enginePaths = Maps.newHashMap();
+    _busyEngines = Maps.newHashMap();
+    _engineFailures = new AtomicInteger(0);
+    _numEngines = 0;
+    _targetEngines = _minEngines;
+
+    long now = System.nanoTime();
+    _reportStartTime = now;
+    _lastEngineChangeTime = now;
+    _lastResizeTime = now - RESIZE_INTERVAL_NANOS;
+    for (int x = 0; x < _maxEngines && _numEngines < _minEngines; x++) {
+      addEngine();
+    }
+
+    _monitor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("EnginePool")
+            .setDaemon(true).build());
+    _monitor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        checkEngines();
+      }
+    }, HEALTH_CHECK_INTERVAL_MILLIS, HEALTH_CHECK_INTERVAL_MILLIS,
+        TimeUnit.MILLISECONDS);
+    requestSpare();
+  }
+
+  private boolean isElastic() {
+    return _minEngines < _maxEngines;
+  }
+
+  /**
+   * @return number of engines that are running, or being restarted
+   */
+  public int getNumEngines() {
+    return _numEngines;
+  }
+
+  /**
+   * @return the most engines the pool will run
+   */
+  public int getMaxEngines() {
+    return _maxEngines;
+  }
+
+  /**
+   * @return number of engines that have died, hung or failed a battle
+   */
+  public int getEngineFailures() {
+    return _engineFailures.get();
+  }
+
+  /**
+   * @return true if an elastic pool has more engines than it's aiming for,
+   *     so an engine that's running battles back to back should be returned
+   *     to be retired
+   */
+  public boolean hasExtraEngines() {
+    return isElastic() && _numEngines > _targetEngines;
+  }
+
+  /**
+   * Starts or retires engines, if the pool is elastic and it's time to
+   * resize. Only call between battles, from the thread that starts them.
+   *
+   * @param queuedBattles number of battles left to start
+   * @param runningBattles number of engines running battles
+   */
+  public void resize(int queuedBattles, int runningBattles) {
+    if (!isElastic()) {
+      return;
+    }
+    long now = System.nanoTime();
+    int idleEngines = _numEngines - runningBattles;
+    if (idleEngines > queuedBattles && _numEngines > _minEngines) {
+      retireEngines(Math.min(idleEngines - queuedBattles,
+          _numEngines - _minEngines), "fewer battles left", queuedBattles);
+    } else if (now - _lastResizeTime >= RESIZE_INTERVAL_NANOS) {
+      _lastResizeTime = now;
+      int cores = Runtime.getRuntime().availableProcessors();
+      double otherLoad = Math.max(0, getLoadAverage() - runningBattles);
+      int freeCores = (int) Math.round(cores - otherLoad);
+      int targetEngines = Math.max(_minEngines, Math.min(_maxEngines,
+          Math.min(freeCores, runningBattles + queuedBattles)));
+      _targetEngines = targetEngines;
+      String reason = "load " + RunnerUtil.round(otherLoad, 2) + " on "
+          + cores + " cores";
+      if (targetEngines > _numEngines) {
+        int oldEngines = _numEngines;
+        while (_numEngines < targetEngines && addEngine()) {
+          // keep adding
+        }
+        report("Engines: " + oldEngines + " -> " + _numEngines + " ("
+            + reason + ", " + queuedBattles + " battles left)");
+      } else if (targetEngines < _numEngines && idleEngines > 0) {
+        retireEngines(Math.min(idleEngines, _numEngines - targetEngines),
+            reason, queuedBattles);
+      }
+    }
+    if (now - _reportStartTime >= REPORT_INTERVAL_NANOS) {
+      report("Engines: " + _numEngines);
+    }
+  }
+
+  /**
+   * Adds an engine to the pool, using the spare engine if there is one.
+   *
+   * @return true if an engine was added
+   */
+  private boolean addEngine() {
+    EngineHandle engine;
+    String enginePath;
+    synchronized (this) {
+      engine = _spareEngine;
+      _spareEngine = null;
+      if (engine == null) {
+        if (_unusedPaths.isEmpty()) {
+          return false;
+        }
+        enginePath = _unusedPaths.remove();
+      } else {
+        enginePath = _enginePaths.get(engine);
+      }
+    }
+    if (engine == null) {
+      System.out.print("Initializing engine: " + enginePath + "... ");
+      engine = launchEngine(enginePath);
+      if (engine == null) {
+        System.out.println("failed!");
+        synchronized (this) {
+          _unusedPaths.add(enginePath);
+        }
+        return false;
+      }
+      System.out.println("done!");
+    }
+    synchronized (this) {
+      _enginePaths.put(engine, enginePath);
+      updateEngineTime(System.nanoTime());
+      _numEngines++;
+    }
+    _idleEngines.add(engine);
+    if (_monitor != null) {
+      requestSpare();
+    }
+    return true;
+  }
+
+  private void retireEngines(
+      int numEngines, String reason, int queuedBattles) {
+    int oldEngines = _numEngines;
+    for (int x = 0; x < numEngines; x++) {
+      EngineHandle engine = _idleEngines.poll();
+      if (engine == null) {
+        break;
+      }
+      synchronized (this) {
+        updateEngineTime(System.nanoTime());
+        _numEngines--;
+        _unusedPaths.add(_enginePaths.remove(engine));
+      }
+      engine.destroy();
+    }
+    report("Engines: " + oldEngines + " -> " + _numEngines + " (" + reason
+        + ", " + queuedBattles + " battles left)");
+  }
+
+  /**
+   * Prints a message about the pool, with how busy the engines have been
+   * since the last report.
+   */
+  private void report(String message) {
+    long now = System.nanoTime();
+    double utilization;
+    synchronized (this) {
+      updateEngineTime(now);
+      for (long busySince : _busyEngines.values()) {
+        _busyTime += now - Math.max(busySince, _reportStartTime);
+      }
+      utilization =
+          (_engineTime == 0) ? 0 : ((double) _busyTime) / _engineTime;
+      _reportStartTime = now;
+      _engineTime = 0;
+      _busyTime = 0;
+    }
+    System.out.println(message + ", "
+        + RunnerUtil.round(100 * Math.min(1, utilization), 1)
+        + "% utilization");
+  }
+
+  private void updateEngineTime(long now) {
+    _engineTime += _numEngines * (now - _lastEngineChangeTime);
+    _lastEngineChangeTime = now;
+  }
+
+  /**
+   * Waits for an idle engine that's still alive. Dead engines found along
+   * the way are replaced.
+   *
+   * @return an idle engine, which must be returned with
+   *     {@link #returnEngine} or {@link #engineFailed}, or null if there
+   *     are no engines left
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public EngineHandle takeEngine() throws InterruptedException {
+    while (true) {
+      EngineHandle engine = _idleEngines.poll(1, TimeUnit.SECONDS);
+      if (engine == null) {
+        if (_numEngines == 0) {
+          return null;
+        }
+      } else if (!engine.isAlive()) {
+        engineFailed(engine);
+      } else {
+        synchronized (this) {
+          _busyEngines.put(engine, System.nanoTime());
+        }
+        return engine;
+      }
+    }
+  }
+
+  /**
+   * @param engine an engine from {@link #takeEngine}, which is now idle
+   */
+  public void returnEngine(EngineHandle engine) {
+    synchronized (this) {
+      long busySince = _busyEngines.remove(engine);
+      _busyTime += System.nanoTime() - Math.max(busySince, _reportStartTime);
+    }
+    _idleEngines.add(engine);
+  }
+
+  /**
+   * Kills an engine that has died, hung or otherwise failed, and replaces
+   * it with the spare engine, or restarts it in the background.
+   *
+   * @param engine the failed engine, which isn't idle
+   */
+  public void engineFailed(EngineHandle engine) {
+    engine.destroy();
+    String enginePath;
+    EngineHandle spareEngine;
+    synchronized (this) {
+      Long busySince = _busyEngines.remove(engine);
+      if (busySince != null) {
+        _busyTime +=
+            System.nanoTime() - Math.max(busySince, _reportStartTime);
+      }
+      enginePath = _enginePaths.remove(engine);
+      if (enginePath == null || _shutdown) {
+        return;
+      }
+      _engineFailures.incrementAndGet();
+      spareEngine = _spareEngine;
+      _spareEngine = null;
+      if (spareEngine != null) {
+        if (spareEngine.isAlive()) {
+          _unusedPaths.add(enginePath);
+        } else {
+          _unusedPaths.add(_enginePaths.remove(spareEngine));
+          spareEngine = null;
+        }
+      }
+    }
+    if (spareEngine == null) {
+      System.out.println("WARNING: Engine failed, restarting: " + enginePath);
+      printRecentOutput(engine);
+      restartEngine(enginePath, 0);
+    } else {
+      System.out.println("WARNING: Engine failed, replaced with spare: "
+          + enginePath);
+      printRecentOutput(engine);
+      _idleEngines.add(spareEngine);
+      requestSpare();
+    }
+  }
+
+  private void restartEngine(final String enginePath, final int attempt) {
+    _monitor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        EngineHandle engine = launchEngine(enginePath);
+        boolean shutdown;
+        synchronized (EnginePool.this) {
+          shutdown = _shutdown;
+          if (engine == null && !shutdown && _remotePaths.contains(enginePath)
+              && attempt + 1 < RECONNECT_ATTEMPTS) {
+            restartEngine(enginePath, attempt + 1);
+            return;
+          }
+          if (engine == null || shutdown) {
+            updateEngineTime(System.nanoTime());
+            _numEngines--;
+            _unusedPaths.add(enginePath);
+          } else {
+            _enginePaths.put(engine, enginePath);
+          }
+        }
+        if (engine == null) {
+          System.out.println("ERROR: Failed to restart engine: "
+              + enginePath);
+        } else if (shutdown) {
+          engine.destroy();
+        } else {
+          System.out.println("Restarted engine: " + enginePath);
+          _idleEngines.add(engine);
+        }
+      }
+    }, (attempt == 0) ? 0 : RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void requestSpare() {
+    _monitor.submit(new Runnable() {
+      @Override
+      public void run() {
+        startSpare();
+      }
+    });
+  }
+
+  private void startSpare() {
+    String enginePath;
+    synchronized (this) {
+      if (_spareEngine != null || _unusedPaths.isEmpty() || _shutdown) {
+        return;
+      }
+      enginePath = _unusedPaths.remove();
+    }
+    EngineHandle engine = launchEngine(enginePath);
+    synchronized (this) {
+      if (engine != null && !_shutdown && _spareEngine == null) {
+        _spareEngine = engine;
+        _enginePaths.put(engine, enginePath);
+        return;
+      }
+      _unusedPaths.add(enginePath);
+    }
+    if (engine != null) {
+      engine.destroy();
+    }
+  }
+
+  /**
+   * Replaces idle engines and the spare engine if they've died.
+   */
+  private void checkEngines() {
+    for (EngineHandle engine : Lists.newArrayList(_idleEngines)) {
+      if (!engine.isAlive() && _idleEngines.remove(engine)) {
+        engineFailed(engine);
+      }
+    }
+    boolean spareFailed = false;
+    synchronized (this) {
+      if (_spareEngine != null && !_spareEngine.isAlive()) {
+        _unusedPaths.add(_enginePaths.remove(_spareEngine));
+        _spareEngine = null;
+        spareFailed = true;
+      }
+    }
+    if (spareFailed) {
+      System.out.println("WARNING: Spare engine failed, restarting.");
+      startSpare();
+    }
+  }
+
+  /**
+   * Starts a {@code BattleProcess}, locally or on its worker, and waits for
+   * it to be ready.
+   *
+   * @param enginePath path of the Robocode install, or of the remote engine
+   * @return the engine, or null if it failed to start
+   */
+  private EngineHandle launchEngine(String enginePath) {
+    if (_remotePaths.contains(enginePath)) {
+      try {
+        return EngineHandle.connect(enginePath, _numRounds,
+            _battleFieldWidth, _battleFieldHeight);
+      } catch (IOException e) {
+        System.out.println("WARNING: Couldn't start remote engine "
+            + enginePath + ": " + e);
+        return null;
+      }
+    }
+    try {
+      return EngineHandle.launch(buildCommand(_jvmArgs, _numRounds,
+          _battleFieldWidth, _battleFieldHeight, enginePath), enginePath);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * @param jvmArgs arguments to the engine's JVM
+   * @param numRounds number of rounds in each battle
+   * @param battleFieldWidth battlefield width
+   * @param battleFieldHeight battlefield height
+   * @param robocodePath path of the Robocode install
+   * @return command line that starts a {@code BattleProcess} with the same
+   *     classpath as this JVM
+   */
+  static List<String> buildCommand(String jvmArgs, int numRounds,
+      int battleFieldWidth, int battleFieldHeight, String robocodePath) {
+    List<String> command = Lists.newArrayList();
+    command.add("java");
+    command.addAll(Lists.newArrayList(jvmArgs.trim().split(" +")));
+    command.addAll(Lists.newArrayList("-cp",
+        System.getProperty("java.class.path"),
+        "robowiki.runner.BattleProcess", "-rounds", "" + numRounds,
+        "-width", "" + battleFieldWidth, "-height", "" + battleFieldHeight,
+        "-path", robocodePath));
+    return command;
+  }
+
+  private static void printRecentOutput(EngineHandle engine) {
+    for (String line : engine.getRecentOutput(FAILURE_OUTPUT_LINES)) {
+      System.out.println("  | " + line);
+    }
+  }
+
+  /**
+   * @return the 1 minute load average, or 0 if it isn't available
+   */
+  private static double getLoadAverage() {
+    try {
+      String loadAverages =
+          Files.readFirstLine(new File(LOAD_AVERAGE_FILE), ASCII);
+      if (loadAverages != null) {
+        return Double.parseDouble(loadAverages.trim().split(" +")[0]);
+      }
+    } catch (IOException e) {
+      // not Linux, fall through to the JVM's load average
+    } catch (NumberFormatException nfe) {
+      // semi-expected
+    }
+    return Math.max(0,
+        ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage());
+  }
+
+  /**
+   * Stops all the engines.
+   */
+  public void shutdown() {
+    List<EngineHandle> engines;
+    synchronized (this) {
+      _shutdown = true;
+      engines = Lists.newArrayList(_enginePaths.keySet());
+    }
+    _monitor.shutdownNow();
+    for (EngineHandle engine : engines) {
+      engine.destroy();
+    }
+  }
+}
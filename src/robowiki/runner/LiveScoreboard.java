@@ -0,0 +1,391 @@
+package robowiki.runner;
+
+import static robowiki.runner.RunnerUtil.formatBattleTime;
+import static robowiki.runner.RunnerUtil.round;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import robowiki.runner.ChallengeConfig.BotListGroup;
+import robowiki.runner.RobotScore.ScoringStyle;
+import robowiki.runner.ScoreLog.BattleScore;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Prints the scores while battles are running. Battle results are recorded
+ * with {@link #battleAdded}, which only updates running totals of the
+ * overall and group scores and queues the battle to be printed. A separate
+ * thread prints the queued battles and the overall score at a fixed rate,
+ * so processing results never waits on formatting or console output.
+ *
+ * <p>The score and clamped standard error against each bot list are kept
+ * as of its last battle. After a battle, only the totals of the groups its
+ * bot list is in are summed again, from the kept scores and in the same
+ * order as {@link ChallengeScore}, so the scores round the same way.
+ */
+public class LiveScoreboard {
+  private final ChallengeConfig _challenge;
+  private final String _challenger;
+  private final boolean _quiet;
+  private final Map<BotListId, BotListState> _botLists;
+  private final List<String> _groupNames;
+  private final List<List<BotListState>> _groupBotLists;
+  private final double[] _groupScoreSums;
+  private final double[] _groupVarianceSums;
+  private final int[] _groupScoredBotLists;
+  private int _numBattles;
+  private int _scoredBotLists;
+
+  private final Queue<Event> _events;
+  private final ScheduledExecutorService _printer;
+  private final Object _printLock;
+  private String _lastOverallScore;
+
+  /**
+   * @param challenge the challenge
+   * @param scoreLog the challenger's score log, with the scores so far
+   * @param refreshMillis how often to print, in milliseconds
+   * @param quiet true to only print the overall score when it changes,
+   *     without the result of each battle
+   */
+  public LiveScoreboard(ChallengeConfig challenge, ScoreLog scoreLog,
+      long refreshMillis, boolean quiet) {
+    _challenge = challenge;
+    _challenger = scoreLog.challenger;
+    _quiet = quiet;
+    _botLists = Maps.newHashMap();
+    _groupNames = Lists.newArrayList();
+    List<List<BotList>> groupBotLists = Lists.newArrayList();
+    if (challenge.hasGroups()) {
+      for (BotListGroup group : challenge.referenceBotGroups) {
+        _groupNames.add(group.name);
+        groupBotLists.add(group.referenceBots);
+      }
+    } else {
+      groupBotLists.add(challenge.allReferenceBots);
+    }
+    _groupBotLists = Lists.newArrayList();
+    for (int x = 0; x < groupBotLists.size(); x++) {
+      List<BotListState> groupStates = Lists.newArrayList();
+      for (BotList botList : groupBotLists.get(x)) {
+        BotListId botListId = botList.getBotListId();
+        BotListState state = _botLists.get(botListId);
+        if (state == null) {
+          state = new BotListState();
+          _botLists.put(botListId, state);
+        }
+        if (!state.groups.contains(x)) {
+          state.groups.add(x);
+        }
+        state.occurrences++;
+        groupStates.add(state);
+      }
+      _groupBotLists.add(groupStates);
+    }
+    _groupScoreSums = new double[groupBotLists.size()];
+    _groupVarianceSums = new double[groupBotLists.size()];
+    _groupScoredBotLists = new int[groupBotLists.size()];
+
+    for (BotListId botList : _botLists.keySet()) {
+      if (scoreLog.hasBotList(botList)) {
+        update(botList, scoreLog.getAverageBattleScore(botList),
+            scoreLog.getScoreError(botList, challenge.scoringStyle));
+      }
+    }
+
+    _events = Queues.newConcurrentLinkedQueue();
+    _printLock = new Object();
+    _printer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("LiveScoreboard")
+            .setDaemon(true).build());
+    _printer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        print();
+      }
+    }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Records a battle and queues it to be printed.
+   *
+   * @param botList the battle's bot list, without the challenger
+   * @param lastScore scores from the battle
+   * @param avgScore average scores against the bot list, including this
+   *     battle
+   * @param scoreError score distribution against the bot list, including
+   *     this battle
+   * @param elapsedTime elapsed time of the battle, in nanoseconds
+   */
+  public void battleAdded(BotListId botList, BattleScore lastScore,
+      BattleScore avgScore, ScoreError scoreError, long elapsedTime) {
+    synchronized (this) {
+      if (_botLists.containsKey(botList)) {
+        update(botList, avgScore, scoreError);
+      }
+    }
+    if (!_quiet) {
+      _events.add(new Event(botList, lastScore, avgScore,
+          scoreError.getNumBattles(), scoreError.getStandardError(),
+          elapsedTime));
+    }
+  }
+
+  /**
+   * Queues a message to be printed after the battles before it.
+   *
+   * @param message the message
+   */
+  public void println(String message) {
+    _events.add(new Event(message));
+  }
+
+  private void update(
+      BotListId botList, BattleScore avgScore, ScoreError scoreError) {
+    BotListState state = _botLists.get(botList);
+    RobotScore totalRobotScore = avgScore.getRelativeTotalScore(_challenger);
+    _numBattles +=
+        state.occurrences * (totalRobotScore.numBattles - state.numBattles);
+    if (!state.faced) {
+      _scoredBotLists += state.occurrences;
+    }
+    state.faced = true;
+    state.score = _challenge.scoringStyle.getScore(totalRobotScore);
+    state.numBattles = totalRobotScore.numBattles;
+    state.variance =
+        RunnerUtil.square(scoreError.getClampedStandardError());
+    state.scoredBattles = scoreError.getNumBattles();
+    for (int group : state.groups) {
+      sumGroup(group);
+    }
+  }
+
+  private void sumGroup(int group) {
+    double sumScores = 0;
+    double sumVariances = 0;
+    int scoredBotLists = 0;
+    for (BotListState state : _groupBotLists.get(group)) {
+      if (state.faced) {
+        sumScores += state.score;
+        sumVariances += state.variance;
+        scoredBotLists++;
+      }
+    }
+    _groupScoreSums[group] = sumScores;
+    _groupVarianceSums[group] = sumVariances;
+    _groupScoredBotLists[group] = scoredBotLists;
+  }
+
+  /**
+   * @return the challenger's current scores, without the wiki format
+   */
+  public synchronized ChallengeScore getScore() {
+    int numBotLists = _challenge.allReferenceBots.size();
+    boolean hasGroups = !_groupNames.isEmpty();
+    Map<String, Double> groupScores = Maps.newLinkedHashMap();
+    double sumScores = 0;
+    double sumVariances = 0;
+    int scoredGroups = 0;
+    for (int x = 0; x < _groupScoreSums.length; x++) {
+      int scored = _groupScoredBotLists[x];
+      double groupScore = round(_groupScoreSums[x] / scored, 2);
+      if (hasGroups) {
+        groupScores.put(_groupNames.get(x), groupScore);
+      }
+      if (scored > 0) {
+        sumScores += hasGroups ? groupScore : _groupScoreSums[x] / scored;
+        sumVariances += _groupVarianceSums[x] / RunnerUtil.square(scored);
+        scoredGroups++;
+      }
+    }
+    double overallScore = round(sumScores / scoredGroups, 2);
+    int minBattles = Integer.MAX_VALUE;
+    for (BotListState state : _botLists.values()) {
+      if (state.faced) {
+        minBattles = Math.min(minBattles, state.scoredBattles);
+      }
+    }
+    boolean hasConfidence =
+        ChallengeScore.hasConfidence(_numBattles, minBattles);
+    double confidence = hasConfidence
+        ? 1.96 * Math.sqrt(sumVariances) / scoredGroups : 0;
+    return new ChallengeScore(_challenger, overallScore, confidence,
+        hasConfidence, 0, false, round(((double) _numBattles) / numBotLists, 2),
+        _scoredBotLists, numBotLists, groupScores, "");
+  }
+
+  /**
+   * Stops the printing thread, after printing anything still queued.
+   */
+  public void shutdown() {
+    _printer.shutdown();
+    try {
+      _printer.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    print();
+  }
+
+  private void print() {
+    synchronized (_printLock) {
+      boolean printedBattles = false;
+      Event event;
+      while ((event = _events.poll()) != null) {
+        if (event.message != null) {
+          System.out.println(event.message);
+        } else {
+          printBattleScore(event);
+          printedBattles = true;
+        }
+      }
+      ChallengeScore score = getScore();
+      String overallScore = getOverallScoreLine(score);
+      if (printedBattles || !overallScore.equals(_lastOverallScore)) {
+        printOverallScores(score, false);
+        _lastOverallScore = overallScore;
+      }
+    }
+  }
+
+  private void printBattleScore(Event event) {
+    ScoringStyle scoringStyle = _challenge.scoringStyle;
+    System.out.println("  " + _challenger + " vs "
+        + event.botList.toString().replace(",", ", ") + ": "
+        + round(scoringStyle.getScore(
+            event.lastScore.getRelativeTotalScore(_challenger)), 2)
+        + ", took " + formatBattleTime(event.elapsedTime));
+    if (event.numBattles > 1) {
+      System.out.println("    Average: "
+          + round(scoringStyle.getScore(
+              event.avgScore.getRelativeTotalScore(_challenger)), 2)
+          + "  +- " + round(1.96 * event.standardError, 2)
+          + "  (" +  event.numBattles + " battles)");
+    }
+    if (event.lastScore.getRobotScores().size() > 2) {
+      printMeleeScores(event.lastScore, event.avgScore);
+    }
+  }
+
+  private void printMeleeScores(BattleScore lastScore, BattleScore avgScore) {
+    ScoringStyle scoringStyle = _challenge.scoringStyle;
+    RobotScore challengerScore = lastScore.getRobotScore(_challenger);
+    RobotScore avgChallengerScore = avgScore.getRobotScore(_challenger);
+
+    Map<RobotScore, RobotScore> avgScoreMap = Maps.newHashMap();
+    List<RobotScore> avgRobotScores =
+        Lists.newArrayList(avgScore.getRobotScores());
+    avgRobotScores.remove(avgChallengerScore);
+    for (RobotScore robotScore : lastScore.getRobotScores()) {
+      if (robotScore != challengerScore) {
+        Iterator<RobotScore> avgRobotScoreIterator = avgRobotScores.iterator();
+        while (avgRobotScoreIterator.hasNext()) {
+          RobotScore avgRobotScore = avgRobotScoreIterator.next();
+          if (robotScore.botName.equals(avgRobotScore.botName)) {
+            avgScoreMap.put(robotScore, avgRobotScore);
+            avgRobotScoreIterator.remove();
+            break;
+          }
+        }
+      }
+    }
+    for (RobotScore robotScore : lastScore.getRobotScores()) {
+      if (robotScore != challengerScore) {
+        RobotScore relativeScore = challengerScore.getScoreRelativeTo(
+            robotScore, lastScore.getNumRounds());
+        RobotScore avgRelativeScore = avgChallengerScore.getScoreRelativeTo(
+            avgScoreMap.get(robotScore), avgScore.getNumRounds());
+        System.out.println("    vs " + robotScore.botName + ": "
+            + round(scoringStyle.getScore(relativeScore), 2)
+            + ", avg: "
+            + round(scoringStyle.getScore(avgRelativeScore), 2));
+      }
+    }
+  }
+
+  /**
+   * Prints the overall score, and the score against each group.
+   *
+   * @param score the challenger's scores
+   * @param printWikiFormat true to also print the row for the RoboWiki
+   */
+  static void printOverallScores(ChallengeScore score,
+      boolean printWikiFormat) {
+    System.out.println(getOverallScoreLine(score));
+    for (Map.Entry<String, Double> groupScore
+        : score.getGroupScores().entrySet()) {
+      System.out.println(
+          "  " + groupScore.getKey() + ": " + groupScore.getValue());
+    }
+    if (printWikiFormat) {
+      System.out.println("Wiki format: " + score.getWikiScores());
+      System.out.println();
+    }
+  }
+
+  private static String getOverallScoreLine(ChallengeScore score) {
+    String botsFaced = "";
+    if (score.scoredBotLists < score.numBotLists) {
+      double percentBotsFaced =
+          100 * ((double) score.scoredBotLists) / score.numBotLists;
+      botsFaced = "  (" + round(Math.min(percentBotsFaced, 99.9), 1)
+          + "% bots faced)";
+    }
+    return "Overall score: " + score.overallScore
+        + (score.hasConfidence ? "  +- " + round(score.confidence, 2) : "")
+        + (score.hasSimulatedConfidence ? "  (simulated +- "
+            + round(score.simulatedConfidence, 2) + ")" : "")
+        + "  (" + score.numSeasons + " seasons)" + botsFaced;
+  }
+
+  private static class BotListState {
+    public final List<Integer> groups = Lists.newArrayList();
+    public int occurrences;
+    public boolean faced;
+    public double score;
+    public int numBattles;
+    public double variance;
+    public int scoredBattles;
+  }
+
+  private static class Event {
+    public final BotListId botList;
+    public final BattleScore lastScore;
+    public final BattleScore avgScore;
+    public final int numBattles;
+    public final double standardError;
+    public final long elapsedTime;
+    public final String message;
+
+    public Event(BotListId botList, BattleScore lastScore,
+        BattleScore avgScore, int numBattles, double standardError,
+        long elapsedTime) {
+      this.botList = botList;
+      this.lastScore = lastScore;
+      this.avgScore = avgScore;
+      this.numBattles = numBattles;
+      this.standardError = standardError;
+      this.elapsedTime = elapsedTime;
+      this.message = null;
+    }
+
+    public Event(String message) {
+      this.botList = null;
+      this.lastScore = null;
+      this.avgScore = null;
+      this.numBattles = 0;
+      this.standardError = 0;
+      this.elapsedTime = 0;
+      this.message = message;
+    }
+  }
+}
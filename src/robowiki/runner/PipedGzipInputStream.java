@@ -0,0 +1,74 @@
+package robowiki.runner;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a gzipped file, inflating it on a separate thread so decompression
+ * overlaps with whatever is consuming the data, like an XML parser. Closing
+ * the stream stops the inflating thread.
+ */
+class PipedGzipInputStream extends PipedInputStream {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private volatile IOException _inflateException;
+
+  /**
+   * @param filePath path of the gzipped file
+   * @throws IOException if the file can't be opened or isn't gzipped
+   */
+  public PipedGzipInputStream(String filePath) throws IOException {
+    super(BUFFER_SIZE);
+    final InputStream gzipInputStream =
+        new GZIPInputStream(new FileInputStream(filePath), BUFFER_SIZE);
+    final PipedOutputStream pipeOutputStream = new PipedOutputStream(this);
+    Thread inflateThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+          int bytesRead;
+          while ((bytesRead = gzipInputStream.read(buffer)) != -1) {
+            pipeOutputStream.write(buffer, 0, bytesRead);
+          }
+        } catch (IOException e) {
+          _inflateException = e;
+        } finally {
+          try {
+            pipeOutputStream.close();
+          } catch (IOException e) {
+            // the reader has stopped reading, so nothing is waiting on us
+          }
+          try {
+            gzipInputStream.close();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    }, "PipedGzipInputStream");
+    inflateThread.setDaemon(true);
+    inflateThread.start();
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    return checkInflated(super.read());
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    return checkInflated(super.read(b, off, len));
+  }
+
+  private int checkInflated(int result) throws IOException {
+    if (result == -1 && _inflateException != null) {
+      throw new IOException("Failed to inflate file", _inflateException);
+    }
+    return result;
+  }
+}
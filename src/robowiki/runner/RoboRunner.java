@@ -1,5 +1,6 @@
 package robowiki.runner;
 
+import static robowiki.runner.RunnerUtil.formatBattleTime;
 import static robowiki.runner.RunnerUtil.getCombinedArgs;
 import static robowiki.runner.RunnerUtil.parseBooleanArgument;
 import static robowiki.runner.RunnerUtil.parseStringArgument;
@@ -11,18 +12,17 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-
-import javax.xml.stream.XMLStreamException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import robowiki.runner.BattleRunner.BattleResultHandler;
-import robowiki.runner.BattleRunner.BattleSelector;
-import robowiki.runner.ChallengeConfig.BotListGroup;
 import robowiki.runner.RobotScore.ScoringStyle;
 import robowiki.runner.ScoreLog.BattleScore;
 
@@ -36,32 +36,66 @@ import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 
 public class RoboRunner {
-  private static final String PROPERTIES_FILENAME = "roborunner.properties";
+  static final String PROPERTIES_FILENAME = "roborunner.properties";
   private static final String DATA_DIR = "data";
-  private static final String ROBOCODE_PATHS_PROPERTY = "robocodePaths";
-  private static final String JVM_ARGS_PROPERTY = "jvmArgs";
+  static final String ROBOCODE_PATHS_PROPERTY = "robocodePaths";
+  static final String JVM_ARGS_PROPERTY = "jvmArgs";
+  private static final String WORKERS_PROPERTY = "workers";
   private static final String BOTS_DIRS_PROPERTY = "botsDirs";
-  private static final String DEFAULT_JVM_ARGS = "-Xmx512M";
+  private static final String JOURNAL_SYNC_PROPERTY = "journalSyncBattles";
+  private static final String JOURNAL_COMPACT_PROPERTY =
+      "journalCompactBattles";
+  static final String DEFAULT_JVM_ARGS = "-Xmx512M";
   private static final String DEFAULT_BOTS_DIRS = "./bots";
+  private static final String DEFAULT_JOURNAL_SYNC = "1";
+  private static final String DEFAULT_JOURNAL_COMPACT = "100";
+  private static final String BATTLE_HISTORY_PROPERTY = "battleHistory";
+  private static final String DEFAULT_BATTLE_HISTORY = "0";
+  static final String SCORE_STORE_PROPERTY = "scoreStore";
+  static final String XML_SCORE_STORE = "xml";
+  private static final String SHARED_SCORE_STORE = "shared";
+  private static final String SHARED_SCORE_STORE_FILENAME = "scores.db";
   private static final String SLASH = System.getProperty("file.separator");
-  private static final double SMART_BATTLE_RANDOM_RATE = 0.1;
+  private static final double BOOTSTRAP_CONFIDENCE_LEVEL = 0.95;
+  private static final int BOOTSTRAP_ITERATIONS = 10000;
+  private static final int UNLIMITED_SEASONS = Integer.MAX_VALUE;
+  private static final double DEFAULT_BATTLE_TIME = 30000000000.0;
+  private static final double DEFAULT_REFRESH_SECONDS = 1;
+  private static final double EARLY_STOP_Z_SCORE = 1.96; // 95% confidence
+  private static final int EARLY_STOP_MIN_BATTLES = 3;
+  private static final double EARLY_STOP_MIN_ROUNDS_FRACTION = 0.5;
 
   private BattleRunner _battleRunner;
   private RunnerConfig _config;
   private boolean _missingBots;
-  private List<String> _runningBotLists;
+  private AtomicInteger _stoppedBattles;
+  private AtomicLong _skippedRounds;
 
   public static void main(String[] args) {
     args = getCombinedArgs(args);
+    if (parseStringArgument("compare", args) != null) {
+      CompareReport.main(args);
+      return;
+    }
     String challengerBot = parseStringArgument("bot", args,
         "ERROR: Pass a bot with -bot, eg: -bot voidious.Dookious 1.573c");
     String challengeFile = parseStringArgument("c", args,
         "ERROR: Pass a challenge file with -c, eg: -c challenges" + SLASH
         + "testbed.rrc");
+    double targetError = 0;
+    String targetErrorArg = parseStringArgument("targetError", args);
+    if (targetErrorArg != null) {
+      try {
+        targetError = Double.parseDouble(targetErrorArg);
+      } catch (NumberFormatException nfe) {
+        // semi-expected
+      }
+    }
     int seasons = -1;
     try {
       seasons = Integer.parseInt(parseStringArgument("seasons", args,
-          "ERROR: Pass number of seasons with -seasons, eg: -seasons 10"));
+          (targetError > 0) ? null : "ERROR: Pass number of seasons with "
+              + "-seasons, eg: -seasons 10"));
     } catch (NumberFormatException nfe) {
       // semi-expected
     }
@@ -76,13 +110,68 @@ public class RoboRunner {
     }
     boolean forceWikiOutput = parseBooleanArgument("wiki", args);
     boolean smartBattles = parseBooleanArgument("smart", args);
+    if (targetError > 0 && seasons == -1) {
+      seasons = UNLIMITED_SEASONS;
+      smartBattles = true;
+    }
+    boolean simulateConfidence = parseBooleanArgument("simulate", args);
+    boolean bootstrap = parseBooleanArgument("bootstrap", args);
+    long bootstrapSeed = 0;
+    String seedArg = parseStringArgument("seed", args);
+    if (seedArg != null) {
+      try {
+        bootstrapSeed = Long.parseLong(seedArg);
+      } catch (NumberFormatException nfe) {
+        // semi-expected
+      }
+    }
+    boolean elastic = parseBooleanArgument("elastic", args);
+    int minEngines = 1;
+    String minEnginesArg = parseStringArgument("minEngines", args);
+    if (minEnginesArg != null) {
+      try {
+        minEngines = Integer.parseInt(minEnginesArg);
+      } catch (NumberFormatException nfe) {
+        // semi-expected
+      }
+    }
+    int pipelineDepth = 1;
+    String pipelineArg = parseStringArgument("pipeline", args);
+    if (pipelineArg != null) {
+      try {
+        pipelineDepth = Integer.parseInt(pipelineArg);
+      } catch (NumberFormatException nfe) {
+        // semi-expected
+      }
+    }
+    double earlyStop = 0;
+    String earlyStopArg = parseStringArgument("earlyStop", args);
+    if (earlyStopArg != null) {
+      try {
+        earlyStop = Double.parseDouble(earlyStopArg);
+      } catch (NumberFormatException nfe) {
+        // semi-expected
+      }
+    }
+    boolean quiet = parseBooleanArgument("quiet", args);
+    double refreshSeconds = DEFAULT_REFRESH_SECONDS;
+    String refreshArg = parseStringArgument("refresh", args);
+    if (refreshArg != null) {
+      try {
+        refreshSeconds = Double.parseDouble(refreshArg);
+      } catch (NumberFormatException nfe) {
+        // semi-expected
+      }
+    }
     if (challengerBot == null || challengeFile == null || seasons == -1) {
       printHelp();
       return;
     }
 
     RoboRunner runner = new RoboRunner(challengerBot, challengeFile, seasons,
-        threads, forceWikiOutput, smartBattles);
+        threads, forceWikiOutput, smartBattles, simulateConfidence, bootstrap,
+        bootstrapSeed, targetError, quiet, refreshSeconds, elastic,
+        minEngines, pipelineDepth, earlyStop);
     if (runner.isMissingBots()) {
       System.out.println("Aborted due to missing bots.");
       System.out.println();
@@ -140,6 +229,62 @@ public class RoboRunner {
     out.println("  -smart       -- smart battle selection to get accurate "
         + "overall score");
     out.println("                  as quickly as possible");
+    out.println("  -simulate    -- also simulate the confidence interval "
+        + "of the overall");
+    out.println("                  score, to check the calculated one");
+    out.println("  -bootstrap   -- print confidence intervals from resampling "
+        + "the battle");
+    out.println("                  scores, which aren't always normally "
+        + "distributed");
+    out.println("  -seed <seed> -- random seed for -bootstrap, default 0");
+    out.println("  -targetError <error>");
+    out.println("               -- stop once the overall score's confidence "
+        + "interval is");
+    out.println("                  within +- <error>. -seasons is then "
+        + "optional and caps");
+    out.println("                  the run; without it, smart battles run "
+        + "until the target");
+    out.println("                  is met");
+    out.println("  -elastic     -- start and retire Robocode processes "
+        + "between battles to");
+    out.println("                  fit the free cores and load average, up "
+        + "to -t or the");
+    out.println("                  number of installs");
+    out.println("  -minEngines <n>");
+    out.println("               -- fewest processes to keep with -elastic, "
+        + "default 1");
+    out.println("  -pipeline <n>");
+    out.println("               -- battles to queue on each Robocode process, "
+        + "so it starts");
+    out.println("                  the next one without waiting for results "
+        + "to be saved,");
+    out.println("                  default 1");
+    out.println("  -earlyStop <error>");
+    out.println("               -- stop a battle once its remaining rounds "
+        + "are unlikely to");
+    out.println("                  change its score by more than +- <error>, "
+        + "judged from its");
+    out.println("                  score so far and earlier battles against "
+        + "its bot list.");
+    out.println("                  Battles run at least half their rounds, "
+        + "and stopped");
+    out.println("                  battles count for the rounds they ran");
+    out.println("  -quiet       -- only print the overall score while running, "
+        + "not each");
+    out.println("                  battle");
+    out.println("  -refresh <seconds>");
+    out.println("               -- how often to print scores while running, "
+        + "default 1");
+    out.println();
+    out.println("To compare the scores of several challengers without "
+        + "running any");
+    out.println("battles, pass them with -compare instead of -bot and "
+        + "-seasons, eg:");
+    out.println("  rr.sh -c challenge.rrc -compare package.BotName*, "
+        + "package.OtherBot 1.0");
+    out.println("Challengers may use * and ? as wildcards. Their score logs "
+        + "are loaded");
+    out.println("and scored in parallel, using -t threads if given.");
     out.println();
     out.println("Things you can configure in roborunner.properties:");
     out.println("  robocodePaths=<comma delimited list of Robocode installs>");
@@ -147,6 +292,29 @@ public class RoboRunner {
     		+ "processes>");
     out.println("  botsDirs=<comma delimited list of dirs to look for bot "
         + "JARs>");
+    out.println("  journalSyncBattles=<battles per fsync of the score "
+        + "journal, 0 for none>");
+    out.println("  journalCompactBattles=<battles to journal before saving "
+        + "the full score log>");
+    out.println("  scoreStore=<xml for a score log per challenger (default), "
+        + "shared for one");
+    out.println("              indexed database of all challengers>");
+    out.println("  battleHistory=<battles to keep per bot list, older ones "
+        + "are summarized,");
+    out.println("                 0 to keep all>");
+    out.println("  workers=<comma delimited list of host:port of battle "
+        + "workers to also run");
+    out.println("           battles on>");
+    out.println();
+    out.println("A battle worker runs Robocode processes for RoboRunner on "
+        + "another machine.");
+    out.println("Set it up like RoboRunner, with the bots in its Robocode "
+        + "installs, and run");
+    out.println("  java -cp <classpath from rr.sh> "
+        + "robowiki.runner.BattleWorker -port <port>");
+    out.println("-elastic is ignored when workers are configured. Only run "
+        + "workers on a");
+    out.println("trusted network.");
     out.println();
     out.println("Guava library should be placed in the lib dir, and rr.sh");
     out.println("must include it in the classpath. Available from:");
@@ -157,26 +325,38 @@ public class RoboRunner {
   }
 
   public RoboRunner(String challengerBot, String challengeFilePath,
-      int seasons, int threads, boolean forceWikiOutput, boolean smartBattles) {
+      int seasons, int threads, boolean forceWikiOutput, boolean smartBattles,
+      boolean simulateConfidence, boolean bootstrap, long bootstrapSeed,
+      double targetError, boolean quiet, double refreshSeconds,
+      boolean elastic, int minEngines, int pipelineDepth, double earlyStop) {
     _config = loadConfig(Preconditions.checkNotNull(challengerBot),
                          Preconditions.checkNotNull(challengeFilePath),
-                         seasons, threads, forceWikiOutput, smartBattles);
+                         seasons, threads, forceWikiOutput, smartBattles,
+                         simulateConfidence, bootstrap, bootstrapSeed,
+                         targetError, quiet, refreshSeconds, elastic,
+                         minEngines, pipelineDepth, earlyStop);
+    _stoppedBattles = new AtomicInteger(0);
+    _skippedRounds = new AtomicLong(0);
     if (seasons > 0) {
       _missingBots = false;
-      _runningBotLists = Lists.newArrayList();
       copyBots(_config.botsDirs);
       if (!isMissingBots()) {
         _battleRunner = new BattleRunner(_config.robocodePaths,
-            _config.jvmArgs, _config.challenge.rounds,
+            _config.remoteEnginePaths, _config.jvmArgs,
+            _config.challenge.rounds,
             _config.challenge.battleFieldWidth,
-            _config.challenge.battleFieldHeight);
+            _config.challenge.battleFieldHeight, _config.minEngines);
+        _battleRunner.setPipelineDepth(_config.pipelineDepth);
       }
     }
   }
 
   private RunnerConfig loadConfig(String challengerBot,
       String challengeFilePath, int seasons, int threads,
-      boolean forceWikiOutput, boolean smartBattles) {
+      boolean forceWikiOutput, boolean smartBattles,
+      boolean simulateConfidence, boolean bootstrap, long bootstrapSeed,
+      double targetError, boolean quiet, double refreshSeconds,
+      boolean elastic, int minEngines, int pipelineDepth, double earlyStop) {
     Properties runnerProperties = loadRoboRunnerProperties();
     Iterable<String> pathsIterator = Iterables.transform(
         Lists.newArrayList(runnerProperties.getProperty(ROBOCODE_PATHS_PROPERTY)
@@ -197,12 +377,65 @@ public class RoboRunner {
       }
     }
 
+    Set<String> remoteEnginePaths = Sets.newLinkedHashSet();
+    String workers = runnerProperties.getProperty(WORKERS_PROPERTY, "").trim();
+    if (seasons > 0 && !workers.isEmpty()) {
+      remoteEnginePaths.addAll(listRemoteEngines(workers.split(" *, *")));
+      if (elastic && !remoteEnginePaths.isEmpty()) {
+        System.out.println("WARNING: -elastic doesn't work with workers, "
+            + "ignoring it.");
+        elastic = false;
+      }
+    }
+
     String jvmArgs = runnerProperties.getProperty(JVM_ARGS_PROPERTY);
     List<String> botsDirs = Lists.newArrayList(
         runnerProperties.getProperty(BOTS_DIRS_PROPERTY).trim().split(" *, *"));
+    int journalSyncBattles = Integer.parseInt(runnerProperties.getProperty(
+        JOURNAL_SYNC_PROPERTY, DEFAULT_JOURNAL_SYNC).trim());
+    int journalCompactBattles = Integer.parseInt(runnerProperties.getProperty(
+        JOURNAL_COMPACT_PROPERTY, DEFAULT_JOURNAL_COMPACT).trim());
+    String scoreStore = runnerProperties.getProperty(
+        SCORE_STORE_PROPERTY, XML_SCORE_STORE).trim();
+    int battleHistory = Integer.parseInt(runnerProperties.getProperty(
+        BATTLE_HISTORY_PROPERTY, DEFAULT_BATTLE_HISTORY).trim());
     ChallengeConfig challenge = ChallengeConfig.load(challengeFilePath);
-    return new RunnerConfig(robocodePaths, jvmArgs, botsDirs, challenge,
-        challengerBot, seasons, forceWikiOutput, smartBattles);
+    return new RunnerConfig(robocodePaths, remoteEnginePaths, jvmArgs,
+        botsDirs, challenge, challengerBot, seasons, forceWikiOutput,
+        smartBattles, simulateConfidence, bootstrap, bootstrapSeed,
+        targetError, quiet, refreshSeconds, elastic ? minEngines
+            : robocodePaths.size() + remoteEnginePaths.size(),
+        Math.max(1, pipelineDepth), earlyStop, journalSyncBattles,
+        journalCompactBattles, scoreStore, battleHistory);
+  }
+
+  /**
+   * @param workers host:port of each battle worker
+   * @return paths of the engines on the workers that could be reached
+   */
+  private static List<String> listRemoteEngines(String[] workers) {
+    List<String> remoteEnginePaths = Lists.newArrayList();
+    for (String worker : workers) {
+      int colonIndex = worker.lastIndexOf(':');
+      int port = -1;
+      try {
+        port = Integer.parseInt(worker.substring(colonIndex + 1));
+      } catch (NumberFormatException nfe) {
+        // semi-expected
+      }
+      if (colonIndex <= 0 || port < 0) {
+        System.out.println("WARNING: Not a worker host:port: " + worker);
+        continue;
+      }
+      try {
+        remoteEnginePaths.addAll(EngineHandle.listRemoteEngines(
+            worker.substring(0, colonIndex), port));
+      } catch (IOException e) {
+        System.out.println("WARNING: Couldn't reach worker " + worker + ": "
+            + e);
+      }
+    }
+    return remoteEnginePaths;
   }
 
   private Properties loadRoboRunnerProperties() {
@@ -309,47 +542,83 @@ public class RoboRunner {
     printRunnerHeaders(challenge, challenger);
     long startTime = System.nanoTime();
 
-    final String xmlFilePath = DATA_DIR + SLASH + challenger + ".xml.gz";
-    final ScoreLog scoreLog = loadScoreLog(challenger, xmlFilePath);
+    final ScoreStore scoreStore = newScoreStore(challenge);
+    final ScoreLog scoreLog = loadScoreLog(scoreStore, challenger);
+    scoreLog.setHistory(_config.battleHistory);
     final ScoringStyle scoringStyle = challenge.scoringStyle;
     final boolean printWikiFormat =
         scoringStyle.isChallenge() || _config.forceWikiOutput;
-    final Map<String, ScoreError> errorMap =
-        getScoreErrorMap(scoreLog, scoringStyle, challenger);
+    final Map<BotListId, ScoreError> errorMap =
+        ChallengeScore.getScoreErrorMap(scoreLog, scoringStyle);
 
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
-        scoreLog.saveScoreLog(xmlFilePath);
+        scoreStore.close();
       }
     });
 
-    if (_config.seasons > 0) {
+    if (_config.seasons > 0 && isTargetErrorMet(ChallengeScore.score(
+        scoreLog, challenge, errorMap, false, false))) {
+      System.out.println("Already within target error of +- "
+          + _config.targetError + ", not running any battles.");
+      System.out.println();
+    } else if (_config.seasons > 0) {
+      SmartBattleSelector battleSelector = null;
+      if (_config.smartBattles) {
+        battleSelector = new SmartBattleSelector(
+            getBattleList(scoreLog, challenge, challenger, 2), challenger,
+            errorMap, challenge.allReferenceBots.size()
+                <= _config.threads * _config.pipelineDepth);
+      }
+      double longestBattleTime = 0;
+      for (double battleTime
+          : getPredictedBattleTimes(scoreLog, challenge).values()) {
+        longestBattleTime = Math.max(longestBattleTime, battleTime);
+      }
+      _battleRunner.setExpectedBattleTime((long) longestBattleTime);
+      LiveScoreboard scoreboard = new LiveScoreboard(challenge, scoreLog,
+          Math.max(1, Math.round(1000 * _config.refreshSeconds)),
+          _config.quiet);
       BattleResultHandler resultHandler = newBattleResultHandler(scoreLog,
-          challenge, challenger, xmlFilePath, errorMap, printWikiFormat);
+          challenge, scoreStore, errorMap, battleSelector, scoreboard);
       if (_config.smartBattles) {
-        BattleSelector battleSelector = newBattleSelector(
-            getBattleList(scoreLog, challenge, challenger, 2), challenge,
-            challenger, errorMap);
-        int numBattles =
-            (_config.seasons) * (_config.challenge.allReferenceBots.size())
-                - scoreLog.getBattleCount(_config.challenge.allReferenceBots);
+        int numBattles = (int) Math.min(Integer.MAX_VALUE,
+            ((long) _config.seasons) * challenge.allReferenceBots.size()
+                - scoreLog.getBattleCount(challenge.allReferenceBots));
         _battleRunner.runBattles(battleSelector, resultHandler, numBattles);
       } else {
         _battleRunner.runBattles(
             getBattleList(scoreLog, challenge, challenger), resultHandler);
       }
+      scoreboard.shutdown();
       System.out.println();
       System.out.println("Done! Took "
           + formatBattleTime(System.nanoTime() - startTime));
+      if (_battleRunner.getEngineFailures() > 0) {
+        System.out.println("Engine failures: "
+            + _battleRunner.getEngineFailures() + " ("
+            + _battleRunner.getTimeouts() + " timed out), battles retried: "
+            + _battleRunner.getRetries() + ", battles given up: "
+            + _battleRunner.getFailedBattles());
+      }
+      if (_stoppedBattles.get() > 0) {
+        System.out.println("Battles stopped early: " + _stoppedBattles.get()
+            + ", rounds skipped: " + _skippedRounds.get());
+      }
       System.out.println();
     }
 
     printAllScores(scoreLog, challenge, errorMap);
     System.out.println();
-    printOverallScores(
-        scoreLog, errorMap, challenger, challenge, printWikiFormat, true);
+    LiveScoreboard.printOverallScores(ChallengeScore.score(scoreLog,
+        challenge, errorMap, _config.simulateConfidence, true),
+        printWikiFormat);
     System.out.println();
+    if (_config.bootstrap) {
+      printBootstrapScores(scoreLog, challenge);
+      System.out.println();
+    }
   }
 
   private void printRunnerHeaders(
@@ -357,8 +626,23 @@ public class RoboRunner {
     System.out.println();
     System.out.println("Challenger:     " + challenger);
     System.out.println("Challenge:      " + challenge.name);
-    System.out.println("Seasons:        " + _config.seasons);
-    System.out.println("Threads:        " + _config.robocodePaths.size());
+    System.out.println("Seasons:        " + ((_config.seasons
+        == UNLIMITED_SEASONS) ? "Unlimited" : _config.seasons));
+    if (_config.targetError > 0) {
+      System.out.println("Target error:   +- " + _config.targetError);
+    }
+    if (_config.earlyStop > 0) {
+      System.out.println("Early stop:     +- " + _config.earlyStop);
+    }
+    System.out.println("Threads:        "
+        + ((_config.minEngines < _config.threads)
+            ? Math.max(1, _config.minEngines) + "-" + _config.threads
+                + " (elastic)"
+            : _config.threads)
+        + (_config.remoteEnginePaths.isEmpty() ? ""
+            : " (" + _config.remoteEnginePaths.size() + " remote)")
+        + ((_config.pipelineDepth > 1)
+            ? ", pipeline depth " + _config.pipelineDepth : ""));
     System.out.println("Scoring:        "
         + challenge.scoringStyle.getDescription());
     System.out.println("Smart battles:  "
@@ -371,439 +655,315 @@ public class RoboRunner {
     return getBattleList(scoreLog, challenge, challenger, _config.seasons);
   }
 
+  /**
+   * Lists the battles to run for a number of seasons, skipping battles that
+   * have already been run. Within each season, the battles predicted to take
+   * longest go first, so engines aren't left idle at the end of the run
+   * while one long battle finishes. Seasons still run in order, so stopping
+   * early leaves even numbers of battles against each bot list.
+   */
   private List<BotList> getBattleList(ScoreLog scoreLog,
       ChallengeConfig challenge, String challenger, int seasons) {
-    Map<String, Integer> skipMap = getSkipMap(scoreLog);
+    Map<BotListId, Integer> skipMap = getSkipMap(scoreLog);
+    final Map<BotListId, Double> battleTimes =
+        getPredictedBattleTimes(scoreLog, challenge);
     List<BotList> battleList = Lists.newArrayList();
     for (int x = 0; x < seasons; x++) {
+      List<BotList> seasonBotLists = Lists.newArrayList();
       for (BotList botList : challenge.allReferenceBots) {
-        List<String> battleBots = Lists.newArrayList(challenger);
-        List<String> botNames = botList.getBotNames();
-        if (!skip(skipMap, scoreLog.getSortedBotList(botNames))) {
-          battleBots.addAll(botNames);
-          battleList.add(new BotList(battleBots));
+        if (!skip(skipMap, botList.getBotListId())) {
+          seasonBotLists.add(botList);
+        }
+      }
+      Collections.sort(seasonBotLists, new Comparator<BotList>() {
+        @Override
+        public int compare(BotList botList1, BotList botList2) {
+          return Double.compare(battleTimes.get(botList2.getBotListId()),
+              battleTimes.get(botList1.getBotListId()));
         }
+      });
+      for (BotList botList : seasonBotLists) {
+        List<String> battleBots = Lists.newArrayList(challenger);
+        battleBots.addAll(botList.getBotNames());
+        battleList.add(new BotList(battleBots));
       }
     }
     return ImmutableList.copyOf(battleList);
   }
 
-  private Map<String, Integer> getSkipMap(ScoreLog scoreLog) {
-    Map<String, Integer> skipMap = Maps.newHashMap();
-    for (String botList : scoreLog.getBotLists()) {
-      int numBattles = scoreLog.getBattleScores(botList).size();
-      skipMap.put(botList, numBattles);
+  /**
+   * Predicts how long a battle against each bot list in the challenge will
+   * take, from the average time of its past battles. Bot lists that have
+   * never been run are estimated from the average time per opponent of the
+   * ones that have.
+   */
+  private Map<BotListId, Double> getPredictedBattleTimes(
+      ScoreLog scoreLog, ChallengeConfig challenge) {
+    Map<BotListId, Double> battleTimes = Maps.newHashMap();
+    double sumTimePerBot = 0;
+    int numTimedBotLists = 0;
+    for (BotList botList : challenge.allReferenceBots) {
+      BotListId botListId = botList.getBotListId();
+      if (scoreLog.hasBotList(botListId)
+          && !battleTimes.containsKey(botListId)) {
+        BotListTotals totals = scoreLog.getTotals(botListId);
+        double battleTime =
+            ((double) totals.getTotalTime()) / totals.getNumBattles();
+        battleTimes.put(botListId, battleTime);
+        sumTimePerBot += battleTime / botListId.getBotNames().size();
+        numTimedBotLists++;
+      }
     }
-    return skipMap;
-  }
-
-  private boolean skip(Map<String, Integer> skipMap, String sortedBotList) {
-    if (skipMap.containsKey(sortedBotList)) {
-      int skipsLeft = skipMap.get(sortedBotList);
-      if (skipsLeft > 0) {
-        skipMap.put(sortedBotList, skipsLeft - 1);
-        return true;
+    double timePerBot = (numTimedBotLists == 0)
+        ? DEFAULT_BATTLE_TIME : sumTimePerBot / numTimedBotLists;
+    for (BotList botList : challenge.allReferenceBots) {
+      BotListId botListId = botList.getBotListId();
+      if (!battleTimes.containsKey(botListId)) {
+        battleTimes.put(
+            botListId, timePerBot * botListId.getBotNames().size());
       }
     }
-    return false;
+    return battleTimes;
   }
 
-  private Map<String, ScoreError> getScoreErrorMap(
-      ScoreLog scoreLog, ScoringStyle scoringStyle, String challenger) {
-    Map<String, ScoreError> errorMap = Maps.newHashMap();
-    for (String botList : scoreLog.getBotLists()) {
-      errorMap.put(botList,
-          getScoreError(scoreLog, scoringStyle, challenger, botList));
+  private Map<BotListId, Integer> getSkipMap(ScoreLog scoreLog) {
+    Map<BotListId, Integer> skipMap = Maps.newHashMap();
+    for (BotListId botList : scoreLog.getBotLists()) {
+      skipMap.put(botList, scoreLog.getBattleCount(botList));
     }
-    return errorMap;
+    return skipMap;
   }
 
-  private ScoreError getScoreError(ScoreLog scoreLog,
-      ScoringStyle scoringStyle, String challenger, String botList) {
-    List<BattleScore> battleScores = scoreLog.getBattleScores(botList);
-    List<Double> scores = Lists.newArrayList();
-    for (BattleScore battleScore : battleScores) {
-      RobotScore totalScore = battleScore.getRelativeTotalScore(challenger);
-      scores.add(scoringStyle.getScore(totalScore));
+  private boolean skip(Map<BotListId, Integer> skipMap, BotListId botList) {
+    if (skipMap.containsKey(botList)) {
+      int skipsLeft = skipMap.get(botList);
+      if (skipsLeft > 0) {
+        skipMap.put(botList, skipsLeft - 1);
+        return true;
+      }
     }
-    return new ScoreError(scores,
-        scoreLog.getAverageBattleScore(botList).getElapsedTime());
+    return false;
   }
 
-  private ScoreLog loadScoreLog(String challengerBot, String filePath) {
-    File dataFile = new File(filePath);
-    if (dataFile.exists()) {
+  private ScoreStore newScoreStore(ChallengeConfig challenge) {
+    return newScoreStore(_config.scoreStore, challenge,
+        _config.journalSyncBattles, _config.journalCompactBattles, false);
+  }
+
+  /**
+   * Opens the score store in the data directory.
+   *
+   * @param scoreStore the {@code scoreStore} property
+   * @param challenge challenge whose battles will be recorded
+   * @param journalSyncBattles battles per fsync of the score journal
+   * @param journalCompactBattles battles to journal before saving the full
+   *     score log
+   * @param readOnly true for a store that only loads score logs, eg for
+   *     reports, and never writes to the data directory
+   * @return the score store
+   */
+  static ScoreStore newScoreStore(String scoreStore, ChallengeConfig challenge,
+      int journalSyncBattles, int journalCompactBattles, boolean readOnly) {
+    if (scoreStore.equals(SHARED_SCORE_STORE)) {
       try {
-        return ScoreLog.loadScoreLog(filePath);
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-      } catch (XMLStreamException e) {
-        e.printStackTrace();
+        return new SharedScoreStore(
+            DATA_DIR + SLASH + SHARED_SCORE_STORE_FILENAME,
+            challenge.battleFieldWidth, challenge.battleFieldHeight,
+            journalSyncBattles > 0, readOnly);
       } catch (IOException e) {
+        System.out.println("WARNING: Couldn't open shared score database, "
+            + "using XML score logs.");
         e.printStackTrace();
       }
+    } else if (!scoreStore.equals(XML_SCORE_STORE)) {
+      System.out.println("WARNING: Unrecognized " + SCORE_STORE_PROPERTY
+          + ": " + scoreStore + ", using XML score logs.");
     }
-    return new ScoreLog(challengerBot);
-  }
-
-  private void printBattleScore(String challenger, String botList,
-      BattleScore lastScore, BattleScore avgScore, ScoringStyle scoringStyle,
-      long elapsedTime, Map<String, ScoreError> errorMap) {
-    ScoreError scoreError = errorMap.get(botList);
-    System.out.println("  " + challenger + " vs " +
-        botList.replace(",", ", ") + ": "
-        + round(scoringStyle.getScore(
-            lastScore.getRelativeTotalScore(challenger)), 2)
-        + ", took " + formatBattleTime(elapsedTime));
-    if (scoreError.numBattles > 1) {
-      System.out.println("    Average: "
-          + round(scoringStyle.getScore(
-              avgScore.getRelativeTotalScore(challenger)), 2)
-          + "  +- " + round(1.96 * scoreError.getStandardError(), 2)
-          + "  (" +  scoreError.numBattles + " battles)");
-    }
+    return new XmlScoreStore(
+        DATA_DIR, journalSyncBattles, journalCompactBattles, readOnly);
   }
 
-  private void printOverallScores(ScoreLog scoreLog,
-      Map<String, ScoreError> errorMap, String challenger,
-      ChallengeConfig challenge, boolean printWikiFormat, boolean finalScore) {
-    ScoringStyle scoringStyle = challenge.scoringStyle;
-    ScoreSummary scoreSummary = getScoreSummary(
-        scoreLog, challenge.allReferenceBots, scoringStyle);
-    int challengeBotLists = challenge.allReferenceBots.size();
-    double numSeasons =
-        round(((double) scoreSummary.numBattles) / challengeBotLists, 2);
-    double overallScore;
-    StringBuilder groupScores = new StringBuilder();
-    StringBuilder wikiScores = new StringBuilder();
-    wikiScores.append("| [[").append(
-            challenger.replaceAll("^[^ ]*\\.", "").replace(" ", "]] "))
-        .append(" || [[User:Author|Author]] || Type || ");
-
-    boolean showConfidence = (getMinBattles(errorMap) >= 2);
-    int confidenceIterations =
-        (finalScore ? Math.min(20000, 10000000 / scoreSummary.numBattles)
-                    : Math.min(1000, 100000 / scoreSummary.numBattles));
-    double confidence = 0;
-    if (challenge.hasGroups()) {
-      double sumGroups = 0;
-      int scoredGroups = 0;
-      for (BotListGroup group : challenge.referenceBotGroups) {
-        if (group.referenceBots.size() > 1) {
-          for (BotList botList : group.referenceBots) {
-            double wikiScore = getWikiScore(scoreLog, botList, scoringStyle);
-            wikiScores.append(wikiScore).append(" || ");
-          }
-        }
-        ScoreSummary summary = getScoreSummary(
-            scoreLog, group.referenceBots, scoringStyle);
-        double groupScore = summary.getTotalScore();
-        groupScores.append("  ").append(group.name).append(": ")
-            .append(groupScore).append("\n");
-        wikiScores.append("'''").append(groupScore).append("''' || ");
-        if (summary.scoredBotLists > 0) {
-          sumGroups += groupScore;
-          scoredGroups++;
-        }
-      }
-      ScoreSummary overallSummary =
-          new ScoreSummary(sumGroups, scoredGroups, scoredGroups);
-      overallScore = overallSummary.getTotalScore();
-      if (showConfidence) {
-        confidence = getGroupsConfidence(scoreLog, challenge.referenceBotGroups,
-            errorMap, confidenceIterations);
-      }
-    } else {
-      if (printWikiFormat) {
-        for (BotList botList : challenge.allReferenceBots) {
-          double wikiScore = getWikiScore(scoreLog, botList, scoringStyle);
-          wikiScores.append(wikiScore).append(" || ");
-        }
-      }
-      overallScore = scoreSummary.getTotalScore();
-      if (showConfidence) {
-        confidence = getOverallConfidence(scoreLog, challenge.allReferenceBots,
-            errorMap, confidenceIterations);
-      }
-    }
-
-    String botsFaced = "";
-    if (scoreSummary.scoredBotLists < challenge.allReferenceBots.size()) {
-      double percentBotsFaced = 100 * ((double) scoreSummary.scoredBotLists)
-          / challenge.allReferenceBots.size();
-      botsFaced = "  (" + round(Math.min(percentBotsFaced, 99.9), 1)
-          + "% bots faced)";
-    }
-    System.out.println("Overall score: " + overallScore
-        + (showConfidence ? "  +- " + round(confidence, 2) : "")
-        + "  (" + numSeasons + " seasons)" + botsFaced);
-    wikiScores.append("'''").append(overallScore).append("''' || ");
-    wikiScores.append(numSeasons).append(" seasons");
-    if (groupScores.length() > 0) {
-      System.out.print(groupScores.toString());
-    }
-    if (printWikiFormat) {
-      System.out.println("Wiki format: " + wikiScores.toString());
-      System.out.println();
-    }
-  }
-
-  private double getOverallConfidence(ScoreLog scoreLog, List<BotList> botLists,
-      Map<String, ScoreError> errorMap, int iterations) {
-    List<Double> overallScores = Lists.newArrayList();
-    for (int x = 0; x < iterations; x++) {
-      overallScores.add(
-          generateOverallScore(scoreLog, botLists, errorMap));
-    }
-    return 1.96 * RunnerUtil.standardDeviation(overallScores);
-  }
-
-  private double generateOverallScore(ScoreLog scoreLog, List<BotList> botLists,
-      Map<String, ScoreError> errorMap) {
-    double overallTotal = 0;
-    int numScores = 0;
-    for (BotList botList : botLists) {
-      String botListString = scoreLog.getSortedBotList(botList.getBotNames());
-      if (errorMap.containsKey(botListString)) {
-        ScoreError botError = errorMap.get(botListString);
-        overallTotal += botError.generateRandomAverageScore();
-        numScores++;
-      }
-    }
-    return overallTotal / numScores;
-  }
-
-  private double getGroupsConfidence(ScoreLog scoreLog,
-      List<BotListGroup> botListGroups, Map<String, ScoreError> errorMap,
-      int iterations) {
-    List<Double> overallScores = Lists.newArrayList();
-    for (int x = 0; x < iterations; x++) {
-      overallScores.add(
-          generateGroupsScore(scoreLog, botListGroups, errorMap));
-    }
-    return 1.96 * RunnerUtil.standardDeviation(overallScores);
-  }
-
-
-  private double generateGroupsScore(ScoreLog scoreLog,
-      List<BotListGroup> botListGroups, Map<String, ScoreError> errorMap) {
-    double overallTotal = 0;
-    int numGroupScores = 0;
-    for (BotListGroup group : botListGroups) {
-      double groupTotal = 0;
-      int numBotScores = 0;
-      for (BotList botList : group.referenceBots) {
-        String botListString = scoreLog.getSortedBotList(botList.getBotNames());
-        if (errorMap.containsKey(botListString)) {
-          ScoreError botError = errorMap.get(botListString);
-          groupTotal += botError.generateRandomAverageScore();
-          numBotScores++;
-        }
-      }
-      if (numBotScores > 0) {
-        overallTotal += groupTotal / numBotScores;
-        numGroupScores++;
-      }
-    }
-    return overallTotal / numGroupScores;
-  }
-
-  private ScoreSummary getScoreSummary(ScoreLog scoreLog,
-      List<BotList> referenceBots, ScoringStyle scoringStyle) {
-    double sumScores = 0;
-    int numBattles = 0;
-    int scoredBotLists = 0;
-    for (BotList botList : referenceBots) {
-      String botListString = scoreLog.getSortedBotList(botList.getBotNames());
-      if (scoreLog.hasBotList(botListString)) {
-        RobotScore totalRobotScore = scoreLog
-            .getAverageBattleScore(botListString)
-            .getRelativeTotalScore(scoreLog.challenger);
-        sumScores += scoringStyle.getScore(totalRobotScore);
-        scoredBotLists++;
-        numBattles += totalRobotScore.numBattles;
-      }
+  private ScoreLog loadScoreLog(ScoreStore scoreStore, String challengerBot) {
+    try {
+      return scoreStore.load(challengerBot);
+    } catch (IOException e) {
+      e.printStackTrace();
     }
-    return new ScoreSummary(sumScores, numBattles, scoredBotLists);
+    return new ScoreLog(challengerBot);
   }
 
-  private double getWikiScore(
-      ScoreLog scoreLog, BotList botList, ScoringStyle scoringStyle) {
-    String botListString = scoreLog.getSortedBotList(botList.getBotNames());
-    double score = -1;
-    if (scoreLog.hasBotList(botListString)) {
-      RobotScore totalRobotScore = scoreLog
-          .getAverageBattleScore(botListString)
-          .getRelativeTotalScore(scoreLog.challenger);
-      score = round(scoringStyle.getScore(totalRobotScore), 2);
-    }
-    return score;
+  private boolean isTargetErrorMet(ChallengeScore score) {
+    return _config.targetError > 0 && score.hasConfidence
+        && score.scoredBotLists == score.numBotLists
+        && score.confidence <= _config.targetError;
   }
 
   private void printAllScores(ScoreLog scoreLog, ChallengeConfig challenge,
-      Map<String, ScoreError> errorMap) {
+      Map<BotListId, ScoreError> errorMap) {
     System.out.println("All scores:");
     for (BotList botList : challenge.allReferenceBots) {
-      String botListString = scoreLog.getSortedBotList(botList.getBotNames());
-      if (scoreLog.hasBotList(botListString)) {
+      BotListId botListId = botList.getBotListId();
+      if (scoreLog.hasBotList(botListId)) {
         RobotScore totalRobotScore = scoreLog
-            .getAverageBattleScore(botListString)
+            .getAverageBattleScore(botListId)
             .getRelativeTotalScore(scoreLog.challenger);
-        ScoreError scoreError = errorMap.get(botListString);
-        System.out.println("  " + botListString + ": "
+        ScoreError scoreError = errorMap.get(botListId);
+        System.out.println("  " + botListId + ": "
             + round(challenge.scoringStyle.getScore(totalRobotScore), 2)
-            + (scoreError.numBattles > 1
+            + (scoreError.getNumBattles() > 1
                 ? "  +- " + round(1.96 * scoreError.getStandardError(), 2) : "")
-            + "  (" +  scoreError.numBattles + " battles)");
-      }
-    }
-  }
-
-  private void printMeleeScores(BattleScore lastScore, BattleScore avgScore,
-      String challenger, ScoringStyle scoringStyle) {
-    RobotScore challengerScore = lastScore.getRobotScore(challenger);
-    RobotScore avgChallengerScore = avgScore.getRobotScore(challenger);
-
-    Map<RobotScore, RobotScore> avgScoreMap = Maps.newHashMap();
-    List<RobotScore> avgRobotScores =
-        Lists.newArrayList(avgScore.getRobotScores());
-    avgRobotScores.remove(avgChallengerScore);
-    for (RobotScore robotScore : lastScore.getRobotScores()) {
-      if (robotScore != challengerScore) {
-        Iterator<RobotScore> avgRobotScoreIterator = avgRobotScores.iterator();
-        while (avgRobotScoreIterator.hasNext()) {
-          RobotScore avgRobotScore = avgRobotScoreIterator.next();
-          if (robotScore.botName.equals(avgRobotScore.botName)) {
-            avgScoreMap.put(robotScore, avgRobotScore);
-            avgRobotScoreIterator.remove();
-            break;
-          }
-        }
-      }
-    }
-    for (RobotScore robotScore : lastScore.getRobotScores()) {
-      if (robotScore != challengerScore) {
-        RobotScore relativeScore = challengerScore.getScoreRelativeTo(
-            robotScore, lastScore.getNumRounds());
-        RobotScore avgRelativeScore = avgChallengerScore.getScoreRelativeTo(
-            avgScoreMap.get(robotScore), avgScore.getNumRounds());
-        System.out.println("    vs " + robotScore.botName + ": "
-            + round(scoringStyle.getScore(relativeScore), 2)
-            + ", avg: "
-            + round(scoringStyle.getScore(avgRelativeScore), 2));
+            + "  (" +  scoreError.getNumBattles() + " battles)");
       }
     }
   }
 
-  private String formatBattleTime(long battleTime) {
-    return Double.toString(round((double) battleTime / 1000000000, 1)) + "s";
-  }
-
   public void shutdown() {
     if (_battleRunner != null) {
       _battleRunner.shutdown();
     }
   }
 
-  private int getMinBattles(Map<String, ScoreError> errorMap) {
-    int minBattles = Integer.MAX_VALUE;
-    for (ScoreError scoreError : errorMap.values()) {
-      minBattles = Math.min(minBattles, scoreError.numBattles);
-    }
-    return minBattles;
-  }
-
-  private double power(double d, int exp) {
-    double r = 1;
-    for (int x = 0; x < exp; x++) {
-      r *= d;
-    }
-    return r;
-  }
-
   private BattleResultHandler newBattleResultHandler(final ScoreLog scoreLog,
-      final ChallengeConfig challenge, final String challenger,
-      final String xmlFilePath, final Map<String, ScoreError> errorMap,
-      final boolean printWikiFormat) {
+      final ChallengeConfig challenge, final ScoreStore scoreStore,
+      final Map<BotListId, ScoreError> errorMap,
+      final SmartBattleSelector battleSelector,
+      final LiveScoreboard scoreboard) {
     final ScoringStyle scoringStyle = challenge.scoringStyle;
     return new BattleResultHandler() {
       @Override
       public void processResults(
-          List<RobotScore> robotScores, long elapsedTime) {
-        scoreLog.addBattle(robotScores, challenge.rounds, elapsedTime);
-        scoreLog.saveScoreLog(xmlFilePath);
+          List<RobotScore> robotScores, int numRounds, long elapsedTime) {
+        if (numRounds < challenge.rounds) {
+          _stoppedBattles.incrementAndGet();
+          _skippedRounds.addAndGet(challenge.rounds - numRounds);
+        }
+        BattleScore battleScore =
+            scoreLog.addBattle(robotScores, numRounds, elapsedTime);
+        scoreStore.battleAdded(scoreLog, battleScore);
 
-        String botList = scoreLog.getSortedBotListFromScores(robotScores);
+        BotListId botList = scoreLog.getBotListId(robotScores);
         BattleScore lastScore = scoreLog.getLastBattleScore(botList);
         BattleScore avgScore = scoreLog.getAverageBattleScore(botList);
-        errorMap.put(botList,
-            getScoreError(scoreLog, scoringStyle, challenger, botList));
+        ScoreError scoreError = scoreLog.getScoreError(botList, scoringStyle);
+        errorMap.put(botList, scoreError);
+        if (battleSelector != null) {
+          battleSelector.update(botList, scoreError);
+        }
 
-        printBattleScore(challenger, botList, lastScore, avgScore,
-            scoringStyle, elapsedTime, errorMap);
-        if (robotScores.size() > 2) {
-          printMeleeScores(lastScore, avgScore, challenger, scoringStyle);
+        scoreboard.battleAdded(
+            botList, lastScore, avgScore, scoreError, elapsedTime);
+        if (isTargetErrorMet(scoreboard.getScore())) {
+          scoreboard.println("Reached target error of +- "
+              + _config.targetError + ", finishing running battles.");
+          _battleRunner.stopBattles();
+        }
+        long storeLag = scoreStore.getLag();
+        if (storeLag > 2 * Math.max(1, _config.journalCompactBattles)) {
+          scoreboard.println("WARNING: Saving scores is " + storeLag
+              + " battles behind.");
+        }
+        if (battleSelector != null) {
+          battleSelector.battleFinished(botList);
         }
-        printOverallScores(
-            scoreLog, errorMap, challenger, challenge, printWikiFormat, false);
-        _runningBotLists.remove(botList);
       }
-    };
-  }
 
-  private BattleSelector newBattleSelector(List<BotList> initialBattles,
-      final ChallengeConfig challenge, final String challenger,
-      final Map<String, ScoreError> errorMap) {
-    final LinkedList<BotList> battleList = Lists.newLinkedList(initialBattles);
-    return new BattleSelector() {
       @Override
-      public BotList nextBotList() {
-        if (!battleList.isEmpty()) {
-          return battleList.remove();
-        };
-
-        int minBattles = getMinBattles(errorMap);
-        double randomBattleChance =
-            SMART_BATTLE_RANDOM_RATE / power(2, minBattles - 2);
-        String nextBotListString = null;
-        if (Math.random() < randomBattleChance) {
-          List<String> minBotLists = Lists.newArrayList();
-          for (Map.Entry<String, ScoreError> entry : errorMap.entrySet()) {
-            if (entry.getValue().numBattles == minBattles) {
-              minBotLists.add(entry.getKey());
-            }
-          }
-          nextBotListString =
-              minBotLists.get((int) Math.random() * minBotLists.size());
-        } else {
-          double bestGain = Double.NEGATIVE_INFINITY;
-          for (Map.Entry<String, ScoreError> entry : errorMap.entrySet()) {
-            String botListString = entry.getKey();
-            if (challenge.allReferenceBots.size() <= _config.threads
-                || !_runningBotLists.contains(botListString)) {
-              double accuracyGain = entry.getValue().getAccuracyGainRate();
-              if (accuracyGain > bestGain) {
-                bestGain = accuracyGain;
-                nextBotListString = botListString;
-              }
-            }
-          }
+      public boolean processRoundResults(
+          List<RobotScore> robotScores, int round, long elapsedTime) {
+        if (_config.earlyStop <= 0) {
+          return false;
         }
-
-        if (nextBotListString == null) {
-          throw new RuntimeException("Failed to select a battle!");
+        BattleScore battleScore =
+            new BattleScore(robotScores, round, elapsedTime);
+        if (battleScore.getRobotScore(scoreLog.challenger) == null) {
+          return false;
         }
-        _runningBotLists.add(nextBotListString);
-        List<String> nextBotList =
-            Lists.newArrayList(nextBotListString.split(","));
-        nextBotList.add(challenger);
-        return new BotList(nextBotList);
+        double score = scoringStyle.getScore(
+            battleScore.getRelativeTotalScore(scoreLog.challenger));
+        return canStopEarly(errorMap.get(scoreLog.getBotListId(robotScores)),
+            score, round, challenge.rounds);
       }
     };
   }
 
+  /**
+   * Whether the rest of a battle is unlikely to change its score by more
+   * than the early stop error. After some rounds, the battle's final score
+   * differs from its score so far by the fraction of rounds left times the
+   * difference between the average score in the rounds left and the rounds
+   * so far. The rounds left are expected to average somewhere between the
+   * battle's score so far and the average score against the bot list, so
+   * the change is bounded by the fraction of rounds left times the gap
+   * between those, plus the noise of the rounds left. With the per-round
+   * standard deviation of the earlier battles against the bot list, the
+   * standard deviation of that noise is the per-round one times the square
+   * root of rounds left, over the rounds in all.
+   *
+   * <p>This assumes rounds are interchangeable, but bots learn during a
+   * battle, so the first rounds of a battle tend to score differently from
+   * the rest, and stopped battles pull the average towards early rounds.
+   * To limit that, battles always run at least
+   * {@link #EARLY_STOP_MIN_ROUNDS_FRACTION} of their rounds.
+   *
+   * @param scoreError the score distribution against the battle's bot list
+   * @param score the battle's score in the rounds so far
+   * @param round number of rounds that have ended
+   * @param numRounds number of rounds in a full battle
+   * @return true if the battle can be stopped now
+   */
+  private boolean canStopEarly(
+      ScoreError scoreError, double score, int round, int numRounds) {
+    if (scoreError == null
+        || scoreError.getNumBattles() < EARLY_STOP_MIN_BATTLES
+        || round < numRounds * EARLY_STOP_MIN_ROUNDS_FRACTION
+        || round >= numRounds) {
+      return false;
+    }
+    int roundsLeft = numRounds - round;
+    double maxDrift = Math.abs(scoreError.getAverage() - score)
+        * roundsLeft / numRounds;
+    double changeDeviation = scoreError.getRoundStandardDeviation()
+        * Math.sqrt(roundsLeft) / numRounds;
+    return maxDrift + EARLY_STOP_Z_SCORE * changeDeviation
+        <= _config.earlyStop;
+  }
+
+  private void printBootstrapScores(
+      ScoreLog scoreLog, ChallengeConfig challenge) {
+    ForkJoinPool pool = new ForkJoinPool();
+    BootstrapScore bootstrapScore;
+    try {
+      bootstrapScore = BootstrapScore.resample(scoreLog, challenge,
+          BOOTSTRAP_CONFIDENCE_LEVEL, BOOTSTRAP_ITERATIONS,
+          _config.bootstrapSeed, pool);
+    } finally {
+      pool.shutdown();
+    }
+    if (bootstrapScore == null) {
+      return;
+    }
+    System.out.println("Bootstrap "
+        + Math.round(100 * BOOTSTRAP_CONFIDENCE_LEVEL) + "% intervals ("
+        + bootstrapScore.iterations + " resamples, seed "
+        + _config.bootstrapSeed + "):");
+    for (BotList botList : challenge.allReferenceBots) {
+      BotListId botListId = botList.getBotListId();
+      if (bootstrapScore.getBotListInterval(botListId) != null) {
+        System.out.println("  " + botListId + ": "
+            + bootstrapScore.getBotListInterval(botListId));
+      }
+    }
+    for (Map.Entry<String, BootstrapScore.Interval> groupInterval
+        : bootstrapScore.getGroupIntervals().entrySet()) {
+      System.out.println(
+          "  " + groupInterval.getKey() + ": " + groupInterval.getValue());
+    }
+    System.out.println("  Overall: " + bootstrapScore.getOverallInterval());
+  }
+
   private static class RunnerConfig {
     public final Set<String> robocodePaths;
+    public final Set<String> remoteEnginePaths;
     public final String jvmArgs;
     public final List<String> botsDirs;
     public final ChallengeConfig challenge;
@@ -811,12 +971,32 @@ public class RoboRunner {
     public final int seasons;
     public final boolean forceWikiOutput;
     public final boolean smartBattles;
+    public final boolean simulateConfidence;
+    public final boolean bootstrap;
+    public final long bootstrapSeed;
+    public final double targetError;
+    public final boolean quiet;
+    public final double refreshSeconds;
+    public final int minEngines;
+    public final int pipelineDepth;
+    public final double earlyStop;
     public final int threads;
-
-    public RunnerConfig(Set<String> robocodePaths, String jvmArgs,
-        List<String> botsDirs, ChallengeConfig challenge, String challengerBot,
-        int seasons, boolean forceWikiOutput, boolean smartBattles) {
+    public final int journalSyncBattles;
+    public final int journalCompactBattles;
+    public final String scoreStore;
+    public final int battleHistory;
+
+    public RunnerConfig(Set<String> robocodePaths,
+        Set<String> remoteEnginePaths, String jvmArgs, List<String> botsDirs,
+        ChallengeConfig challenge, String challengerBot, int seasons,
+        boolean forceWikiOutput, boolean smartBattles,
+        boolean simulateConfidence, boolean bootstrap, long bootstrapSeed,
+        double targetError, boolean quiet, double refreshSeconds,
+        int minEngines, int pipelineDepth, double earlyStop,
+        int journalSyncBattles, int journalCompactBattles, String scoreStore,
+        int battleHistory) {
       this.robocodePaths = Preconditions.checkNotNull(robocodePaths);
+      this.remoteEnginePaths = Preconditions.checkNotNull(remoteEnginePaths);
       this.jvmArgs = Preconditions.checkNotNull(jvmArgs);
       this.botsDirs = Preconditions.checkNotNull(botsDirs);
       this.challenge = Preconditions.checkNotNull(challenge);
@@ -824,24 +1004,20 @@ public class RoboRunner {
       this.seasons = seasons;
       this.forceWikiOutput = forceWikiOutput;
       this.smartBattles = smartBattles;
-      this.threads = robocodePaths.size();
-    }
-  }
-
-  private static class ScoreSummary {
-    public final double sumScores;
-    public final int numBattles;
-    public final int scoredBotLists;
-
-    public ScoreSummary(
-        double sumScores, int numBattles, int scoredBotLists) {
-      this.sumScores = sumScores;
-      this.numBattles = numBattles;
-      this.scoredBotLists = scoredBotLists;
-    }
-
-    public double getTotalScore() {
-      return round(sumScores / scoredBotLists, 2);
+      this.simulateConfidence = simulateConfidence;
+      this.bootstrap = bootstrap;
+      this.bootstrapSeed = bootstrapSeed;
+      this.targetError = targetError;
+      this.quiet = quiet;
+      this.refreshSeconds = refreshSeconds;
+      this.minEngines = minEngines;
+      this.pipelineDepth = pipelineDepth;
+      this.earlyStop = earlyStop;
+      this.threads = robocodePaths.size() + remoteEnginePaths.size();
+      this.journalSyncBattles = journalSyncBattles;
+      this.journalCompactBattles = journalCompactBattles;
+      this.scoreStore = Preconditions.checkNotNull(scoreStore);
+      this.battleHistory = battleHistory;
     }
   }
 }
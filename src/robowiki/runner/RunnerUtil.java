@@ -1,5 +1,10 @@
 package robowiki.runner;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 
 import com.google.common.collect.Lists;
@@ -51,6 +56,29 @@ public class RunnerUtil {
     return false;
   }
 
+  /**
+   * Replaces the target file with the source file in a single atomic move.
+   * If the file system can't do that, the target is first copied to a .bak
+   * file next to it, so the last good copy survives a crash during the move.
+   *
+   * @param source the file to move
+   * @param target the file to replace
+   * @throws IOException if the target couldn't be replaced
+   */
+  public static void replaceFile(File source, File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      if (target.exists()) {
+        Files.copy(target.toPath(), new File(target.getPath() + ".bak")
+            .toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      Files.move(source.toPath(), target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
   public static double round(double d, int i) {
     long powerTen = 1;
     for (int x = 0; x < i; x++) {
@@ -59,6 +87,14 @@ public class RunnerUtil {
     return ((double) Math.round(d * powerTen)) / powerTen;
   }
 
+  /**
+   * @param battleTime elapsed time, in nanoseconds
+   * @return the time in seconds, eg "12.3s"
+   */
+  public static String formatBattleTime(long battleTime) {
+    return Double.toString(round((double) battleTime / 1000000000, 1)) + "s";
+  }
+
   public static double standardDeviation(List<Double> values) {
     double avg = average(values);
     double sumSquares = 0;
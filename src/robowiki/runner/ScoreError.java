@@ -3,40 +3,262 @@ package robowiki.runner;
 import java.util.List;
 import java.util.Random;
 
+/**
+ * Running statistics of the challenger's scores against a bot list: the
+ * number of battles, average score, standard deviation and average battle
+ * time. Scores are added one at a time in constant time with Welford's
+ * algorithm, which stays accurate when the variance is small compared to the
+ * average, and statistics kept separately can be merged.
+ *
+ * <p>Each score can be weighted by the number of rounds in its battle, so a
+ * battle that was stopped early counts for as many rounds as it ran. The
+ * variance of a battle's score goes as one over its rounds, so the standard
+ * deviation is that of a battle of average length, and the standard error
+ * is the same as for that many battles of average length.
+ */
 public class ScoreError {
   private static final Random RANDOM = new Random();
 
-  public final double average;
-  public final double standardDeviation;
-  public final int numBattles;
-  public final double avgTime;
+  private int _numBattles;
+  private double _totalWeight;
+  private double _average;
+  private double _squaredDeviations;
+  private double _totalTime;
+
+  public ScoreError() {
+    _numBattles = 0;
+    _totalWeight = 0;
+    _average = 0;
+    _squaredDeviations = 0;
+    _totalTime = 0;
+  }
+
+  public ScoreError(ScoreError scoreError) {
+    _numBattles = scoreError._numBattles;
+    _totalWeight = scoreError._totalWeight;
+    _average = scoreError._average;
+    _squaredDeviations = scoreError._squaredDeviations;
+    _totalTime = scoreError._totalTime;
+  }
 
   public ScoreError(List<Double> scores, double avgTime) {
-    this.average = RunnerUtil.average(scores);
-    this.standardDeviation = RunnerUtil.standardDeviation(scores);
-    this.numBattles = scores.size();
-    this.avgTime = avgTime;
+    this();
+    for (double score : scores) {
+      addScore(score, avgTime);
+    }
+  }
+
+  /**
+   * Creates a {@code ScoreError} from running sums of the scores, rather than
+   * the scores themselves, as returned by {@link #getSum()} and
+   * {@link #getSquareSum()}.
+   *
+   * @param numBattles number of scores
+   * @param totalWeight total weight of the scores
+   * @param sumScores sum of the scores
+   * @param sumSquares sum of the squares of the scores
+   * @param totalTime total battle time, in nanoseconds
+   */
+  public ScoreError(int numBattles, double totalWeight, double sumScores,
+      double sumSquares, double totalTime) {
+    _numBattles = numBattles;
+    _totalWeight = totalWeight;
+    _average = (numBattles == 0) ? 0 : sumScores / numBattles;
+    _squaredDeviations = (numBattles == 0) ? 0 : Math.max(0,
+        (sumSquares / numBattles) - RunnerUtil.square(_average)) * totalWeight;
+    _totalTime = totalTime;
+  }
+
+  /**
+   * Adds the score from one battle.
+   *
+   * @param score the challenger's score
+   * @param elapsedTime time the battle took, in nanoseconds
+   */
+  public void addScore(double score, double elapsedTime) {
+    addScore(score, 1, elapsedTime);
+  }
+
+  /**
+   * Adds the score from one battle, weighted eg by its number of rounds.
+   *
+   * @param score the challenger's score
+   * @param weight weight of the score, greater than 0
+   * @param elapsedTime time the battle took, in nanoseconds
+   */
+  public void addScore(double score, double weight, double elapsedTime) {
+    _numBattles++;
+    _totalWeight += weight;
+    double deviation = score - _average;
+    _average += deviation * weight / _totalWeight;
+    _squaredDeviations += weight * deviation * (score - _average);
+    _totalTime += elapsedTime;
+  }
+
+  /**
+   * Adds all the scores from another {@code ScoreError}, as if they had been
+   * added to this one.
+   *
+   * @param scoreError the scores to add
+   */
+  public void merge(ScoreError scoreError) {
+    if (scoreError._numBattles == 0) {
+      return;
+    }
+    double totalWeight = _totalWeight + scoreError._totalWeight;
+    double deviation = scoreError._average - _average;
+    _squaredDeviations += scoreError._squaredDeviations
+        + (RunnerUtil.square(deviation) * _totalWeight
+            * scoreError._totalWeight / totalWeight);
+    _average += deviation * scoreError._totalWeight / totalWeight;
+    _numBattles += scoreError._numBattles;
+    _totalWeight = totalWeight;
+    _totalTime += scoreError._totalTime;
+  }
+
+  public int getNumBattles() {
+    return _numBattles;
+  }
+
+  public double getAverage() {
+    return _average;
+  }
+
+  public double getStandardDeviation() {
+    return (_totalWeight == 0)
+        ? 0 : Math.sqrt(_squaredDeviations / _totalWeight);
+  }
+
+  /**
+   * Standard deviation of the score over a single round, if scores are
+   * weighted by their number of rounds. The standard deviation of the score
+   * of a battle with some number of rounds is this over the square root of
+   * the rounds.
+   *
+   * @return standard deviation of the score of one round
+   */
+  public double getRoundStandardDeviation() {
+    return (_numBattles == 0)
+        ? 0 : Math.sqrt(_squaredDeviations / _numBattles);
+  }
+
+  /**
+   * @return average battle time, in nanoseconds
+   */
+  public double getAvgTime() {
+    return (_numBattles == 0) ? 0 : _totalTime / _numBattles;
+  }
+
+  /**
+   * @return sum of the scores, as if each battle were of average length
+   */
+  double getSum() {
+    return _average * _numBattles;
+  }
+
+  /**
+   * @return sum of the squares of the scores, as if each battle were of
+   *     average length
+   */
+  double getSquareSum() {
+    return _numBattles * (RunnerUtil.square(getStandardDeviation())
+        + RunnerUtil.square(_average));
+  }
+
+  /**
+   * @return total weight of the scores, eg the total rounds of the battles
+   */
+  double getTotalWeight() {
+    return _totalWeight;
+  }
+
+  double getTotalTime() {
+    return _totalTime;
   }
 
   public double getStandardError() {
-    return getStandardError(numBattles);
+    return getStandardError(_numBattles);
   }
 
   private double getStandardError(int errorBattles) {
-    return standardDeviation / Math.sqrt(errorBattles);
+    return getStandardDeviation() / Math.sqrt(errorBattles);
   }
 
   public double getAccuracyGainRate() {
-    return (getStandardError(numBattles) - getStandardError(numBattles + 1))
-        / avgTime;
+    return (getStandardError(_numBattles) - getStandardError(_numBattles + 1))
+        / getAvgTime();
+  }
+
+  /**
+   * Variance of a single battle score, if scores are normally distributed
+   * with this average and standard deviation but clamped to [0, 100], as in
+   * {@link #generateRandomAverageScore()}. Scores beyond the limits pile up
+   * at 0 or 100, so this is smaller than the square of the standard deviation
+   * when the average is near either limit.
+   *
+   * @return variance of the clamped battle score
+   */
+  public double getClampedVariance() {
+    double average = getAverage();
+    double standardDeviation = getStandardDeviation();
+    if (standardDeviation == 0) {
+      return 0;
+    }
+    double alpha = (0 - average) / standardDeviation;
+    double beta = (100 - average) / standardDeviation;
+    double cdfAlpha = normalCdf(alpha);
+    double cdfBeta = normalCdf(beta);
+    double pdfAlpha = normalPdf(alpha);
+    double pdfBeta = normalPdf(beta);
+    double inside = cdfBeta - cdfAlpha;
+    double above = 1 - cdfBeta;
+
+    double mean = (average * inside)
+        + (standardDeviation * (pdfAlpha - pdfBeta)) + (100 * above);
+    double meanSquare = (RunnerUtil.square(average) * inside)
+        + (2 * average * standardDeviation * (pdfAlpha - pdfBeta))
+        + (RunnerUtil.square(standardDeviation)
+            * (inside + (alpha * pdfAlpha) - (beta * pdfBeta)))
+        + (10000 * above);
+    return Math.max(0, meanSquare - RunnerUtil.square(mean));
+  }
+
+  /**
+   * @return standard error of the average score, with battle scores clamped
+   *     to [0, 100] as in {@link #generateRandomAverageScore()}
+   */
+  public double getClampedStandardError() {
+    return Math.sqrt(getClampedVariance() / _numBattles);
   }
 
   public double generateRandomAverageScore() {
+    double average = getAverage();
+    double standardDeviation = getStandardDeviation();
     double scoreTotal = 0;
-    for (int x = 0; x < numBattles; x++) {
+    for (int x = 0; x < _numBattles; x++) {
       scoreTotal += Math.max(0, Math.min(100, average
           + (RANDOM.nextGaussian() * standardDeviation)));
     }
-    return scoreTotal / numBattles;
+    return scoreTotal / _numBattles;
+  }
+
+  private static double normalPdf(double x) {
+    return Math.exp(-x * x / 2) / Math.sqrt(2 * Math.PI);
+  }
+
+  private static double normalCdf(double x) {
+    return (1 + erf(x / Math.sqrt(2))) / 2;
+  }
+
+  /**
+   * Approximation of the error function from Abramowitz and Stegun, formula
+   * 7.1.26, accurate to about 1.5e-7.
+   */
+  private static double erf(double x) {
+    double t = 1 / (1 + (0.3275911 * Math.abs(x)));
+    double polynomial = t * (0.254829592 + t * (-0.284496736
+        + t * (1.421413741 + t * (-1.453152027 + t * 1.061405429))));
+    double erf = 1 - (polynomial * Math.exp(-x * x));
+    return (x >= 0) ? erf : -erf;
   }
 }
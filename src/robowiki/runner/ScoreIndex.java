@@ -0,0 +1,193 @@
+package robowiki.runner;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+
+import robowiki.runner.RobotScore.ScoringStyle;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+/**
+ * Sidecar index for an XML score log, holding the totals for each bot list
+ * but none of the battles. A {@code ScoreLog} loaded from the index can
+ * report averages and score errors right away, and reads the battles from
+ * the XML file only if they're needed.
+ *
+ * <p>The index records the sequence number of the score log it was written
+ * from, and is ignored if that doesn't match the XML file. Score logs saved
+ * before sequence numbers don't have one, so the index also records the
+ * size and modification time of the XML file, which have to match instead.
+ */
+public class ScoreIndex {
+  private static final String CHALLENGER = "challenger";
+  private static final String SEQUENCE = "sequence";
+  private static final String SOURCE = "source";
+  private static final String BOT_LIST = "bot_list";
+  private static final String BOT_NAMES = "bot_names";
+  private static final String ROBOT_SCORE = "robot_score";
+  private static final String SCORE_SUMS = "score_sums";
+  private static final String FIELD_DELIMITER = "\t";
+  private static final Joiner FIELD_JOINER = Joiner.on(FIELD_DELIMITER);
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Saves the totals of each bot list in a score log to an index file.
+   *
+   * @param scoreLog the score log to index
+   * @param indexFilePath path of the index file
+   * @param inputFilePath path of the XML score log the score log was saved
+   *     to or loaded from
+   * @throws IOException if the index can't be written
+   */
+  public static void save(ScoreLog scoreLog, String indexFilePath,
+      String inputFilePath) throws IOException {
+    File tempFile = new File(indexFilePath + ".tmp");
+    File inputFile = new File(inputFilePath);
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(tempFile), UTF8));
+    try {
+      writeLine(writer, CHALLENGER, scoreLog.challenger);
+      writeLine(writer, SEQUENCE, scoreLog.getSequence());
+      writeLine(writer, SOURCE, inputFile.length(), inputFile.lastModified());
+      for (BotListId botList : scoreLog.getBotLists()) {
+        BotListTotals totals = scoreLog.getTotals(botList);
+        writeLine(writer, BOT_LIST, botList, totals.getNumBattles(),
+            totals.getTotalRounds(), totals.getTotalTime(),
+            totals.getScoredBattles());
+        List<Object> botNamesLine = Lists.<Object>newArrayList(BOT_NAMES);
+        botNamesLine.addAll(totals.getBotNames());
+        writer.write(FIELD_JOINER.join(botNamesLine) + "\n");
+        for (List<RobotScore> robotTotals
+            : totals.getRobotTotals().values()) {
+          for (RobotScore robotScore : robotTotals) {
+            writeLine(writer, ROBOT_SCORE, robotScore.botName,
+                robotScore.score, robotScore.survivalRounds,
+                robotScore.survivalScore, robotScore.bulletDamage,
+                robotScore.energyConserved, robotScore.numBattles);
+          }
+        }
+        for (ScoringStyle style : ScoringStyle.values()) {
+          writeLine(writer, SCORE_SUMS, style.name(),
+              totals.getScoreSum(style), totals.getScoreSquareSum(style));
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    RunnerUtil.replaceFile(tempFile, new File(indexFilePath));
+  }
+
+  private static void writeLine(Writer writer, Object... fields)
+      throws IOException {
+    writer.write(FIELD_JOINER.join(fields));
+    writer.write("\n");
+  }
+
+  /**
+   * Loads a score log from an index file, with its battles left in the XML
+   * score log until they're needed.
+   *
+   * @param indexFilePath path of the index file
+   * @param inputFilePath path of the XML score log the index was saved with
+   * @return a new {@code ScoreLog} with the totals from the index, or null if
+   *     there's no index or it doesn't match the XML score log
+   * @throws IOException if either file can't be read
+   */
+  public static ScoreLog load(String indexFilePath, String inputFilePath)
+      throws IOException {
+    if (!new File(indexFilePath).exists()) {
+      return null;
+    }
+    List<String> lines =
+        Files.readLines(new File(indexFilePath), UTF8);
+    if (lines.size() < 2 || !lines.get(0).startsWith(CHALLENGER)
+        || !lines.get(1).startsWith(SEQUENCE)) {
+      return null;
+    }
+    long sequence = Long.parseLong(lines.get(1).split(FIELD_DELIMITER)[1]);
+    int firstLine = 2;
+    String[] sourceFields = null;
+    if (lines.size() > 2 && lines.get(2).startsWith(SOURCE)) {
+      sourceFields = lines.get(2).split(FIELD_DELIMITER);
+      firstLine = 3;
+    }
+    try {
+      Long savedSequence = ScoreLog.readSequence(inputFilePath);
+      if (savedSequence == null) {
+        File inputFile = new File(inputFilePath);
+        if (sourceFields == null
+            || Long.parseLong(sourceFields[1]) != inputFile.length()
+            || Long.parseLong(sourceFields[2]) != inputFile.lastModified()) {
+          return null;
+        }
+      } else if (savedSequence != sequence) {
+        return null;
+      }
+    } catch (XMLStreamException e) {
+      return null;
+    }
+
+    ScoreLog scoreLog = new ScoreLog(
+        lines.get(0).substring(CHALLENGER.length() + 1));
+    BotListId botList = null;
+    String[] botListFields = null;
+    List<String> botNames = null;
+    Map<String, List<RobotScore>> robotTotals = null;
+    double[] scoreSums = null;
+    double[] scoreSquareSums = null;
+    for (int x = firstLine; x <= lines.size(); x++) {
+      String[] fields = (x == lines.size())
+          ? null : lines.get(x).split(FIELD_DELIMITER, -1);
+      if (botList != null && (fields == null || fields[0].equals(BOT_LIST))) {
+        scoreLog.addSavedTotals(botList, new BotListTotals(botNames,
+            robotTotals, Integer.parseInt(botListFields[2]),
+            Integer.parseInt(botListFields[3]),
+            Long.parseLong(botListFields[4]),
+            Integer.parseInt(botListFields[5]), scoreSums, scoreSquareSums));
+      }
+      if (fields == null) {
+        break;
+      } else if (fields[0].equals(BOT_LIST)) {
+        botList = BotListId.parse(fields[1]);
+        botListFields = fields;
+        botNames = Lists.newArrayList();
+        robotTotals = Maps.newHashMap();
+        scoreSums = new double[ScoringStyle.values().length];
+        scoreSquareSums = new double[ScoringStyle.values().length];
+      } else if (fields[0].equals(BOT_NAMES)) {
+        for (int y = 1; y < fields.length; y++) {
+          botNames.add(fields[y]);
+        }
+      } else if (fields[0].equals(ROBOT_SCORE)) {
+        RobotScore robotScore = new RobotScore(fields[1],
+            Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+            Double.parseDouble(fields[4]), Double.parseDouble(fields[5]),
+            Double.parseDouble(fields[6]), Integer.parseInt(fields[7]));
+        if (!robotTotals.containsKey(robotScore.botName)) {
+          robotTotals.put(
+              robotScore.botName, Lists.<RobotScore>newArrayList());
+        }
+        robotTotals.get(robotScore.botName).add(robotScore);
+      } else if (fields[0].equals(SCORE_SUMS)) {
+        int styleIndex = ScoringStyle.valueOf(fields[1]).ordinal();
+        scoreSums[styleIndex] = Double.parseDouble(fields[2]);
+        scoreSquareSums[styleIndex] = Double.parseDouble(fields[3]);
+      }
+    }
+    scoreLog.setSequence(sequence);
+    scoreLog.setUnloadedScoresFilePath(inputFilePath);
+    return scoreLog;
+  }
+}
@@ -0,0 +1,261 @@
+package robowiki.runner;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import robowiki.runner.ScoreLog.BattleScore;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+/**
+ * Append-only record of the battles added to a {@code ScoreLog} since its
+ * XML snapshot was last saved. Each battle is one tab delimited line,
+ * prefixed with the battle's sequence number in the score log, so replaying
+ * a journal on top of a snapshot that already contains some of its battles
+ * is harmless.
+ */
+public class ScoreJournal {
+  private static final String FIELD_DELIMITER = "\t";
+  private static final Joiner FIELD_JOINER = Joiner.on(FIELD_DELIMITER);
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int HEADER_FIELDS = 3;
+  private static final int ROBOT_FIELDS = 5;
+
+  private final File _journalFile;
+  private final int _syncBattles;
+  private FileOutputStream _outputStream;
+  private Writer _writer;
+  private int _numBattles;
+  private int _unsyncedBattles;
+
+  /**
+   * Opens a journal for appending, creating the file if necessary.
+   *
+   * @param journalFilePath path of the journal file
+   * @param syncBattles number of battles to group into each fsync, or 0 to
+   *     leave syncing to the OS
+   * @throws IOException if the journal can't be opened
+   */
+  public ScoreJournal(String journalFilePath, int syncBattles)
+      throws IOException {
+    _journalFile = new File(journalFilePath);
+    _syncBattles = syncBattles;
+    _numBattles = countRecords(_journalFile);
+    _unsyncedBattles = 0;
+    terminatePartialRecord(_journalFile);
+    open();
+  }
+
+  private static void terminatePartialRecord(File journalFile)
+      throws IOException {
+    if (journalFile.length() == 0) {
+      return;
+    }
+    RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+    try {
+      file.seek(file.length() - 1);
+      if (file.read() != '\n') {
+        file.write('\n');
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  private void open() throws IOException {
+    _outputStream = new FileOutputStream(_journalFile, true);
+    _writer = new BufferedWriter(new OutputStreamWriter(_outputStream, UTF8));
+  }
+
+  /**
+   * Appends a battle to the journal. The record is always flushed to the OS,
+   * and fsynced once {@code syncBattles} records have accumulated.
+   *
+   * @param sequence sequence number of the battle in the score log
+   * @param battleScore the battle to record
+   * @throws IOException if the record can't be written
+   */
+  public synchronized void append(long sequence, BattleScore battleScore)
+      throws IOException {
+    _writer.write(formatRecord(sequence, battleScore));
+    _writer.write("\n");
+    _writer.flush();
+    _numBattles++;
+    _unsyncedBattles++;
+    if (_syncBattles > 0 && _unsyncedBattles >= _syncBattles) {
+      sync();
+    }
+  }
+
+  public synchronized void sync() throws IOException {
+    _writer.flush();
+    _outputStream.getFD().sync();
+    _unsyncedBattles = 0;
+  }
+
+  /**
+   * @return number of battles currently in the journal
+   */
+  public synchronized int getBattleCount() {
+    return _numBattles;
+  }
+
+  /**
+   * Drops all records up to and including the given sequence number, which
+   * should already be safely stored in a snapshot. Remaining records are
+   * rewritten to a temp file that replaces the journal.
+   *
+   * @param sequence last sequence number contained in the snapshot
+   * @throws IOException if the journal can't be rewritten
+   */
+  public synchronized void truncateThrough(long sequence) throws IOException {
+    _writer.close();
+    List<String> keptRecords = Lists.newArrayList();
+    for (String record : readRecords(_journalFile)) {
+      if (parseSequence(record) > sequence) {
+        keptRecords.add(record);
+      }
+    }
+
+    File tempFile = new File(_journalFile.getPath() + ".tmp");
+    FileOutputStream tempStream = new FileOutputStream(tempFile);
+    Writer tempWriter =
+        new BufferedWriter(new OutputStreamWriter(tempStream, UTF8));
+    try {
+      for (String record : keptRecords) {
+        tempWriter.write(record);
+        tempWriter.write("\n");
+      }
+      tempWriter.flush();
+      tempStream.getFD().sync();
+    } finally {
+      tempWriter.close();
+    }
+    RunnerUtil.replaceFile(tempFile, _journalFile);
+    _numBattles = keptRecords.size();
+    _unsyncedBattles = 0;
+    open();
+  }
+
+  public synchronized void close() {
+    try {
+      sync();
+      _writer.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Adds every battle in the journal that isn't already in the score log,
+   * ie with a sequence number greater than the score log's. A partially
+   * written record at the end of the journal is ignored.
+   *
+   * @param journalFilePath path of the journal file
+   * @param scoreLog the score log to add battles to
+   * @return number of battles added to the score log
+   * @throws IOException if the journal can't be read
+   */
+  public static int replay(String journalFilePath, ScoreLog scoreLog)
+      throws IOException {
+    File journalFile = new File(journalFilePath);
+    if (!journalFile.exists()) {
+      return 0;
+    }
+    int battlesAdded = 0;
+    for (String record : readRecords(journalFile)) {
+      if (parseSequence(record) > scoreLog.getSequence()) {
+        String[] fields = record.split(FIELD_DELIMITER);
+        int numRounds = Integer.parseInt(fields[1]);
+        long time = Long.parseLong(fields[2]);
+        List<RobotScore> robotScores = Lists.newArrayList();
+        for (int x = HEADER_FIELDS; x < fields.length; x += ROBOT_FIELDS) {
+          robotScores.add(new RobotScore(fields[x],
+              Double.parseDouble(fields[x + 1]),
+              Double.parseDouble(fields[x + 2]),
+              Double.parseDouble(fields[x + 3]),
+              Double.parseDouble(fields[x + 4])));
+        }
+        scoreLog.addBattle(robotScores, numRounds, time);
+        battlesAdded++;
+      }
+    }
+    return battlesAdded;
+  }
+
+  private static String formatRecord(long sequence, BattleScore battleScore) {
+    List<Object> fields = Lists.newArrayList();
+    fields.add(sequence);
+    fields.add(battleScore.getNumRounds());
+    fields.add(battleScore.getElapsedTime());
+    for (RobotScore robotScore : battleScore.getRobotScores()) {
+      fields.add(robotScore.botName);
+      fields.add(Math.round(robotScore.score));
+      fields.add(Math.round(robotScore.survivalRounds));
+      fields.add(Math.round(robotScore.survivalScore));
+      fields.add(Math.round(robotScore.bulletDamage));
+    }
+    return FIELD_JOINER.join(fields);
+  }
+
+  private static long parseSequence(String record) {
+    return Long.parseLong(record.substring(0, record.indexOf(FIELD_DELIMITER)));
+  }
+
+  private static int countRecords(File journalFile) throws IOException {
+    return journalFile.exists() ? readRecords(journalFile).size() : 0;
+  }
+
+  private static List<String> readRecords(File journalFile)
+      throws IOException {
+    List<String> records = Lists.newArrayList();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(journalFile), UTF8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (isCompleteRecord(line)) {
+          records.add(line);
+        } else {
+          System.out.println("WARNING: Ignoring incomplete journal record in "
+              + journalFile + ": " + line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return records;
+  }
+
+  private static boolean isCompleteRecord(String line) {
+    String[] fields = line.split(FIELD_DELIMITER);
+    if (fields.length <= HEADER_FIELDS
+        || (fields.length - HEADER_FIELDS) % ROBOT_FIELDS != 0) {
+      return false;
+    }
+    try {
+      Long.parseLong(fields[0]);
+      Integer.parseInt(fields[1]);
+      Long.parseLong(fields[2]);
+      for (int x = HEADER_FIELDS; x < fields.length; x += ROBOT_FIELDS) {
+        for (int y = 1; y < ROBOT_FIELDS; y++) {
+          Double.parseDouble(fields[x + y]);
+        }
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    return true;
+  }
+}
@@ -1,36 +1,30 @@
 package robowiki.runner;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventFactory;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.events.Attribute;
-import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import robowiki.runner.RobotScore.ScoringStyle;
 
-import com.google.common.base.Function;
-import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multimap;
 
 /**
  * Score history for a challenger bot. Saves to and loads from XML files.
@@ -39,6 +33,7 @@ import com.google.common.collect.Multimap;
  */
 public class ScoreLog {
   private static final String CHALLENGER = "challenger";
+  private static final String SEQUENCE = "sequence";
   private static final String SCORES = "scores";
   private static final String BOT_LIST = "bot_list";
   private static final String BOTS = "bots";
@@ -51,125 +46,332 @@ public class ScoreLog {
   private static final String DAMAGE = "damage";
   private static final String NUM_ROUNDS = "num_rounds";
   private static final String TIME = "time";
-  private static final Joiner COMMA_JOINER = Joiner.on(",");
-  private static final Function<RobotScore, String> ROBOT_SCORE_NAME_TRANSFORMER
-      = new Function<RobotScore, String>() {
-        @Override
-        public String apply(RobotScore robotScore) {
-          return robotScore.botName;
-        }
-      };
-
-  private static XMLEventFactory XML_EVENT_FACTORY =
-      XMLEventFactory.newInstance();
-  private static XMLEvent XML_TAB = XML_EVENT_FACTORY.createDTD("\t");
-  private static XMLEvent XML_NL = XML_EVENT_FACTORY.createDTD("\n");
+  private static final String SUMMARY = "summary";
+  private static final String BATTLES = "battles";
+  private static final String SCORED_BATTLES = "scored_battles";
+  private static final String ROBOT_TOTAL = "robot_total";
+  private static final String ENERGY = "energy";
+  private static final String SCORE_SUMS = "score_sums";
+  private static final String STYLE = "style";
+  private static final String SUM = "sum";
+  private static final String SQUARES = "squares";
+  private static final List<String> ROBOT_TOTAL_VALUES = ImmutableList.of(
+      SCORE, SURVIVAL_ROUNDS, SURVIVAL_SCORE, DAMAGE, ENERGY);
+
+  private static final String XML_VERSION = "1.0";
+  private static final String NEWLINE = "\n";
+  private static final String[] TABS =
+      {"", "\t", "\t\t", "\t\t\t", "\t\t\t\t"};
+  private static final int BUFFER_SIZE = 1 << 16;
 
   public final String challenger;
-  private Map<String, List<BattleScore>> _scores;
-  private List<String> _botLists;
+  private Map<BotListId, List<BattleScore>> _scores;
+  private Map<BotListId, BotListTotals> _totals;
+  private Map<BotListId, BotListTotals> _summaries;
+  private List<BotListId> _botLists;
+  private long _sequence;
+  private int _history;
+  private String _unloadedScoresFilePath;
 
   public ScoreLog(String challenger) {
     this.challenger = Preconditions.checkNotNull(challenger);
     _scores = Maps.newHashMap();
+    _totals = Maps.newHashMap();
+    _summaries = Maps.newHashMap();
     _botLists = Lists.newArrayList();
+    _sequence = 0;
+    _history = 0;
+  }
+
+  /**
+   * @return sequence number of the last battle added to this score log
+   */
+  public long getSequence() {
+    return _sequence;
+  }
+
+  void setSequence(long sequence) {
+    _sequence = sequence;
   }
 
   /**
    * Adds the results of a Robocode battle to the data store.
    *
    * @param robotScores scores for each robot in the battle
-   * @param numRounds number of rounds in the battle
+   * @param numRounds number of rounds in the battle, which is fewer than the
+   *     challenge's rounds if the battle was stopped early
    * @param elapsedTime elapsed time of the battle, in nanoseconds
+   * @return the battle that was added
    */
-  public void addBattle(
+  public synchronized BattleScore addBattle(
       List<RobotScore> robotScores, int numRounds, long elapsedTime) {
-    String botListString = getSortedBotListFromScores(robotScores);
-    if (!_scores.containsKey(botListString)) {
-      _scores.put(botListString, Lists.<BattleScore>newArrayList());
-      _botLists.add(botListString);
+    BotListId botList = getBotListId(robotScores);
+    if (!_scores.containsKey(botList)) {
+      _scores.put(botList, Lists.<BattleScore>newArrayList());
+      _totals.put(botList, new BotListTotals());
+      _botLists.add(botList);
     }
-    _scores.get(botListString).add(
-        new BattleScore(robotScores, numRounds, elapsedTime));
+    BattleScore battleScore =
+        new BattleScore(robotScores, numRounds, elapsedTime);
+    _scores.get(botList).add(battleScore);
+    _totals.get(botList).addBattle(battleScore, challenger);
+    _sequence++;
+    compact(botList);
+    return battleScore;
   }
 
-  public String getSortedBotListFromScores(List<RobotScore> robotScores) {
-    List<String> botList = Lists.newArrayList(Lists.transform(
-        robotScores, ROBOT_SCORE_NAME_TRANSFORMER));
-    botList.remove(challenger);
-    return getSortedBotList(botList);
+  /**
+   * Sets how many of the most recent battles against each bot list are kept.
+   * Older battles are folded into a summary of their totals, which is saved
+   * in their place, so averages and score errors are unchanged but memory
+   * use and file size stop growing with the number of battles.
+   *
+   * @param history number of battles to keep per bot list, or 0 to keep
+   *     every battle
+   */
+  public synchronized void setHistory(int history) {
+    Preconditions.checkArgument(history >= 0);
+    _history = history;
+    for (BotListId botList : _botLists) {
+      compact(botList);
+    }
+  }
+
+  private void compact(BotListId botList) {
+    List<BattleScore> battleScores = _scores.get(botList);
+    if (_history == 0 || _unloadedScoresFilePath != null
+        || battleScores.size() <= _history) {
+      return;
+    }
+    BotListTotals summary = _summaries.get(botList);
+    if (summary == null) {
+      summary = new BotListTotals();
+      _summaries.put(botList, summary);
+    }
+    List<BattleScore> oldBattles =
+        battleScores.subList(0, battleScores.size() - _history);
+    for (BattleScore battleScore : oldBattles) {
+      summary.addBattle(battleScore, challenger);
+    }
+    oldBattles.clear();
   }
 
-  public String getSortedBotList(List<String> botList) {
-    List<String> sortedBotList = Lists.newArrayList(botList);
-    Collections.sort(sortedBotList);
-    return COMMA_JOINER.join(sortedBotList);
+  /**
+   * @param robotScores scores for each robot in a battle
+   * @return the bot list the challenger faced in the battle
+   */
+  public BotListId getBotListId(List<RobotScore> robotScores) {
+    return BotListId.of(robotScores, challenger);
   }
 
-  public List<String> getBotLists() {
+  public List<BotListId> getBotLists() {
     return ImmutableList.copyOf(_botLists);
   }
 
-  public boolean hasBotList(String botListString) {
-    return _scores.containsKey(botListString);
+  public boolean hasBotList(BotListId botList) {
+    return _totals.containsKey(botList);
   }
 
-  public List<BattleScore> getBattleScores(String botList) {
+  /**
+   * @param botList the bot list
+   * @return the battles against the bot list that haven't been folded into
+   *     a summary
+   */
+  public List<BattleScore> getBattleScores(BotListId botList) {
+    loadBattleScores();
     return ImmutableList.copyOf(_scores.get(botList));
   }
 
-  public BattleScore getLastBattleScore(String botList) {
+  public BattleScore getLastBattleScore(BotListId botList) {
     if (!_scores.containsKey(botList)) {
       return null;
     }
+    if (_scores.get(botList).isEmpty()) {
+      loadBattleScores();
+    }
     List<BattleScore> battleScores = _scores.get(botList);
     return battleScores.get(battleScores.size() - 1);
   }
 
-  public BattleScore getAverageBattleScore(String botList) {
-    if (!_scores.containsKey(botList)) {
+  /**
+   * Averages the scores of all battles against a bot list. The totals are
+   * kept up to date as battles are added, so this doesn't depend on the
+   * number of battles. Battles that were stopped early count in proportion
+   * to the rounds they ran, and the average is over a whole number of
+   * rounds.
+   *
+   * @param botList the bot list
+   * @return the average scores, or null if there are no battles against the
+   *     bot list
+   */
+  public BattleScore getAverageBattleScore(BotListId botList) {
+    if (!_totals.containsKey(botList)) {
       return null;
     }
+    return _totals.get(botList).getWholeRoundsAverageBattleScore();
+  }
 
-    List<BattleScore> battleScores = _scores.get(botList);
-    Multimap<String, RobotScore> totalScores = LinkedListMultimap.create();
-    int totalRounds = 0;
-    long totalTime = 0;
-    boolean initializeTotalScores = true;
-    for (BattleScore battleScore : battleScores) {
-      for (RobotScore robotScore : battleScore.getRobotScores()) {
-        if (initializeTotalScores) {
-          totalScores.put(robotScore.botName, robotScore);
-        } else {
-          LinkedList<RobotScore> scores =
-              Lists.newLinkedList(totalScores.get(robotScore.botName));
-          RobotScore oldScore = scores.removeFirst();
-          scores.add(RobotScore.addScores(oldScore, robotScore));
-          totalScores.replaceValues(robotScore.botName, scores);
-        }
-      }
-      initializeTotalScores = false;
-      totalRounds += battleScore.getNumRounds();
-      totalTime += battleScore.getElapsedTime();
+  /**
+   * Calculates the distribution of the challenger's scores against a bot
+   * list, from running totals kept as battles are added.
+   *
+   * @param botList the bot list
+   * @param scoringStyle the scoring style
+   * @return the challenger's score distribution, or null if there are no
+   *     battles against the bot list
+   */
+  public ScoreError getScoreError(
+      BotListId botList, ScoringStyle scoringStyle) {
+    if (!_totals.containsKey(botList)) {
+      return null;
     }
-    return new BattleScore(totalScores.values(),
-        totalRounds / battleScores.size(), totalTime / battleScores.size());
+    return _totals.get(botList).getScoreError(scoringStyle);
+  }
+
+  public int getBattleCount(BotListId botList) {
+    return _totals.containsKey(botList)
+        ? _totals.get(botList).getNumBattles() : 0;
   }
 
   public int getBattleCount(List<BotList> allReferenceBots) {
     int battles = 0;
     for (BotList botList : allReferenceBots) {
-      String botListString = getSortedBotList(botList.getBotNames());
-      if (_scores.containsKey(botListString)) {
-        battles += _scores.get(botListString).size();
-      }
+      battles += getBattleCount(botList.getBotListId());
     }
     return battles;
   }
 
+  BotListTotals getTotals(BotListId botList) {
+    return _totals.get(botList);
+  }
+
+  /**
+   * Adds totals for a bot list whose battles are saved in a score log file
+   * but haven't been read in yet.
+   *
+   * @param botList the bot list
+   * @param totals totals of all the saved battles against the bot list
+   */
+  synchronized void addSavedTotals(
+      BotListId botList, BotListTotals totals) {
+    _scores.put(botList, Lists.<BattleScore>newArrayList());
+    _totals.put(botList, totals);
+    _botLists.add(botList);
+  }
+
+  /**
+   * Adds a summary of battles against a bot list that have been folded into
+   * their totals, before any battles are added for that bot list.
+   *
+   * @param summary totals of the summarized battles
+   */
+  synchronized void addSummary(BotListTotals summary) {
+    BotListId botList = getBotListId(
+        summary.getAverageBattleScore().getRobotScores());
+    _scores.put(botList, Lists.<BattleScore>newArrayList());
+    _totals.put(botList, new BotListTotals(summary));
+    _summaries.put(botList, summary);
+    _botLists.add(botList);
+  }
+
+  /**
+   * @param botList the bot list
+   * @return totals of the battles against the bot list that have been
+   *     folded into a summary, or null if there are none
+   */
+  BotListTotals getSummary(BotListId botList) {
+    return _summaries.get(botList);
+  }
+
+  /**
+   * Sets the score log file that battles with sequence numbers up to this
+   * score log's current sequence will be read from, the first time they're
+   * needed. Until then, only the totals for those battles are available.
+   *
+   * @param inputFilePath path of the XML score log
+   */
+  synchronized void setUnloadedScoresFilePath(String inputFilePath) {
+    _unloadedScoresFilePath = inputFilePath;
+  }
+
+  private void loadBattleScores() {
+    String inputFilePath;
+    synchronized (this) {
+      inputFilePath = _unloadedScoresFilePath;
+    }
+    if (inputFilePath == null) {
+      return;
+    }
+
+    ScoreLog savedScoreLog;
+    try {
+      savedScoreLog = loadScoreLog(inputFilePath);
+    } catch (XMLStreamException e) {
+      throw new IllegalStateException(
+          "Failed to read battles from " + inputFilePath, e);
+    } catch (IOException e) {
+      throw new IllegalStateException(
+          "Failed to read battles from " + inputFilePath, e);
+    }
+    synchronized (this) {
+      if (_unloadedScoresFilePath == null) {
+        return;
+      }
+      for (BotListId botList : savedScoreLog._botLists) {
+        List<BattleScore> battleScores =
+            Lists.newArrayList(savedScoreLog._scores.get(botList));
+        if (_scores.containsKey(botList)) {
+          battleScores.addAll(_scores.get(botList));
+        } else {
+          _totals.put(botList, savedScoreLog._totals.get(botList));
+          _botLists.add(botList);
+        }
+        _scores.put(botList, battleScores);
+        if (savedScoreLog._summaries.containsKey(botList)) {
+          _summaries.put(botList, savedScoreLog._summaries.get(botList));
+        }
+      }
+      _unloadedScoresFilePath = null;
+      for (BotListId botList : _botLists) {
+        compact(botList);
+      }
+    }
+  }
+
+  /**
+   * Reads only the sequence number from an XML score log, without parsing
+   * any of the battles.
+   *
+   * @param inputFilePath path of the XML data file
+   * @return the sequence number of the last battle in the file, or null if
+   *     the file doesn't record one
+   * @throws XMLStreamException if the XML file is not in the expected format
+   * @throws IOException if the file can't be read
+   */
+  public static Long readSequence(String inputFilePath)
+      throws XMLStreamException, IOException {
+    GZIPInputStream inputStream =
+        new GZIPInputStream(new FileInputStream(inputFilePath));
+    try {
+      XMLStreamReader reader =
+          XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+      while (reader.hasNext()) {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT
+            && reader.getLocalName().equals(SCORES)) {
+          String sequence = reader.getAttributeValue(null, SEQUENCE);
+          return (sequence == null) ? null : Long.parseLong(sequence);
+        }
+      }
+      return null;
+    } finally {
+      inputStream.close();
+    }
+  }
+
   /**
    * Reads in the scores from an XML data file and creates a new
-   * {@code ScoreLog} with the battle data.
+   * {@code ScoreLog} with the battle data. The file is inflated on another
+   * thread while it's parsed.
    *
    * @param inputFilePath path of the XML data file
    * @return a new {@code ScoreLog} with the scores from the input file
@@ -180,136 +382,225 @@ public class ScoreLog {
   public static ScoreLog loadScoreLog(String inputFilePath)
       throws XMLStreamException, FileNotFoundException, IOException {
     ScoreLog scoreLog = null;
+    String sequence = null;
     List<RobotScore> robotScores = null;
     int numRounds = 0;
     long time = 0;
 
-    XMLEventReader eventReader =
-        XMLInputFactory.newInstance().createXMLEventReader(
-            new GZIPInputStream(new FileInputStream(inputFilePath)));
-    while (eventReader.hasNext()) {
-      XMLEvent event = eventReader.nextEvent();
-      if (event.isStartElement()) {
-        String localPart = event.asStartElement().getName().getLocalPart();
-        if (localPart.equals(SCORES)) {
-          scoreLog = new ScoreLog(getAttribute(event, CHALLENGER));
-        } else if (localPart.equals(BATTLE)) {
-          robotScores = Lists.newArrayList();
-        } else if (localPart.equals(ROBOT_SCORE)) {
-          robotScores.add(readRobotScore(eventReader));
-        } else if (localPart.equals(NUM_ROUNDS)) {
-          event = eventReader.nextEvent();
-          numRounds = Integer.parseInt(event.asCharacters().getData());
-        } else if (localPart.equals(TIME)) {
-          event = eventReader.nextEvent();
-          time = Long.parseLong(event.asCharacters().getData());
-        }
-      } else if (event.isEndElement()) {
-        String localPart = event.asEndElement().getName().getLocalPart();
-        if (localPart.equals(BATTLE)) {
+    PipedGzipInputStream inputStream = new PipedGzipInputStream(inputFilePath);
+    try {
+      XMLStreamReader reader =
+          XMLInputFactory.newInstance().createXMLStreamReader(inputStream);
+      while (reader.hasNext()) {
+        int eventType = reader.next();
+        if (eventType == XMLStreamConstants.START_ELEMENT) {
+          String localName = reader.getLocalName();
+          if (localName.equals(SCORES)) {
+            scoreLog =
+                new ScoreLog(reader.getAttributeValue(null, CHALLENGER));
+            sequence = reader.getAttributeValue(null, SEQUENCE);
+          } else if (localName.equals(SUMMARY)) {
+            scoreLog.addSummary(readSummary(reader));
+          } else if (localName.equals(BATTLE)) {
+            robotScores = Lists.newArrayList();
+          } else if (localName.equals(ROBOT_SCORE)) {
+            robotScores.add(readRobotScore(reader));
+          } else if (localName.equals(NUM_ROUNDS)) {
+            numRounds = Integer.parseInt(reader.getElementText());
+          } else if (localName.equals(TIME)) {
+            time = Long.parseLong(reader.getElementText());
+          }
+        } else if (eventType == XMLStreamConstants.END_ELEMENT
+            && reader.getLocalName().equals(BATTLE)) {
           scoreLog.addBattle(robotScores, numRounds, time);
         }
       }
+      reader.close();
+    } finally {
+      inputStream.close();
     }
-    return scoreLog;
-  }
-
-  @SuppressWarnings("unchecked")
-  private static String getAttribute(XMLEvent event, String challenger2) {
-    Iterator<Attribute> attributes = event.asStartElement().getAttributes();
-    while (attributes.hasNext()) {
-      Attribute attribute = attributes.next();
-      if (attribute.getName().toString().equals(CHALLENGER)) {
-        return attribute.getValue();
-      }
+    if (scoreLog != null && sequence != null) {
+      scoreLog._sequence = Long.parseLong(sequence);
     }
-    return null;
+    return scoreLog;
   }
 
-  private static RobotScore readRobotScore(XMLEventReader eventReader)
+  private static RobotScore readRobotScore(XMLStreamReader reader)
       throws XMLStreamException {
     String name = null;
     double score = 0;
     double rounds = 0;
     double survival = 0;
     double damage = 0;
-    while (true) {
-      XMLEvent event = eventReader.nextEvent();
-      if (event.isEndElement()
-          && event.asEndElement().getName().getLocalPart().equals(
-              ROBOT_SCORE)) {
-        return new RobotScore(name, score, rounds, survival, damage);
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String localName = reader.getLocalName();
+      String text = reader.getElementText();
+      if (localName.equals(NAME)) {
+        name = text;
+      } else if (localName.equals(SCORE)) {
+        score = Double.parseDouble(text);
+      } else if (localName.equals(SURVIVAL_ROUNDS)) {
+        rounds = Double.parseDouble(text);
+      } else if (localName.equals(SURVIVAL_SCORE)) {
+        survival = Double.parseDouble(text);
+      } else if (localName.equals(DAMAGE)) {
+        damage = Double.parseDouble(text);
+      }
+    }
+    return new RobotScore(name, score, rounds, survival, damage);
+  }
+
+  private static BotListTotals readSummary(XMLStreamReader reader)
+      throws XMLStreamException {
+    List<RobotScore> robotTotals = Lists.newArrayList();
+    int numBattles = 0;
+    int totalRounds = 0;
+    long totalTime = 0;
+    int scoredBattles = 0;
+    double[] scoreSums = new double[ScoringStyle.values().length];
+    double[] scoreSquareSums = new double[ScoringStyle.values().length];
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String localName = reader.getLocalName();
+      if (localName.equals(ROBOT_TOTAL)) {
+        robotTotals.add(readRobotTotal(reader));
+      } else if (localName.equals(SCORE_SUMS)) {
+        int styleIndex = ScoringStyle.valueOf(
+            reader.getAttributeValue(null, STYLE)).ordinal();
+        scoreSums[styleIndex] =
+            Double.parseDouble(reader.getAttributeValue(null, SUM));
+        scoreSquareSums[styleIndex] =
+            Double.parseDouble(reader.getAttributeValue(null, SQUARES));
+        reader.nextTag();
       } else {
-        if (event.isStartElement()) {
-          String localPart = event.asStartElement().getName().getLocalPart();
-          event = eventReader.nextEvent();
-          if (localPart.equals(NAME)) {
-            name = event.asCharacters().getData();
-          } else if (localPart.equals(SCORE)) {
-            score = Double.parseDouble(event.asCharacters().getData());
-          } else if (localPart.equals(SURVIVAL_ROUNDS)) {
-            rounds = Double.parseDouble(event.asCharacters().getData());
-          } else if (localPart.equals(SURVIVAL_SCORE)) {
-            survival = Double.parseDouble(event.asCharacters().getData());
-          } else if (localPart.equals(DAMAGE)) {
-            damage = Double.parseDouble(event.asCharacters().getData());
-          }
+        String text = reader.getElementText();
+        if (localName.equals(BATTLES)) {
+          numBattles = Integer.parseInt(text);
+        } else if (localName.equals(NUM_ROUNDS)) {
+          totalRounds = Integer.parseInt(text);
+        } else if (localName.equals(TIME)) {
+          totalTime = Long.parseLong(text);
+        } else if (localName.equals(SCORED_BATTLES)) {
+          scoredBattles = Integer.parseInt(text);
         }
       }
     }
+    return new BotListTotals(robotTotals, numBattles, totalRounds,
+        totalTime, scoredBattles, scoreSums, scoreSquareSums);
+  }
+
+  private static RobotScore readRobotTotal(XMLStreamReader reader)
+      throws XMLStreamException {
+    String name = null;
+    double[] values = new double[ROBOT_TOTAL_VALUES.size()];
+    int numBattles = 0;
+    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String localName = reader.getLocalName();
+      String text = reader.getElementText();
+      if (localName.equals(NAME)) {
+        name = text;
+      } else if (localName.equals(BATTLES)) {
+        numBattles = Integer.parseInt(text);
+      } else if (ROBOT_TOTAL_VALUES.contains(localName)) {
+        values[ROBOT_TOTAL_VALUES.indexOf(localName)] =
+            Double.parseDouble(text);
+      }
+    }
+    return new RobotScore(name, values[0], values[1], values[2], values[3],
+        values[4], numBattles);
+  }
+
+  /**
+   * Creates a copy of this score log that won't change as more battles are
+   * added, eg to be saved from another thread. Battle scores are immutable
+   * and shared with the copy.
+   *
+   * @return a copy of this score log
+   */
+  public ScoreLog getSnapshot() {
+    loadBattleScores();
+    synchronized (this) {
+      return copy();
+    }
+  }
+
+  private ScoreLog copy() {
+    ScoreLog snapshot = new ScoreLog(challenger);
+    for (BotListId botList : _botLists) {
+      snapshot._scores.put(
+          botList, Lists.newArrayList(_scores.get(botList)));
+      snapshot._totals.put(botList, new BotListTotals(_totals.get(botList)));
+      if (_summaries.containsKey(botList)) {
+        snapshot._summaries.put(
+            botList, new BotListTotals(_summaries.get(botList)));
+      }
+      snapshot._botLists.add(botList);
+    }
+    snapshot._sequence = _sequence;
+    return snapshot;
   }
 
   /**
-   * Save the scores to an output file in XML format.
+   * Save the scores to an output file in XML format. The scores are written
+   * to a temp file that then replaces the output file, so the last
+   * successfully saved scores are never lost.
    *
    * @param outputFilePath the path of the output file
+   * @return true if the scores were saved successfully
    */
-  public void saveScoreLog(String outputFilePath) {
-    XMLEventWriter eventWriter = null;
+  public boolean saveScoreLog(String outputFilePath) {
+    loadBattleScores();
+    boolean saved = false;
+    File tempFile = new File(outputFilePath + ".tmp");
+    XMLStreamWriter writer = null;
+    FileOutputStream fileOutputStream = null;
     GZIPOutputStream gzipOutputStream = null;
     try {
-      gzipOutputStream =
-          new GZIPOutputStream(new FileOutputStream(outputFilePath));
-      eventWriter =
-          XMLOutputFactory.newInstance().createXMLEventWriter(gzipOutputStream);
-      eventWriter.add(XML_EVENT_FACTORY.createStartDocument());
-      eventWriter.add(XML_NL);
-      writeStartElement(
-          eventWriter, SCORES, createAttributes(CHALLENGER, challenger), 0);
-
-      List<String> botListStrings = Lists.newArrayList(_scores.keySet());
-      Collections.sort(botListStrings);
-      for (String botList : botListStrings) {
-        writeStartElement(
-            eventWriter, BOT_LIST, createAttributes(BOTS, botList), 1);
+      fileOutputStream = new FileOutputStream(tempFile);
+      gzipOutputStream = new GZIPOutputStream(fileOutputStream, BUFFER_SIZE);
+      writer = XMLOutputFactory.newInstance()
+          .createXMLStreamWriter(gzipOutputStream);
+      writer.writeStartDocument(XML_VERSION);
+      writer.writeDTD(NEWLINE);
+      writeStartElement(writer, SCORES, 0,
+          SEQUENCE, Long.toString(_sequence), CHALLENGER, challenger);
+
+      List<BotListId> sortedBotLists = Lists.newArrayList(_scores.keySet());
+      Collections.sort(sortedBotLists);
+      for (BotListId botList : sortedBotLists) {
+        writeStartElement(writer, BOT_LIST, 1, BOTS, botList.toString());
+        if (_summaries.containsKey(botList)) {
+          writeSummary(writer, _summaries.get(botList));
+        }
 
         for (BattleScore battleScore : _scores.get(botList)) {
-          writeStartElement(eventWriter, BATTLE, 2);
+          writeStartElement(writer, BATTLE, 2);
           for (RobotScore robotScore : battleScore.getRobotScores()) {
-            writeStartElement(eventWriter, ROBOT_SCORE, 3);
-            writeValue(eventWriter, NAME, robotScore.botName, 4);
-            writeValue(eventWriter, SCORE, Math.round(robotScore.score), 4);
-            writeValue(eventWriter, SURVIVAL_ROUNDS,
+            writeStartElement(writer, ROBOT_SCORE, 3);
+            writeValue(writer, NAME, robotScore.botName, 4);
+            writeValue(writer, SCORE, Math.round(robotScore.score), 4);
+            writeValue(writer, SURVIVAL_ROUNDS,
                 Math.round(robotScore.survivalRounds), 4);
-            writeValue(eventWriter, SURVIVAL_SCORE,
+            writeValue(writer, SURVIVAL_SCORE,
                 Math.round(robotScore.survivalScore), 4);
-            writeValue(eventWriter, DAMAGE,
+            writeValue(writer, DAMAGE,
                 Math.round(robotScore.bulletDamage), 4);
-            writeEndElement(eventWriter, ROBOT_SCORE, 3);
+            writeEndElement(writer, 3);
           }
-          writeValue(eventWriter, NUM_ROUNDS,
-              Integer.toString(battleScore.getNumRounds()), 3);
-          writeValue(eventWriter, TIME,
-              Long.toString(battleScore.getElapsedTime()), 3);
-          writeEndElement(eventWriter, BATTLE, 2);
+          writeValue(writer, NUM_ROUNDS, battleScore.getNumRounds(), 3);
+          writeValue(writer, TIME, battleScore.getElapsedTime(), 3);
+          writeEndElement(writer, 2);
         }
-        writeEndElement(eventWriter, botList, 1);
+        writeEndElement(writer, 1);
       }
 
-      writeEndElement(eventWriter, SCORES, 0);
-      eventWriter.add(XML_EVENT_FACTORY.createEndDocument());
-      eventWriter.close();
+      writeEndElement(writer, 0);
+      writer.writeEndDocument();
+      writer.close();
+      gzipOutputStream.finish();
+      fileOutputStream.getFD().sync();
       gzipOutputStream.close();
+      RunnerUtil.replaceFile(tempFile, new File(outputFilePath));
+      saved = true;
     } catch (FileNotFoundException e) {
       e.printStackTrace();
     } catch (IOException e) {
@@ -317,9 +608,9 @@ public class ScoreLog {
     } catch (XMLStreamException e) {
       e.printStackTrace();
     } finally {
-      if (eventWriter != null) {
+      if (writer != null) {
         try {
-          eventWriter.close();
+          writer.close();
         } catch (XMLStreamException e) {
           e.printStackTrace();
         }
@@ -331,58 +622,78 @@ public class ScoreLog {
           e.printStackTrace();
         }
       }
+      if (!saved) {
+        tempFile.delete();
+      }
     }
+    return saved;
   }
 
-  private List<Attribute> createAttributes(String name, String value) {
-    return Lists.newArrayList(
-        XML_EVENT_FACTORY.createAttribute(new QName(name), value));
-  }
-
-  private void writeStartElement(XMLEventWriter eventWriter, String name,
-      int numTabs) throws XMLStreamException {
-    writeElement(eventWriter, name, numTabs, null, true);
-  }
-
-  private void writeStartElement(XMLEventWriter eventWriter, String name,
-      List<Attribute> attributes, int numTabs) throws XMLStreamException {
-    writeElement(eventWriter, name, numTabs, attributes, true);
+  private void writeSummary(XMLStreamWriter writer, BotListTotals summary)
+      throws XMLStreamException {
+    writeStartElement(writer, SUMMARY, 2);
+    writeValue(writer, BATTLES, summary.getNumBattles(), 3);
+    writeValue(writer, NUM_ROUNDS, summary.getTotalRounds(), 3);
+    writeValue(writer, TIME, summary.getTotalTime(), 3);
+    writeValue(writer, SCORED_BATTLES, summary.getScoredBattles(), 3);
+    for (RobotScore robotTotal
+        : summary.getAverageBattleScore().getRobotScores()) {
+      writeStartElement(writer, ROBOT_TOTAL, 3);
+      writeValue(writer, NAME, robotTotal.botName, 4);
+      writeValue(writer, SCORE, Double.toString(robotTotal.score), 4);
+      writeValue(writer, SURVIVAL_ROUNDS,
+          Double.toString(robotTotal.survivalRounds), 4);
+      writeValue(writer, SURVIVAL_SCORE,
+          Double.toString(robotTotal.survivalScore), 4);
+      writeValue(writer, DAMAGE, Double.toString(robotTotal.bulletDamage), 4);
+      writeValue(writer, ENERGY,
+          Double.toString(robotTotal.energyConserved), 4);
+      writeValue(writer, BATTLES, robotTotal.numBattles, 4);
+      writeEndElement(writer, 3);
+    }
+    for (ScoringStyle style : ScoringStyle.values()) {
+      writeStartElement(writer, SCORE_SUMS, 3,
+          SQUARES, Double.toString(summary.getScoreSquareSum(style)),
+          STYLE, style.name(),
+          SUM, Double.toString(summary.getScoreSum(style)));
+      writeEndElement(writer, 3);
+    }
+    writeEndElement(writer, 2);
   }
 
-  private void writeEndElement(XMLEventWriter eventWriter, String name,
-      int numTabs) throws XMLStreamException {
-    writeElement(eventWriter, name, numTabs, null, false);
+  /**
+   * Writes a start tag on its own line, with attributes given as
+   * alternating names and values.
+   */
+  private void writeStartElement(XMLStreamWriter writer, String name,
+      int numTabs, String... attributes) throws XMLStreamException {
+    writer.writeDTD(TABS[numTabs]);
+    writer.writeStartElement(name);
+    for (int x = 0; x < attributes.length; x += 2) {
+      writer.writeAttribute(attributes[x], attributes[x + 1]);
+    }
+    writer.writeDTD(NEWLINE);
   }
 
-  private void writeElement(XMLEventWriter eventWriter, String name,
-      int numTabs, List<Attribute> attributes, boolean start)
+  private void writeEndElement(XMLStreamWriter writer, int numTabs)
       throws XMLStreamException {
-    for (int x = 0; x < numTabs; x++) {
-      eventWriter.add(XML_TAB);
-    }
-    if (start) {
-      eventWriter.add(XML_EVENT_FACTORY.createStartElement(new QName(name),
-          (attributes == null ? null : attributes.iterator()), null));
-    } else {
-      eventWriter.add(XML_EVENT_FACTORY.createEndElement("", "", name));
-    }
-    eventWriter.add(XML_NL);
+    writer.writeDTD(TABS[numTabs]);
+    writer.writeEndElement();
+    writer.writeDTD(NEWLINE);
   }
 
-  private void writeValue(XMLEventWriter eventWriter, String name, long value,
+  private void writeValue(XMLStreamWriter writer, String name, long value,
       int numTabs) throws XMLStreamException {
-    writeValue(eventWriter, name, Long.toString(value), numTabs);
+    writeValue(writer, name, Long.toString(value), numTabs);
   }
 
-  private void writeValue(XMLEventWriter eventWriter, String name, String value,
+  private void writeValue(XMLStreamWriter writer, String name, String value,
       int numTabs) throws XMLStreamException {
-    for (int x = 0; x < numTabs; x++) {
-      eventWriter.add(XML_TAB);
-    }
-    eventWriter.add(XML_EVENT_FACTORY.createStartElement("", "", name));
-    eventWriter.add(XML_EVENT_FACTORY.createCharacters(value));
-    eventWriter.add(XML_EVENT_FACTORY.createEndElement("", "", name));
-    eventWriter.add(XML_NL);
+    writer.writeDTD(TABS[numTabs]);
+    writer.writeStartElement(name);
+    writer.writeCharacters(value);
+    writer.writeEndElement();
+    writer.writeDTD(NEWLINE);
   }
 
   /**
@@ -0,0 +1,123 @@
+package robowiki.runner;
+
+import static robowiki.runner.RunnerUtil.getCombinedArgs;
+import static robowiki.runner.RunnerUtil.parseStringArgument;
+import static robowiki.runner.RunnerUtil.round;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.stream.XMLStreamException;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Measures how fast score logs are saved and loaded, using a synthetic score
+ * log with many battles, eg:
+ * {@code -battles 100000 -iterations 5 -f /tmp/benchmark.xml.gz}
+ */
+public class ScoreLogBenchmark {
+  private static final String CHALLENGER = "benchmark.Challenger 1.0";
+  private static final int DEFAULT_BATTLES = 100000;
+  private static final int DEFAULT_ITERATIONS = 3;
+  private static final int NUM_BOT_LISTS = 100;
+  private static final int NUM_ROUNDS = 35;
+
+  public static void main(String[] args) {
+    args = getCombinedArgs(args);
+    int battles = parseIntArgument("battles", args, DEFAULT_BATTLES);
+    int iterations = parseIntArgument("iterations", args, DEFAULT_ITERATIONS);
+    String filePath = parseStringArgument("f", args);
+    File file;
+    try {
+      file = (filePath == null)
+          ? File.createTempFile("benchmark", ".xml.gz") : new File(filePath);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+
+    ScoreLog scoreLog = generateScoreLog(battles);
+    System.out.println("Benchmarking a score log with " + battles
+        + " battles, " + iterations + " iterations.");
+    try {
+      for (int x = 0; x < iterations; x++) {
+        long startTime = System.nanoTime();
+        if (!scoreLog.saveScoreLog(file.getPath())) {
+          System.out.println("ERROR: Failed to save " + file.getPath());
+          return;
+        }
+        double saveSeconds = (System.nanoTime() - startTime) / 1000000000.0;
+
+        startTime = System.nanoTime();
+        ScoreLog loadedScoreLog = ScoreLog.loadScoreLog(file.getPath());
+        double loadSeconds = (System.nanoTime() - startTime) / 1000000000.0;
+        int loadedBattles = 0;
+        for (BotListId botList : loadedScoreLog.getBotLists()) {
+          loadedBattles += loadedScoreLog.getBattleCount(botList);
+        }
+        if (loadedBattles != battles) {
+          System.out.println("ERROR: Loaded " + loadedBattles
+              + " battles, expected " + battles);
+          return;
+        }
+
+        double megabytes = file.length() / (1024.0 * 1024.0);
+        System.out.println("  #" + (x + 1)
+            + "  save: " + describeRate(battles, megabytes, saveSeconds)
+            + "  load: " + describeRate(battles, megabytes, loadSeconds));
+      }
+    } catch (XMLStreamException e) {
+      e.printStackTrace();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      if (filePath == null) {
+        file.delete();
+      }
+    }
+  }
+
+  private static ScoreLog generateScoreLog(int battles) {
+    Random random = new Random(0);
+    ScoreLog scoreLog = new ScoreLog(CHALLENGER);
+    for (int x = 0; x < battles; x++) {
+      double challengerShare = 0.3 + (0.5 * random.nextDouble());
+      int survivalRounds = random.nextInt(NUM_ROUNDS + 1);
+      List<RobotScore> robotScores = Lists.newArrayList(
+          generateRobotScore(CHALLENGER, challengerShare, survivalRounds),
+          generateRobotScore("benchmark.Opponent" + (x % NUM_BOT_LISTS)
+              + " 1.0", 1 - challengerShare, NUM_ROUNDS - survivalRounds));
+      scoreLog.addBattle(robotScores, NUM_ROUNDS, 60000 + random.nextInt(5000));
+    }
+    return scoreLog;
+  }
+
+  private static RobotScore generateRobotScore(
+      String botName, double share, int survivalRounds) {
+    double score = 6000 * share;
+    return new RobotScore(botName, Math.round(score), survivalRounds,
+        survivalRounds * 50, Math.round(score * 0.7));
+  }
+
+  private static String describeRate(
+      int battles, double megabytes, double seconds) {
+    return round(seconds, 3) + "s, " + Math.round(battles / seconds)
+        + " battles/s, " + round(megabytes / seconds, 2) + " MB/s";
+  }
+
+  private static int parseIntArgument(
+      String flagName, String[] args, int defaultValue) {
+    String value = parseStringArgument(flagName, args);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value);
+      } catch (NumberFormatException nfe) {
+        // semi-expected
+      }
+    }
+    return defaultValue;
+  }
+}
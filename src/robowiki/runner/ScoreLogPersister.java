@@ -0,0 +1,94 @@
+package robowiki.runner;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Saves a {@code ScoreLog} on a background thread. Save requests that arrive
+ * while a save is already pending are coalesced into that save, and each
+ * save works from a snapshot of the score log, so adding battles never waits
+ * on disk. The score log's {@code ScoreIndex} is saved along with it.
+ */
+public class ScoreLogPersister {
+  private final ScoreLog _scoreLog;
+  private final String _outputFilePath;
+  private final String _indexFilePath;
+  private final ScoreJournal _journal;
+  private final ExecutorService _saveThread;
+  private final AtomicBoolean _savePending;
+  private volatile long _savedSequence;
+
+  /**
+   * @param scoreLog the score log to save
+   * @param outputFilePath path of the XML score log
+   * @param indexFilePath path of the score index
+   * @param journal journal to truncate after each save, or null for none
+   * @param savedSequence sequence number of the last battle already in the
+   *     saved XML score log
+   */
+  public ScoreLogPersister(ScoreLog scoreLog, String outputFilePath,
+      String indexFilePath, ScoreJournal journal, long savedSequence) {
+    _scoreLog = scoreLog;
+    _outputFilePath = outputFilePath;
+    _indexFilePath = indexFilePath;
+    _journal = journal;
+    _saveThread = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("ScoreLogPersister").setDaemon(true).build());
+    _savePending = new AtomicBoolean(false);
+    _savedSequence = savedSequence;
+  }
+
+  /**
+   * Schedules a save of the score log, unless one is already scheduled and
+   * hasn't started yet.
+   */
+  public void requestSave() {
+    if (_savePending.compareAndSet(false, true)) {
+      _saveThread.submit(new Runnable() {
+        @Override
+        public void run() {
+          _savePending.set(false);
+          save();
+        }
+      });
+    }
+  }
+
+  /**
+   * Saves the score log on the calling thread, after any save that's
+   * already in progress.
+   */
+  public void saveNow() {
+    save();
+  }
+
+  /**
+   * @return number of battles added to the score log since the last
+   *     completed save
+   */
+  public long getLag() {
+    return _scoreLog.getSequence() - _savedSequence;
+  }
+
+  private synchronized void save() {
+    if (_scoreLog.getSequence() == _savedSequence) {
+      return;
+    }
+    ScoreLog snapshot = _scoreLog.getSnapshot();
+    if (snapshot.saveScoreLog(_outputFilePath)) {
+      _savedSequence = snapshot.getSequence();
+      try {
+        if (_journal != null) {
+          _journal.truncateThrough(snapshot.getSequence());
+        }
+        ScoreIndex.save(snapshot, _indexFilePath, _outputFilePath);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
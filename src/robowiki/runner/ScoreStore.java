@@ -0,0 +1,46 @@
+package robowiki.runner;
+
+import java.io.IOException;
+import java.util.Set;
+
+import robowiki.runner.ScoreLog.BattleScore;
+
+/**
+ * Storage backend for {@code ScoreLog}s.
+ */
+public interface ScoreStore {
+  /**
+   * Loads the score log for a challenger.
+   *
+   * @param challenger name of the challenger bot
+   * @return the challenger's score log, or an empty score log if the store
+   *     has no battles for the challenger
+   * @throws IOException if the store can't be read
+   */
+  ScoreLog load(String challenger) throws IOException;
+
+  /**
+   * @return names of all the challengers with scores in the store
+   * @throws IOException if the store can't be read
+   */
+  Set<String> getChallengers() throws IOException;
+
+  /**
+   * Records a battle that was just added to a score log loaded from this
+   * store.
+   *
+   * @param scoreLog the score log the battle was added to
+   * @param battleScore the battle
+   */
+  void battleAdded(ScoreLog scoreLog, BattleScore battleScore);
+
+  /**
+   * @return number of recorded battles that haven't been fully persisted yet
+   */
+  long getLag();
+
+  /**
+   * Persists everything recorded so far and releases any open files.
+   */
+  void close();
+}
@@ -0,0 +1,726 @@
+package robowiki.runner;
+
+import static robowiki.runner.RunnerUtil.getCombinedArgs;
+import static robowiki.runner.RunnerUtil.parseStringArgument;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLStreamException;
+
+import robowiki.runner.ScoreLog.BattleScore;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Single-file score database shared by all challengers. The file is an
+ * append-only sequence of checksummed records: names (challengers, bot lists
+ * and bots) are defined once in the file's dictionary, and each battle
+ * record refers to them by ID. An index of battle record offsets, keyed by
+ * challenger, bot list and battle spec, is kept in memory and current as the
+ * file grows. It's saved next to the database when the store is closed, with
+ * the length of the file it covers and the checksum of its last record, and
+ * loaded when the store is opened if those still match, so only the records
+ * appended since are scanned.
+ *
+ * <p>Writers append under an exclusive file lock, after catching up on
+ * records appended by other processes. Readers never lock: records are
+ * never modified once written, and a partially written record at the end of
+ * the file is simply not indexed until it's complete. A store opened read
+ * only, eg for reports, never writes the database or its index. A writer
+ * that finds
+ * one, left by a process that died mid-append, cuts it off before
+ * appending. A complete record that fails its checksum is never cut off:
+ * battles before it can still be read, but nothing more is written to the
+ * database until it's repaired.
+ */
+public class SharedScoreStore implements ScoreStore {
+  public static final int MAGIC = 0x52524442; // "RRDB"
+  public static final int VERSION = 1;
+  public static final int INDEX_MAGIC = 0x52524958; // "RRIX"
+  public static final int INDEX_VERSION = 1;
+
+  private static final int FILE_HEADER_LENGTH = 8;
+  private static final int RECORD_HEADER_LENGTH = 8;
+  private static final byte NAME_RECORD = 1;
+  private static final byte BATTLE_RECORD = 2;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final FileChannel _channel;
+  private final String _indexFilePath;
+  private final int _battleFieldWidth;
+  private final int _battleFieldHeight;
+  private final boolean _syncWrites;
+  private final boolean _readOnly;
+  private final List<String> _names;
+  private final Map<String, Integer> _nameIds;
+  private final ListMultimap<String, Long> _challengerBattles;
+  private final ListMultimap<IndexKey, Long> _index;
+  private long _indexedLength;
+  private long _lastRecordOffset;
+  private int _lastRecordChecksum;
+  private long _savedIndexLength;
+  private long _corruptOffset;
+  private long _reportedCorruptOffset;
+
+  public static void main(String[] args) {
+    args = getCombinedArgs(args);
+    String dbFilePath = parseStringArgument("db", args,
+        "Pass a score database with -db, eg: -db data"
+            + System.getProperty("file.separator") + "scores.db");
+    String importDir = parseStringArgument("import", args,
+        "Pass a directory of XML score logs to import with -import, eg: "
+            + "-import data");
+    if (dbFilePath == null || importDir == null) {
+      return;
+    }
+
+    try {
+      SharedScoreStore store = new SharedScoreStore(dbFilePath, 0, 0, false);
+      File[] xmlFiles = new File(importDir).listFiles(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.endsWith(".xml.gz");
+        }
+      });
+      Arrays.sort(xmlFiles);
+      for (File xmlFile : xmlFiles) {
+        ScoreLog scoreLog = ScoreLog.loadScoreLog(xmlFile.getPath());
+        if (store.getChallengers().contains(scoreLog.challenger)) {
+          System.out.println("Skipping " + scoreLog.challenger
+              + ", already in " + dbFilePath);
+        } else {
+          int battles = store.importScoreLog(scoreLog);
+          System.out.println("Imported " + battles + " battles for "
+              + scoreLog.challenger);
+          int summarizedBattles = -battles;
+          for (BotListId botList : scoreLog.getBotLists()) {
+            summarizedBattles += scoreLog.getBattleCount(botList);
+          }
+          if (summarizedBattles > 0) {
+            System.out.println("WARNING: Skipped " + summarizedBattles
+                + " battles that are only kept as a summary.");
+          }
+        }
+      }
+      store.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (XMLStreamException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Opens a score database, creating it if it doesn't exist.
+   *
+   * @param dbFilePath path of the database file
+   * @param battleFieldWidth battlefield width of the battles recorded
+   * @param battleFieldHeight battlefield height of the battles recorded
+   * @param syncWrites true to force each recorded battle to disk
+   * @throws IOException if the database can't be opened
+   */
+  public SharedScoreStore(String dbFilePath, int battleFieldWidth,
+      int battleFieldHeight, boolean syncWrites) throws IOException {
+    this(dbFilePath, battleFieldWidth, battleFieldHeight, syncWrites, false);
+  }
+
+  /**
+   * Opens a score database. A read only store never writes the database or
+   * its index, and can't record battles.
+   *
+   * @param dbFilePath path of the database file
+   * @param battleFieldWidth battlefield width of the battles recorded
+   * @param battleFieldHeight battlefield height of the battles recorded
+   * @param syncWrites true to force each recorded battle to disk
+   * @param readOnly true to open the database read only, which must exist
+   * @throws IOException if the database can't be opened
+   */
+  public SharedScoreStore(String dbFilePath, int battleFieldWidth,
+      int battleFieldHeight, boolean syncWrites, boolean readOnly)
+      throws IOException {
+    _channel = new RandomAccessFile(dbFilePath, readOnly ? "r" : "rw")
+        .getChannel();
+    _indexFilePath = dbFilePath + ".idx";
+    _battleFieldWidth = battleFieldWidth;
+    _battleFieldHeight = battleFieldHeight;
+    _syncWrites = syncWrites;
+    _readOnly = readOnly;
+    _names = Lists.newArrayList();
+    _nameIds = Maps.newHashMap();
+    _challengerBattles = ArrayListMultimap.create();
+    _index = ArrayListMultimap.create();
+    _indexedLength = 0;
+    _lastRecordOffset = -1;
+    _lastRecordChecksum = 0;
+    _savedIndexLength = -1;
+    _corruptOffset = -1;
+    _reportedCorruptOffset = -1;
+
+    if (!readOnly) {
+      FileLock lock = _channel.lock();
+      try {
+        if (_channel.size() == 0) {
+          ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+          header.putInt(MAGIC).putInt(VERSION).flip();
+          _channel.write(header, 0);
+          _channel.force(true);
+        }
+      } finally {
+        lock.release();
+      }
+    }
+    if (_channel.size() < FILE_HEADER_LENGTH) {
+      throw new IOException(dbFilePath + " isn't a score database.");
+    }
+    ByteBuffer header = readFully(0, FILE_HEADER_LENGTH);
+    if (header.getInt() != MAGIC) {
+      throw new IOException(dbFilePath + " isn't a score database.");
+    }
+    int version = header.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported score database version " + version
+          + " in " + dbFilePath);
+    }
+    _indexedLength = FILE_HEADER_LENGTH;
+    try {
+      loadIndex();
+    } catch (IOException e) {
+      System.out.println("WARNING: Couldn't load " + _indexFilePath
+          + ", rebuilding it: " + e);
+    }
+    refresh();
+  }
+
+  @Override
+  public ScoreLog load(String challenger) throws IOException {
+    ScoreLog scoreLog = new ScoreLog(challenger);
+    List<Long> offsets;
+    synchronized (this) {
+      refresh();
+      offsets = ImmutableList.copyOf(_challengerBattles.get(challenger));
+    }
+    for (long offset : offsets) {
+      BattleScore battleScore = readBattle(offset);
+      scoreLog.addBattle(battleScore.getRobotScores(),
+          battleScore.getNumRounds(), battleScore.getElapsedTime());
+    }
+    return scoreLog;
+  }
+
+  @Override
+  public void battleAdded(ScoreLog scoreLog, BattleScore battleScore) {
+    Preconditions.checkState(!_readOnly, "Score database is read only.");
+    try {
+      appendBattle(scoreLog.challenger,
+          scoreLog.getBotListId(battleScore.getRobotScores()).toString(),
+          _battleFieldWidth, _battleFieldHeight, battleScore);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public long getLag() {
+    return 0;
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      if (!_readOnly) {
+        _channel.force(true);
+        if (_indexedLength != _savedIndexLength) {
+          saveIndex();
+        }
+      }
+      _channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Adds every battle in a score log to the database, with an unknown
+   * battlefield size.
+   *
+   * <p>Battles that the score log has folded into a summary can't be
+   * imported, since their individual scores aren't kept.
+   *
+   * @param scoreLog the score log to import
+   * @return number of battles imported
+   * @throws IOException if the database can't be written
+   */
+  public int importScoreLog(ScoreLog scoreLog) throws IOException {
+    int battles = 0;
+    for (BotListId botList : scoreLog.getBotLists()) {
+      for (BattleScore battleScore : scoreLog.getBattleScores(botList)) {
+        appendBattle(
+            scoreLog.challenger, botList.toString(), 0, 0, battleScore);
+        battles++;
+      }
+    }
+    return battles;
+  }
+
+  @Override
+  public synchronized Set<String> getChallengers() throws IOException {
+    refresh();
+    return ImmutableSet.copyOf(_challengerBattles.keySet());
+  }
+
+  /**
+   * @return the battle specs a challenger has faced a bot list with
+   */
+  public synchronized Set<BattleSpec> getBattleSpecs(
+      String challenger, String botList) throws IOException {
+    refresh();
+    Set<BattleSpec> battleSpecs = ImmutableSet.of();
+    Integer challengerId = _nameIds.get(challenger);
+    Integer botListId = _nameIds.get(botList);
+    if (challengerId != null && botListId != null) {
+      ImmutableSet.Builder<BattleSpec> builder = ImmutableSet.builder();
+      for (IndexKey key : _index.keySet()) {
+        if (key.challengerId == challengerId && key.botListId == botListId) {
+          builder.add(key.battleSpec);
+        }
+      }
+      battleSpecs = builder.build();
+    }
+    return battleSpecs;
+  }
+
+  /**
+   * Looks up a challenger's battles against a bot list, using the index.
+   *
+   * @param challenger name of the challenger
+   * @param botList the sorted bot list
+   * @param battleSpec rounds and battlefield size of the battles
+   * @return the matching battles, in the order they were recorded
+   * @throws IOException if the database can't be read
+   */
+  public List<BattleScore> getBattles(String challenger, String botList,
+      BattleSpec battleSpec) throws IOException {
+    List<Long> offsets = ImmutableList.of();
+    synchronized (this) {
+      refresh();
+      Integer challengerId = _nameIds.get(challenger);
+      Integer botListId = _nameIds.get(botList);
+      if (challengerId != null && botListId != null) {
+        offsets = ImmutableList.copyOf(
+            _index.get(new IndexKey(challengerId, botListId, battleSpec)));
+      }
+    }
+    List<BattleScore> battleScores = Lists.newArrayList();
+    for (long offset : offsets) {
+      battleScores.add(readBattle(offset));
+    }
+    return battleScores;
+  }
+
+  private synchronized void appendBattle(String challenger, String botList,
+      int width, int height, BattleScore battleScore) throws IOException {
+    FileLock lock = _channel.lock();
+    try {
+      refresh();
+      if (_corruptOffset >= 0) {
+        throw new IOException("Corrupt record in score database at offset "
+            + _corruptOffset + ", not writing to it.");
+      }
+      if (_channel.size() > _indexedLength) {
+        // Partial record left by a writer that died mid-append.
+        _channel.truncate(_indexedLength);
+      }
+      RecordOutput battle = new RecordOutput(BATTLE_RECORD);
+      battle.writeVarLong(getNameId(challenger));
+      battle.writeVarLong(getNameId(botList));
+      battle.writeVarLong(width);
+      battle.writeVarLong(height);
+      battle.writeVarLong(battleScore.getNumRounds());
+      battle.writeVarLong(battleScore.getElapsedTime());
+      battle.writeVarLong(battleScore.getRobotScores().size());
+      for (RobotScore robotScore : battleScore.getRobotScores()) {
+        battle.writeVarLong(getNameId(robotScore.botName));
+        battle.writeSignedVarLong(Math.round(robotScore.score));
+        battle.writeSignedVarLong(Math.round(robotScore.survivalRounds));
+        battle.writeSignedVarLong(Math.round(robotScore.survivalScore));
+        battle.writeSignedVarLong(Math.round(robotScore.bulletDamage));
+      }
+      appendRecord(battle);
+      if (_syncWrites) {
+        _channel.force(false);
+      }
+    } finally {
+      lock.release();
+    }
+  }
+
+  private int getNameId(String name) throws IOException {
+    Integer nameId = _nameIds.get(name);
+    if (nameId == null) {
+      RecordOutput record = new RecordOutput(NAME_RECORD);
+      record.writeVarLong(_names.size());
+      byte[] bytes = name.getBytes(UTF8);
+      record.writeVarLong(bytes.length);
+      record.write(bytes, 0, bytes.length);
+      appendRecord(record);
+      nameId = _nameIds.get(name);
+    }
+    return nameId;
+  }
+
+  private void appendRecord(RecordOutput record) throws IOException {
+    byte[] payload = record.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer buffer =
+        ByteBuffer.allocate(RECORD_HEADER_LENGTH + payload.length);
+    buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    buffer.flip();
+    long position = _indexedLength;
+    while (buffer.hasRemaining()) {
+      position += _channel.write(buffer, position);
+    }
+    indexRecord(_indexedLength, ByteBuffer.wrap(payload));
+    _lastRecordOffset = _indexedLength;
+    _lastRecordChecksum = (int) crc.getValue();
+    _indexedLength = position;
+  }
+
+  /**
+   * Indexes any complete records appended since the last refresh, by this
+   * process or any other. Stops at a record that's too short to be
+   * complete, or at a complete record that fails its checksum, whose offset
+   * is kept in {@code _corruptOffset}.
+   */
+  private synchronized void refresh() throws IOException {
+    long fileLength = _channel.size();
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+    _corruptOffset = -1;
+    while (_indexedLength + RECORD_HEADER_LENGTH <= fileLength) {
+      header.clear();
+      _channel.read(header, _indexedLength);
+      header.flip();
+      int length = header.getInt();
+      int checksum = header.getInt();
+      if (length < 1) {
+        // Every record has at least its type.
+        reportCorruption();
+        break;
+      }
+      if (_indexedLength + RECORD_HEADER_LENGTH + length > fileLength) {
+        break;
+      }
+      ByteBuffer payload = readFully(
+          _indexedLength + RECORD_HEADER_LENGTH, length);
+      CRC32 crc = new CRC32();
+      crc.update(payload.array());
+      if ((int) crc.getValue() != checksum) {
+        reportCorruption();
+        break;
+      }
+      indexRecord(_indexedLength, payload);
+      _lastRecordOffset = _indexedLength;
+      _lastRecordChecksum = checksum;
+      _indexedLength += RECORD_HEADER_LENGTH + length;
+    }
+  }
+
+  private void reportCorruption() {
+    _corruptOffset = _indexedLength;
+    if (_reportedCorruptOffset != _corruptOffset) {
+      _reportedCorruptOffset = _corruptOffset;
+      System.out.println("WARNING: Corrupt record in score database at "
+          + "offset " + _corruptOffset + ", ignoring the rest of it.");
+    }
+  }
+
+  private void indexRecord(long offset, ByteBuffer payload) {
+    byte type = payload.get();
+    if (type == NAME_RECORD) {
+      int nameId = (int) readVarLong(payload);
+      byte[] bytes = new byte[(int) readVarLong(payload)];
+      payload.get(bytes);
+      String name = new String(bytes, UTF8);
+      if (nameId == _names.size()) {
+        _names.add(name);
+        _nameIds.put(name, nameId);
+      }
+    } else if (type == BATTLE_RECORD) {
+      int challengerId = (int) readVarLong(payload);
+      int botListId = (int) readVarLong(payload);
+      int width = (int) readVarLong(payload);
+      int height = (int) readVarLong(payload);
+      int numRounds = (int) readVarLong(payload);
+      _challengerBattles.put(_names.get(challengerId), offset);
+      _index.put(new IndexKey(challengerId, botListId,
+          new BattleSpec(numRounds, width, height)), offset);
+    }
+  }
+
+  /**
+   * Writes the names and battle record offsets indexed so far to the index
+   * file, replacing it in one move so other processes never see it half
+   * written.
+   */
+  private synchronized void saveIndex() throws IOException {
+    File indexFile = new File(_indexFilePath);
+    File tempFile = File.createTempFile(indexFile.getName(), ".tmp",
+        indexFile.getAbsoluteFile().getParentFile());
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tempFile)));
+    try {
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(INDEX_VERSION);
+      out.writeLong(_indexedLength);
+      out.writeLong(_lastRecordOffset);
+      out.writeInt(_lastRecordChecksum);
+      out.writeInt(_names.size());
+      for (String name : _names) {
+        byte[] bytes = name.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+      out.writeInt(_index.size());
+      for (Map.Entry<IndexKey, Long> entry : _index.entries()) {
+        IndexKey key = entry.getKey();
+        out.writeLong(entry.getValue());
+        out.writeInt(key.challengerId);
+        out.writeInt(key.botListId);
+        out.writeInt(key.battleSpec.rounds);
+        out.writeInt(key.battleSpec.battleFieldWidth);
+        out.writeInt(key.battleSpec.battleFieldHeight);
+      }
+    } catch (IOException e) {
+      out.close();
+      tempFile.delete();
+      throw e;
+    }
+    out.close();
+    RunnerUtil.replaceFile(tempFile, indexFile);
+    _savedIndexLength = _indexedLength;
+  }
+
+  /**
+   * Loads the index file, if there is one and it still matches the
+   * database: the database is at least as long as the index says, and the
+   * record the index ends with is still there with the same checksum.
+   */
+  private synchronized void loadIndex() throws IOException {
+    File indexFile = new File(_indexFilePath);
+    if (!indexFile.exists()) {
+      return;
+    }
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)));
+    try {
+      if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+        return;
+      }
+      long indexedLength = in.readLong();
+      long lastRecordOffset = in.readLong();
+      int lastRecordChecksum = in.readInt();
+      if (indexedLength > _channel.size() || lastRecordOffset < 0) {
+        return;
+      }
+      ByteBuffer header = readFully(lastRecordOffset, RECORD_HEADER_LENGTH);
+      if (lastRecordOffset + RECORD_HEADER_LENGTH + header.getInt()
+          != indexedLength || header.getInt() != lastRecordChecksum) {
+        return;
+      }
+
+      List<String> names = Lists.newArrayList();
+      int numNames = in.readInt();
+      for (int x = 0; x < numNames; x++) {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        names.add(new String(bytes, UTF8));
+      }
+      int numBattles = in.readInt();
+      Map<Long, IndexKey> battles = Maps.newTreeMap();
+      for (int x = 0; x < numBattles; x++) {
+        long offset = in.readLong();
+        IndexKey key = new IndexKey(in.readInt(), in.readInt(),
+            new BattleSpec(in.readInt(), in.readInt(), in.readInt()));
+        if (offset >= indexedLength || key.challengerId >= numNames
+            || key.botListId >= numNames) {
+          return;
+        }
+        battles.put(offset, key);
+      }
+
+      for (String name : names) {
+        _nameIds.put(name, _names.size());
+        _names.add(name);
+      }
+      for (Map.Entry<Long, IndexKey> battle : battles.entrySet()) {
+        IndexKey key = battle.getValue();
+        _challengerBattles.put(_names.get(key.challengerId), battle.getKey());
+        _index.put(key, battle.getKey());
+      }
+      _indexedLength = indexedLength;
+      _lastRecordOffset = lastRecordOffset;
+      _lastRecordChecksum = lastRecordChecksum;
+      _savedIndexLength = indexedLength;
+    } finally {
+      in.close();
+    }
+  }
+
+  private BattleScore readBattle(long offset) throws IOException {
+    ByteBuffer header = readFully(offset, RECORD_HEADER_LENGTH);
+    ByteBuffer payload =
+        readFully(offset + RECORD_HEADER_LENGTH, header.getInt());
+    payload.get();
+    readVarLong(payload);
+    readVarLong(payload);
+    readVarLong(payload);
+    readVarLong(payload);
+    int numRounds = (int) readVarLong(payload);
+    long time = readVarLong(payload);
+    int numRobots = (int) readVarLong(payload);
+    List<RobotScore> robotScores = Lists.newArrayList();
+    synchronized (this) {
+      for (int x = 0; x < numRobots; x++) {
+        robotScores.add(new RobotScore(_names.get((int) readVarLong(payload)),
+            readSignedVarLong(payload), readSignedVarLong(payload),
+            readSignedVarLong(payload), readSignedVarLong(payload)));
+      }
+    }
+    return new BattleScore(robotScores, numRounds, time);
+  }
+
+  private ByteBuffer readFully(long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (_channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of score database.");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static long readVarLong(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= ((long) (b & 0x7F)) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static long readSignedVarLong(ByteBuffer buffer) {
+    long value = readVarLong(buffer);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static class RecordOutput extends ByteArrayOutputStream {
+    public RecordOutput(byte type) {
+      write(type);
+    }
+
+    public void writeVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    public void writeSignedVarLong(long value) {
+      writeVarLong((value << 1) ^ (value >> 63));
+    }
+  }
+
+  /**
+   * Number of rounds and battlefield size of a battle. Battles imported from
+   * XML score logs have a width and height of 0.
+   */
+  public static class BattleSpec {
+    public final int rounds;
+    public final int battleFieldWidth;
+    public final int battleFieldHeight;
+
+    public BattleSpec(int rounds, int battleFieldWidth, int battleFieldHeight) {
+      this.rounds = rounds;
+      this.battleFieldWidth = battleFieldWidth;
+      this.battleFieldHeight = battleFieldHeight;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof BattleSpec)) {
+        return false;
+      }
+      BattleSpec that = (BattleSpec) o;
+      return rounds == that.rounds
+          && battleFieldWidth == that.battleFieldWidth
+          && battleFieldHeight == that.battleFieldHeight;
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * ((31 * rounds) + battleFieldWidth)) + battleFieldHeight;
+    }
+
+    @Override
+    public String toString() {
+      return rounds + " rounds, " + battleFieldWidth + "x" + battleFieldHeight;
+    }
+  }
+
+  private static class IndexKey {
+    public final int challengerId;
+    public final int botListId;
+    public final BattleSpec battleSpec;
+
+    public IndexKey(int challengerId, int botListId, BattleSpec battleSpec) {
+      this.challengerId = challengerId;
+      this.botListId = botListId;
+      this.battleSpec = battleSpec;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof IndexKey)) {
+        return false;
+      }
+      IndexKey that = (IndexKey) o;
+      return challengerId == that.challengerId && botListId == that.botListId
+          && battleSpec.equals(that.battleSpec);
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * ((31 * challengerId) + botListId)) + battleSpec.hashCode();
+    }
+  }
+}
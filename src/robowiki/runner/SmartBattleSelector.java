@@ -0,0 +1,274 @@
+package robowiki.runner;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import robowiki.runner.BattleRunner.BattleSelector;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+
+/**
+ * Chooses battles to get an accurate overall score as quickly as possible.
+ * After a list of initial battles, it usually picks the bot list whose
+ * battles improve its score's accuracy fastest, and occasionally a random
+ * bot list with the fewest battles, more often while there are few battles.
+ *
+ * <p>Bot lists are kept in a max heap keyed on accuracy gain per second,
+ * which knows each bot list's position in the heap, and in buckets by
+ * number of battles. Selecting a battle and updating a bot list's
+ * {@code ScoreError} are both O(log n) in the number of bot lists. Unless
+ * there are enough engines to run every bot list at once, bot lists with a
+ * battle running are taken out of the heap until their battles finish.
+ *
+ * <p>A battle that's queued on an engine is revised if, with the results
+ * that have come in since it was selected, the best bot list in the heap
+ * would now improve accuracy {@link #REVISE_GAIN_FACTOR} times faster.
+ */
+class SmartBattleSelector implements BattleSelector {
+  private static final double RANDOM_BATTLE_RATE = 0.1;
+  private static final double REVISE_GAIN_FACTOR = 2;
+
+  private final String _challenger;
+  private final boolean _allowConcurrentBattles;
+  private final LinkedList<BotList> _initialBattles;
+  private final Map<BotListId, Entry> _entries;
+  private final List<Entry> _heap;
+  private final TreeMap<Integer, List<Entry>> _battleCountBuckets;
+  private final Multiset<BotListId> _runningBotLists;
+  private final Random _random;
+
+  /**
+   * @param initialBattles battles to run before choosing any
+   * @param challenger name of the challenger
+   * @param errorMap score distribution against each bot list with battles
+   * @param allowConcurrentBattles true to select bot lists even while they
+   *     have a battle running
+   */
+  public SmartBattleSelector(List<BotList> initialBattles, String challenger,
+      Map<BotListId, ScoreError> errorMap, boolean allowConcurrentBattles) {
+    _challenger = challenger;
+    _allowConcurrentBattles = allowConcurrentBattles;
+    _initialBattles = Lists.newLinkedList(initialBattles);
+    _entries = Maps.newHashMap();
+    _heap = Lists.newArrayList();
+    _battleCountBuckets = new TreeMap<Integer, List<Entry>>();
+    _runningBotLists = HashMultiset.create();
+    _random = new Random();
+    for (Map.Entry<BotListId, ScoreError> entry : errorMap.entrySet()) {
+      update(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public synchronized BotList nextBotList() {
+    if (!_initialBattles.isEmpty()) {
+      return _initialBattles.remove();
+    }
+
+    Entry nextEntry;
+    if (_battleCountBuckets.isEmpty()) {
+      nextEntry = null;
+    } else {
+      int minBattles = _battleCountBuckets.firstKey();
+      double randomBattleChance =
+          RANDOM_BATTLE_RATE / power(2, minBattles - 2);
+      if (_random.nextDouble() < randomBattleChance) {
+        List<Entry> minBotLists = _battleCountBuckets.get(minBattles);
+        nextEntry = minBotLists.get(_random.nextInt(minBotLists.size()));
+      } else {
+        nextEntry = _heap.isEmpty() ? null : _heap.get(0);
+      }
+    }
+
+    if (nextEntry == null) {
+      throw new RuntimeException("Failed to select a battle!");
+    }
+    _runningBotLists.add(nextEntry.botList);
+    if (!_allowConcurrentBattles && nextEntry.heapIndex >= 0) {
+      removeFromHeap(nextEntry);
+    }
+    List<String> nextBotList =
+        Lists.newArrayList(nextEntry.botList.getBotNames());
+    nextBotList.add(_challenger);
+    return new BotList(nextBotList);
+  }
+
+  /**
+   * Updates the score distribution against a bot list, eg after a battle.
+   *
+   * @param botList the bot list
+   * @param scoreError the new score distribution against the bot list
+   */
+  public synchronized void update(BotListId botList, ScoreError scoreError) {
+    Entry entry = _entries.get(botList);
+    if (entry == null) {
+      entry = new Entry(botList, scoreError);
+      _entries.put(botList, entry);
+      addToBucket(entry);
+      if (_allowConcurrentBattles || !_runningBotLists.contains(botList)) {
+        addToHeap(entry);
+      }
+      return;
+    }
+
+    if (entry.numBattles != scoreError.getNumBattles()) {
+      removeFromBucket(entry);
+      entry.numBattles = scoreError.getNumBattles();
+      addToBucket(entry);
+    }
+    double oldGain = entry.accuracyGain;
+    entry.accuracyGain = scoreError.getAccuracyGainRate();
+    if (entry.heapIndex >= 0) {
+      if (entry.accuracyGain > oldGain) {
+        siftUp(entry.heapIndex);
+      } else {
+        siftDown(entry.heapIndex);
+      }
+    }
+  }
+
+  /**
+   * Records that a battle against a bot list has finished.
+   *
+   * @param botList the bot list
+   */
+  public synchronized void battleFinished(BotListId botList) {
+    if (_runningBotLists.remove(botList, 1) == 1
+        && !_runningBotLists.contains(botList)) {
+      Entry entry = _entries.get(botList);
+      if (entry != null && entry.heapIndex < 0) {
+        addToHeap(entry);
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean shouldRevise(BotList botList) {
+    Entry entry = _entries.get(getBotListId(botList));
+    if (entry == null || _heap.isEmpty()) {
+      return false;
+    }
+    Entry bestEntry = _heap.get(0);
+    return bestEntry != entry
+        && bestEntry.accuracyGain > REVISE_GAIN_FACTOR * entry.accuracyGain;
+  }
+
+  @Override
+  public void battleFailed(BotList botList) {
+    battleFinished(getBotListId(botList));
+  }
+
+  private BotListId getBotListId(BotList botList) {
+    List<String> botNames = Lists.newArrayList(botList.getBotNames());
+    botNames.remove(_challenger);
+    return BotListId.of(botNames);
+  }
+
+  private void addToBucket(Entry entry) {
+    List<Entry> bucket = _battleCountBuckets.get(entry.numBattles);
+    if (bucket == null) {
+      bucket = Lists.newArrayList();
+      _battleCountBuckets.put(entry.numBattles, bucket);
+    }
+    entry.bucketIndex = bucket.size();
+    bucket.add(entry);
+  }
+
+  private void removeFromBucket(Entry entry) {
+    List<Entry> bucket = _battleCountBuckets.get(entry.numBattles);
+    Entry lastEntry = bucket.remove(bucket.size() - 1);
+    if (lastEntry != entry) {
+      bucket.set(entry.bucketIndex, lastEntry);
+      lastEntry.bucketIndex = entry.bucketIndex;
+    }
+    if (bucket.isEmpty()) {
+      _battleCountBuckets.remove(entry.numBattles);
+    }
+    entry.bucketIndex = -1;
+  }
+
+  private void addToHeap(Entry entry) {
+    entry.heapIndex = _heap.size();
+    _heap.add(entry);
+    siftUp(entry.heapIndex);
+  }
+
+  private void removeFromHeap(Entry entry) {
+    int index = entry.heapIndex;
+    Entry lastEntry = _heap.remove(_heap.size() - 1);
+    entry.heapIndex = -1;
+    if (lastEntry != entry) {
+      setHeapEntry(index, lastEntry);
+      siftUp(index);
+      siftDown(lastEntry.heapIndex);
+    }
+  }
+
+  private void siftUp(int index) {
+    Entry entry = _heap.get(index);
+    while (index > 0) {
+      int parentIndex = (index - 1) / 2;
+      Entry parent = _heap.get(parentIndex);
+      if (parent.accuracyGain >= entry.accuracyGain) {
+        break;
+      }
+      setHeapEntry(index, parent);
+      index = parentIndex;
+    }
+    setHeapEntry(index, entry);
+  }
+
+  private void siftDown(int index) {
+    Entry entry = _heap.get(index);
+    int size = _heap.size();
+    while (2 * index + 1 < size) {
+      int childIndex = 2 * index + 1;
+      if (childIndex + 1 < size && _heap.get(childIndex + 1).accuracyGain
+          > _heap.get(childIndex).accuracyGain) {
+        childIndex++;
+      }
+      Entry child = _heap.get(childIndex);
+      if (entry.accuracyGain >= child.accuracyGain) {
+        break;
+      }
+      setHeapEntry(index, child);
+      index = childIndex;
+    }
+    setHeapEntry(index, entry);
+  }
+
+  private void setHeapEntry(int index, Entry entry) {
+    _heap.set(index, entry);
+    entry.heapIndex = index;
+  }
+
+  private static double power(double d, int exp) {
+    double r = 1;
+    for (int x = 0; x < exp; x++) {
+      r *= d;
+    }
+    return r;
+  }
+
+  private static class Entry {
+    public final BotListId botList;
+    public int numBattles;
+    public double accuracyGain;
+    public int heapIndex;
+    public int bucketIndex;
+
+    public Entry(BotListId botList, ScoreError scoreError) {
+      this.botList = botList;
+      this.numBattles = scoreError.getNumBattles();
+      this.accuracyGain = scoreError.getAccuracyGainRate();
+      this.heapIndex = -1;
+      this.bucketIndex = -1;
+    }
+  }
+}
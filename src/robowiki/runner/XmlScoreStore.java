@@ -0,0 +1,189 @@
+package robowiki.runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLStreamException;
+
+import robowiki.runner.ScoreLog.BattleScore;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Stores each challenger's scores in its own gzipped XML file in the data
+ * directory, along with a {@code ScoreIndex} and a {@code ScoreJournal}.
+ * Battles are journaled as they're recorded, and the XML file is saved in
+ * the background every {@code compactBattles} battles. A read only store,
+ * eg for reports, loads score logs without writing anything, not even a
+ * stale index.
+ */
+public class XmlScoreStore implements ScoreStore {
+  private static final String SLASH = System.getProperty("file.separator");
+  private static final String SCORE_LOG_EXTENSION = ".xml.gz";
+
+  private final String _dataDir;
+  private final int _syncBattles;
+  private final int _compactBattles;
+  private final boolean _readOnly;
+  private final Map<String, Recorder> _recorders;
+  private final Map<String, Long> _savedSequences;
+
+  /**
+   * @param dataDir directory holding the score logs
+   * @param syncBattles number of journaled battles to group into each fsync,
+   *     or 0 to leave syncing to the OS
+   * @param compactBattles number of journaled battles that trigger a save of
+   *     the full score log
+   */
+  public XmlScoreStore(String dataDir, int syncBattles, int compactBattles) {
+    this(dataDir, syncBattles, compactBattles, false);
+  }
+
+  /**
+   * @param dataDir directory holding the score logs
+   * @param syncBattles number of journaled battles to group into each fsync,
+   *     or 0 to leave syncing to the OS
+   * @param compactBattles number of journaled battles that trigger a save of
+   *     the full score log
+   * @param readOnly true to never write to the data directory, in which
+   *     case battles can't be recorded
+   */
+  public XmlScoreStore(String dataDir, int syncBattles, int compactBattles,
+      boolean readOnly) {
+    _dataDir = dataDir;
+    _syncBattles = syncBattles;
+    _compactBattles = compactBattles;
+    _readOnly = readOnly;
+    _recorders = Maps.newHashMap();
+    _savedSequences = Maps.newHashMap();
+  }
+
+  public String getScoreLogPath(String challenger) {
+    return _dataDir + SLASH + challenger + SCORE_LOG_EXTENSION;
+  }
+
+  private String getIndexPath(String challenger) {
+    return _dataDir + SLASH + challenger + ".idx";
+  }
+
+  private String getJournalPath(String challenger) {
+    return _dataDir + SLASH + challenger + ".journal";
+  }
+
+  @Override
+  public ScoreLog load(String challenger) throws IOException {
+    String filePath = getScoreLogPath(challenger);
+    String indexFilePath = getIndexPath(challenger);
+    ScoreLog scoreLog = null;
+    if (new File(filePath).exists()) {
+      try {
+        scoreLog = ScoreIndex.load(indexFilePath, filePath);
+        if (scoreLog == null) {
+          scoreLog = ScoreLog.loadScoreLog(filePath);
+          if (!_readOnly) {
+            ScoreIndex.save(scoreLog, indexFilePath, filePath);
+          }
+        }
+      } catch (XMLStreamException e) {
+        throw new IOException("Failed to parse " + filePath, e);
+      }
+    }
+    if (scoreLog == null) {
+      scoreLog = new ScoreLog(challenger);
+    }
+    synchronized (this) {
+      _savedSequences.put(challenger, scoreLog.getSequence());
+    }
+    ScoreJournal.replay(getJournalPath(challenger), scoreLog);
+    return scoreLog;
+  }
+
+  @Override
+  public Set<String> getChallengers() {
+    Set<String> challengers = Sets.newHashSet();
+    File[] files = new File(_dataDir).listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String fileName = file.getName();
+        if (fileName.endsWith(SCORE_LOG_EXTENSION)) {
+          challengers.add(fileName.substring(
+              0, fileName.length() - SCORE_LOG_EXTENSION.length()));
+        }
+      }
+    }
+    return challengers;
+  }
+
+  @Override
+  public synchronized void battleAdded(
+      ScoreLog scoreLog, BattleScore battleScore) {
+    Preconditions.checkState(!_readOnly, "Score store is read only.");
+    Recorder recorder = getRecorder(scoreLog);
+    if (recorder.journal == null) {
+      recorder.persister.requestSave();
+      return;
+    }
+    try {
+      recorder.journal.append(scoreLog.getSequence(), battleScore);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    if (recorder.journal.getBattleCount() >= _compactBattles) {
+      recorder.persister.requestSave();
+    }
+  }
+
+  private Recorder getRecorder(ScoreLog scoreLog) {
+    Recorder recorder = _recorders.get(scoreLog.challenger);
+    if (recorder == null) {
+      String challenger = scoreLog.challenger;
+      ScoreJournal journal = null;
+      try {
+        journal = new ScoreJournal(getJournalPath(challenger), _syncBattles);
+      } catch (IOException e) {
+        System.out.println("WARNING: Couldn't open score journal, the score "
+            + "log will be saved after every battle.");
+        e.printStackTrace();
+      }
+      Long savedSequence = _savedSequences.get(challenger);
+      recorder = new Recorder(journal, new ScoreLogPersister(scoreLog,
+          getScoreLogPath(challenger), getIndexPath(challenger), journal,
+          (savedSequence == null) ? 0 : savedSequence));
+      _recorders.put(challenger, recorder);
+    }
+    return recorder;
+  }
+
+  @Override
+  public synchronized long getLag() {
+    long lag = 0;
+    for (Recorder recorder : _recorders.values()) {
+      lag += recorder.persister.getLag();
+    }
+    return lag;
+  }
+
+  @Override
+  public synchronized void close() {
+    for (Recorder recorder : _recorders.values()) {
+      recorder.persister.saveNow();
+      if (recorder.journal != null) {
+        recorder.journal.close();
+      }
+    }
+  }
+
+  private static class Recorder {
+    public final ScoreJournal journal;
+    public final ScoreLogPersister persister;
+
+    public Recorder(ScoreJournal journal, ScoreLogPersister persister) {
+      this.journal = journal;
+      this.persister = persister;
+    }
+  }
+}